@@ -0,0 +1,120 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures decoding response bodies of different sizes, from the bytes on
+ * the wire to a JSONObject or JSONArray, the way APIConnection reads them
+ * from a connection, and binding them straight to classes instead.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    private static final Map<String, List<String>> NO_HEADERS = Collections.emptyMap();
+
+    /**
+     * small is a single record, medium about 50 KB and large about 5 MB.
+     */
+    @Param({ "small", "medium", "large" })
+    public String size;
+
+    /**
+     * Whether the records are wrapped in an object, as most list calls
+     * return them, or sent as a bare array.
+     */
+    @Param({ "object", "array" })
+    public String shape;
+
+    private APIConnection api;
+    private byte[] body;
+    private Codecs.Codec<?> codec;
+
+    @Setup
+    public void setUp() {
+        api = new APIConnection("v1", "key", "secret", "195900");
+
+        int bytes;
+        if("small".equals(size))
+            bytes = 0;
+        else if("medium".equals(size))
+            bytes = 50 * 1024;
+        else if("large".equals(size))
+            bytes = 5 * 1024 * 1024;
+        else
+            throw new IllegalArgumentException("Unknown size: " + size);
+
+        body = Responses.appointments(bytes, "object".equals(shape)).getBytes(StandardCharsets.UTF_8);
+        codec = Codecs.get("object".equals(shape) ? Appointments.class : new TypeRef<List<Appointment>>() {}.getType());
+    }
+
+    @Benchmark
+    public Object decode() throws AthenahealthException, IOException {
+        BufferedReader rd = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+        return api.decodeResponse(200, "application/json", rd, NO_HEADERS);
+    }
+
+    @Benchmark
+    public Object bind() throws AthenahealthException, IOException {
+        BufferedReader rd = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+        return api.decodeResponse(200, "application/json", rd, NO_HEADERS, codec);
+    }
+
+    /**
+     * Some of the fields of an appointment; the rest are skipped.
+     */
+    static class Appointment {
+        long appointmentId;
+        String date;
+        String startTime;
+        int departmentId;
+        int providerId;
+        int duration;
+        boolean frozenYN;
+        BigDecimal copay;
+    }
+
+    static class Appointments {
+        List<Appointment> appointments;
+        int totalCount;
+    }
+}
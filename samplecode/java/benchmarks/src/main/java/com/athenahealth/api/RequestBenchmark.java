@@ -0,0 +1,110 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the work APIConnection does to build every request and to read
+ * the Content-Type of every response: joining the URL path or expanding a
+ * path template, encoding the query string or form, and parsing the media
+ * type and charset.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestBenchmark {
+    private static final PathTemplate APPOINTMENTS = PathTemplate.compile("/patients/{patientid}/appointments");
+
+    private APIConnection api;
+    private Map<String, String> simple;
+    private Map<String, String> escaped;
+
+    @Setup
+    public void setUp() {
+        api = new APIConnection("v1", "key", "secret", "195900");
+
+        // A typical search: short ASCII values
+        simple = new LinkedHashMap<String, String>();
+        simple.put("departmentid", "82");
+        simple.put("startdate", "01/01/2024");
+        simple.put("enddate", "12/31/2024");
+        simple.put("limit", "1000");
+
+        // Free text, which needs most of its characters escaped
+        escaped = new LinkedHashMap<String, String>();
+        escaped.put("firstname", "Zoë");
+        escaped.put("lastname", "O'Brien-Smith");
+        escaped.put("note", "Follow up in 2 weeks & call if fever > 101°F / rash");
+        escaped.put("reasonid", "-1");
+    }
+
+    @Benchmark
+    public String joinPath() {
+        return api.joinPath("https://api.athenahealth.com/", "v1", "195900", "/patients/1234/appointments");
+    }
+
+    @Benchmark
+    public String requestURL() {
+        return api.requestURL("195900", APPOINTMENTS.expand("1234"));
+    }
+
+    @Benchmark
+    public String encodeUrlSimple() {
+        return api.encodeUrl(simple);
+    }
+
+    @Benchmark
+    public String encodeUrlEscaped() {
+        return api.encodeUrl(escaped);
+    }
+
+    @Benchmark
+    public byte[] encodeFormSimple() {
+        return UrlEncodedForm.encode(simple);
+    }
+
+    @Benchmark
+    public byte[] encodeFormEscaped() {
+        return UrlEncodedForm.encode(escaped);
+    }
+
+    @Benchmark
+    public Object responseInfo() {
+        return api.getResponseInfo("application/json; charset=UTF-8", "UTF-8");
+    }
+
+    @Benchmark
+    public Object responseInfoWithoutCharset() {
+        return api.getResponseInfo("application/json", "UTF-8");
+    }
+}
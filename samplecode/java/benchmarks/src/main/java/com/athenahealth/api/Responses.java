@@ -0,0 +1,66 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+/**
+ * Builds response bodies which look like the ones the API sends.
+ */
+final class Responses {
+    private Responses() {
+    }
+
+    /**
+     * Builds a list of appointments.
+     *
+     * @param bytes   the size to grow the list to; at least one appointment
+     *                is always included
+     * @param wrapped true to wrap the list in an object with a count, as
+     *                list calls do, false for a bare array
+     * @return the JSON text
+     */
+    static String appointments(int bytes, boolean wrapped) {
+        StringBuilder sb = new StringBuilder(bytes + 1024);
+        if(wrapped)
+            sb.append("{\"appointments\":");
+        sb.append('[');
+
+        int count = 0;
+        do {
+            if(count > 0)
+                sb.append(',');
+            appointment(sb, count++);
+        } while(sb.length() < bytes);
+
+        sb.append(']');
+        if(wrapped)
+            sb.append(",\"totalcount\":").append(count).append('}');
+
+        return sb.toString();
+    }
+
+    private static void appointment(StringBuilder sb, int i) {
+        sb.append("{\"appointmentid\":\"").append(1000000 + i)
+          .append("\",\"appointmentstatus\":\"f\",\"appointmenttype\":\"Office Visit\",\"appointmenttypeid\":\"82\"")
+          .append(",\"date\":\"0").append(1 + i % 9).append("/1").append(i % 10).append("/2024\"")
+          .append(",\"departmentid\":\"").append(1 + i % 20)
+          .append("\",\"duration\":").append(15 * (1 + i % 4))
+          .append(",\"frozenyn\":false,\"patientappointmenttypename\":\"Follow-Up Visit\"")
+          .append(",\"providerid\":\"").append(70 + i % 13)
+          .append("\",\"starttime\":\"").append(8 + i % 9).append(":").append(i % 4 == 0 ? "00" : "30")
+          .append("\",\"copay\":").append(i % 3 == 0 ? "25.00" : "0")
+          .append(",\"reasonid\":[\"-1\"],\"note\":\"Patient requests a call \\\"before\\\" arrival \\u2014 see chart\"}");
+    }
+}
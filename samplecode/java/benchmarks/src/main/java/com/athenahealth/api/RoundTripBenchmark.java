@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures whole calls through the public API, from building the request to
+ * the decoded response, against an in-process {@link StubServer}.  The
+ * token is requested once, during setup, so only the calls themselves are
+ * measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class RoundTripBenchmark {
+    /**
+     * The size of the list GETs are answered with; small is a single record.
+     */
+    @Param({ "small", "medium" })
+    public String size;
+
+    private StubServer server;
+    private APIConnection api;
+    private Map<String, String> appointment;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, AthenahealthException {
+        server = new StubServer("medium".equals(size) ? 50 * 1024 : 0);
+
+        api = new APIConnection("v1", "key", "secret", "195900");
+        api.setBaseURL(server.getBaseURL());
+        api.authenticate();
+
+        appointment = new LinkedHashMap<String, String>();
+        appointment.put("appointmentdate", "06/01/2024");
+        appointment.put("appointmenttime", "10:30");
+        appointment.put("appointmenttypeid", "82");
+        appointment.put("departmentid", "1");
+        appointment.put("providerid", "71");
+        appointment.put("reasonid", "-1");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public Object get() throws AthenahealthException {
+        return api.GET("/appointments/booked");
+    }
+
+    @Benchmark
+    public Object post() throws AthenahealthException {
+        return api.POST("/appointments/open", appointment);
+    }
+}
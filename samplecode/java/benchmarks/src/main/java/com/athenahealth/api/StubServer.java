@@ -0,0 +1,104 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal API server on the loopback interface, so that whole calls can be
+ * measured without credentials, a network, or a server whose speed varies.
+ *
+ * Token requests get a token which never expires.  GETs are answered with a
+ * list of appointments of the configured size, and anything else with a
+ * short object, after the request body has been read.
+ */
+final class StubServer implements AutoCloseable {
+    static {
+        // Otherwise Nagle's algorithm delays small responses by up to 40 ms
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private static final byte[] TOKEN = "{\"access_token\":\"benchmark\",\"expires_in\":\"86400\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CREATED = "{\"appointmentid\":\"1000000\",\"success\":true}".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] list;
+
+    /**
+     * Starts a server.
+     *
+     * @param bytes the size of the list GETs are answered with
+     */
+    StubServer(int bytes) throws IOException {
+        list = Responses.appointments(bytes, true).getBytes(StandardCharsets.UTF_8);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "stub-server");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the base URL to give {@link APIConnection#setBaseURL}
+     */
+    String getBaseURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        // Read the whole request so the connection can be reused
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buf = new byte[8192];
+            while(in.read(buf) != -1)
+                ;
+        }
+
+        byte[] body;
+        if(exchange.getRequestURI().getPath().endsWith("/token"))
+            body = TOKEN;
+        else if("GET".equals(exchange.getRequestMethod()))
+            body = list;
+        else
+            body = CREATED;
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
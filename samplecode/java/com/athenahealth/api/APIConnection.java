@@ -15,33 +15,65 @@
  */
 package com.athenahealth.api;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.io.FilterReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import org.apache.commons.codec.binary.Base64;
 import org.json.JSONObject;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONTokener;
 
 /**
  * This class abstracts away the HTTP connection and basic authentication from API calls.
@@ -59,22 +91,97 @@ import org.json.JSONException;
  * these methods prepends the specified API version to the URL.  If the practice ID is set, it is
  * also added.
  *
- * If an API call returns 401 Not Authorized, a new access token is obtained and the request is
- * retried.
+ * The access token is refreshed in the background shortly before it expires.  If an API call
+ * returns 401 Not Authorized anyway, a new access token is obtained and the request is retried
+ * once.  Concurrent callers share a single token refresh rather than each requesting their own.
+ * Calls which fail with a transient error, such as 503 Service Unavailable, are only retried
+ * if a {@link RetryPolicy} is set, and a {@link CircuitBreaker} can stop calls to endpoints which
+ * keep failing.  A {@link ConcurrencyLimiter} keeps the number of calls in flight at a level the
+ * server can handle.  {@link Metrics} record the latency and outcome of every call, and
+ * {@link Interceptor}s can inspect, change, or answer calls before they are sent.
+ *
+ * Each HTTP request method also has an asynchronous variant (GETAsync, POSTAsync, etc.) which
+ * returns a {@link CompletableFuture} instead of blocking the calling thread.  The asynchronous
+ * variants share a single {@link HttpClient} which prefers HTTP/2, so many requests can be in
+ * flight over one connection.  They decode responses and report errors exactly as their
+ * blocking counterparts do, except that errors complete the future exceptionally.
+ *
+ * GET returns image responses in memory, which limits them to 2 GB.  To fetch documents, images,
+ * and other binary resources of any size, use one of the download methods, which write the
+ * response to an OutputStream, a channel, or a file as it arrives.  Likewise, upload sends a
+ * {@link MultipartForm} whose files are streamed from disk as the request is sent.
+ *
+ * Paths which contain IDs, such as <code>/patients/{patientid}/appointments</code>, are best built
+ * with a {@link PathTemplate}, which encodes the IDs correctly and costs little to expand.
+ *
+ * A connection refreshes its access token in the background until it is closed.  Close a
+ * connection which is no longer needed, or use it in a try-with-resources statement.
  */
-public class APIConnection {
+public class APIConnection implements AutoCloseable {
 	private final String key;
 	private final String secret;
 	private final String version;
-	private String practiceId;
+	private volatile String practiceId;
 	private String base_url;
-	private String token;
+
+	/**
+	 * The base URL joined with the version and each practice ID.  Replaced as a whole when the
+	 * base URL changes.
+	 */
+	private volatile Prefixes _prefixes;
+	private final TokenManager tokens = new TokenManager(new TokenManager.Source() {
+	    @Override
+	    public TokenManager.Token fetch() throws AthenahealthException {
+	        return requestToken();
+	    }
+
+	    @Override
+	    public CompletableFuture<TokenManager.Token> fetchAsync() {
+	        return requestTokenAsync();
+	    }
+	});
 	private Charset httpAuthEncoding = Charset.forName("UTF-8");
 
 	/**
 	 * Optional customized SSLSocketFactory.
 	 */
 	private SSLSocketFactory _sslSocketFactory;
+
+	/**
+	 * Optional customized SSLContext for asynchronous requests.
+	 */
+	private SSLContext _sslContext;
+
+	/**
+	 * The client used for asynchronous requests. Created on first use.
+	 */
+	private volatile HttpClient _httpClient;
+
+	/**
+	 * HttpClient.shutdown, which is newer than the Java this builds for, or null.
+	 */
+	private static final Method HTTP_CLIENT_SHUTDOWN = httpClientShutdown();
+
+	/**
+	 * The pool which manages keep-alive connections for blocking requests.
+	 */
+	private volatile ConnectionPool _connectionPool = new ConnectionPool();
+	private volatile ResponseCache _responseCache;
+	private volatile boolean _coalesceRequests;
+	private volatile RateLimiter _rateLimiter;
+	private volatile RetryPolicy _retryPolicy;
+	private volatile CircuitBreaker _circuitBreaker;
+	private volatile ConcurrencyLimiter _concurrencyLimiter;
+	private volatile Metrics _metrics;
+	private volatile boolean _compression = true;
+
+	/**
+	 * The interceptors, in order.  Replaced as a whole when one is added or removed.
+	 */
+	private volatile Interceptor[] _interceptors = NO_INTERCEPTORS;
+	private static final Interceptor[] NO_INTERCEPTORS = new Interceptor[0];
+	private final RequestCoalescer coalescer = new RequestCoalescer();
+
 	private int _socketConnectTimeout =  5 * 1000;
 	private int _socketReadTimeout    = 20 * 2000;
 
@@ -88,6 +195,11 @@ public class APIConnection {
 		authPrefixes = Collections.unmodifiableMap(tempMap);
 	}
 
+	/**
+	 * The body of every token request.
+	 */
+	private static final byte[] TOKEN_FORM = "grant_type=client_credentials".getBytes(StandardCharsets.US_ASCII);
+
 	/**
 	 * Connect to the specified API version using key and secret.
 	 *
@@ -116,6 +228,7 @@ public class APIConnection {
 		this.secret = secret;
 		this.practiceId = practiceId;
 		this.base_url = "https://api.athenahealth.com";
+		this._prefixes = new Prefixes(base_url);
 	}
 
 	/**
@@ -131,6 +244,7 @@ public class APIConnection {
 	            baseURL = baseURL.substring(0, baseURL.length() - 1);
 
 	    base_url = baseURL;
+	    _prefixes = new Prefixes(baseURL);
 	}
 
     /**
@@ -162,6 +276,240 @@ public class APIConnection {
 	    return _sslSocketFactory;
 	}
 
+	/**
+	 * Sets a custom {@link SSLContext} to be used for asynchronous requests.
+	 * This is the asynchronous counterpart of {@link #setSSLSocketFactory},
+	 * since the client behind the asynchronous requests cannot use a bare
+	 * SSLSocketFactory.
+	 *
+	 * @param sslContext The SSLContext to use for asynchronous connections.
+	 */
+	public void setSSLContext(SSLContext sslContext) {
+	    _sslContext = sslContext;
+	    resetHttpClient();
+	}
+
+	/**
+	 * Gets the custom {@link SSLContext} being used for asynchronous requests.
+	 */
+	public SSLContext getSSLContext() {
+	    return _sslContext;
+	}
+
+	/**
+	 * Sets the {@link ConnectionPool} used to manage keep-alive connections
+	 * for blocking requests. A pool may be shared between connections.
+	 *
+	 * @param pool The connection pool to use.
+	 */
+	public void setConnectionPool(ConnectionPool pool) {
+	    if(pool == null)
+	        throw new IllegalArgumentException("Connection pool must not be null");
+
+	    _connectionPool = pool;
+	}
+
+	/**
+	 * Gets the {@link ConnectionPool} used to manage keep-alive connections
+	 * for blocking requests. Use this to adjust the pool's limits or to read
+	 * its connection statistics.
+	 */
+	public ConnectionPool getConnectionPool() {
+	    return _connectionPool;
+	}
+
+	/**
+	 * Sets the {@link ResponseCache} used for GET requests, or null for none.
+	 * A cache may be shared between connections; its entries are keyed by API key, base URL and
+	 * version as well as by request, so connections with different credentials never see each
+	 * other's responses.  There is no cache by default.
+	 *
+	 * @param cache The response cache to use.
+	 */
+	public void setResponseCache(ResponseCache cache) {
+	    _responseCache = cache;
+	}
+
+	/**
+	 * Gets the {@link ResponseCache} used for GET requests.
+	 *
+	 * @return The response cache, or null if responses are not cached.
+	 */
+	public ResponseCache getResponseCache() {
+	    return _responseCache;
+	}
+
+	/**
+	 * Sets whether identical GET requests made at the same time share one HTTP request.
+	 *
+	 * When enabled, a GET which is identical to one already in flight (same practice, path,
+	 * query parameters, and headers) waits for that request's response instead of sending its
+	 * own.  Each caller receives a separate copy of the response.  Disabled by default.
+	 *
+	 * @param coalesce true to share identical concurrent GET requests
+	 */
+	public void setCoalesceRequests(boolean coalesce) {
+	    _coalesceRequests = coalesce;
+	}
+
+	/**
+	 * Gets whether identical GET requests made at the same time share one HTTP request.
+	 *
+	 * @return true if identical concurrent GET requests are shared
+	 */
+	public boolean getCoalesceRequests() {
+	    return _coalesceRequests;
+	}
+
+	/**
+	 * Sets the {@link RateLimiter} which keeps calls within the API key's quota, or null for none.
+	 * Share one limiter between all connections which use the same key.  There is no limiter
+	 * by default.
+	 *
+	 * @param limiter The rate limiter to use.
+	 */
+	public void setRateLimiter(RateLimiter limiter) {
+	    _rateLimiter = limiter;
+	}
+
+	/**
+	 * Gets the {@link RateLimiter} which keeps calls within the API key's quota.
+	 *
+	 * @return The rate limiter, or null if calls are not limited.
+	 */
+	public RateLimiter getRateLimiter() {
+	    return _rateLimiter;
+	}
+
+	/**
+	 * Sets the {@link RetryPolicy} which decides whether calls that fail with a transient error
+	 * are tried again, or null to never retry.  A policy may be shared between connections, in
+	 * which case they also share its retry budget.  There is no policy by default.
+	 *
+	 * @param policy The retry policy to use.
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+	    _retryPolicy = policy;
+	}
+
+	/**
+	 * Gets the {@link RetryPolicy} which decides whether failed calls are tried again.
+	 *
+	 * @return The retry policy, or null if calls are not retried.
+	 */
+	public RetryPolicy getRetryPolicy() {
+	    return _retryPolicy;
+	}
+
+	/**
+	 * Sets the {@link CircuitBreaker} which stops calls to failing endpoints, or null for none.
+	 * There is no circuit breaker by default.
+	 *
+	 * @param breaker The circuit breaker to use.
+	 */
+	public void setCircuitBreaker(CircuitBreaker breaker) {
+	    _circuitBreaker = breaker;
+	}
+
+	/**
+	 * Gets the {@link CircuitBreaker} which stops calls to failing endpoints.
+	 *
+	 * @return The circuit breaker, or null if there is none.
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+	    return _circuitBreaker;
+	}
+
+	/**
+	 * Sets the {@link ConcurrencyLimiter} which adapts the number of calls in flight to the
+	 * server's latency, or null for no limit.  There is no limiter by default.
+	 *
+	 * @param limiter The concurrency limiter to use.
+	 */
+	public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+	    _concurrencyLimiter = limiter;
+	}
+
+	/**
+	 * Gets the {@link ConcurrencyLimiter} which adapts the number of calls in flight.
+	 *
+	 * @return The concurrency limiter, or null if calls in flight are not limited.
+	 */
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+	    return _concurrencyLimiter;
+	}
+
+	/**
+	 * Sets the {@link Metrics} which record the latency and outcome of each call, or null to
+	 * record nothing.  There are no metrics by default.
+	 *
+	 * @param metrics The metrics to record calls in.
+	 */
+	public void setMetrics(Metrics metrics) {
+	    _metrics = metrics;
+	}
+
+	/**
+	 * Sets whether to ask for responses to be compressed with gzip or deflate.  Compressed
+	 * responses are decoded as they are read, so this trades a little CPU for far fewer bytes
+	 * on the network on large responses.  It is enabled by default.
+	 *
+	 * @param compression true to send Accept-Encoding: gzip, deflate
+	 */
+	public void setCompression(boolean compression) {
+	    _compression = compression;
+	}
+
+	/**
+	 * Gets whether responses are requested compressed.
+	 *
+	 * @return true if Accept-Encoding: gzip, deflate is sent
+	 */
+	public boolean getCompression() {
+	    return _compression;
+	}
+
+	/**
+	 * Gets the {@link Metrics} which record the latency and outcome of each call.
+	 *
+	 * @return The metrics, or null if calls are not recorded.
+	 */
+	public Metrics getMetrics() {
+	    return _metrics;
+	}
+
+	/**
+	 * Adds an {@link Interceptor} to the end of the chain which sees every call.
+	 *
+	 * @param interceptor The interceptor to add.
+	 */
+	public synchronized void addInterceptor(Interceptor interceptor) {
+	    Interceptor[] chain = Arrays.copyOf(_interceptors, _interceptors.length + 1);
+	    chain[chain.length - 1] = interceptor;
+	    _interceptors = chain;
+	}
+
+	/**
+	 * Removes an {@link Interceptor} from the chain.
+	 *
+	 * @param interceptor The interceptor to remove.
+	 */
+	public synchronized void removeInterceptor(Interceptor interceptor) {
+	    List<Interceptor> chain = new ArrayList<Interceptor>(Arrays.asList(_interceptors));
+	    if (chain.remove(interceptor))
+	        _interceptors = chain.isEmpty() ? NO_INTERCEPTORS : chain.toArray(new Interceptor[chain.size()]);
+	}
+
+	/**
+	 * Gets the number of GET requests which were answered by sharing an identical request that
+	 * was already in flight.
+	 *
+	 * @return the number of requests which were not sent
+	 */
+	public long getCoalescedRequestCount() {
+	    return coalescer.getCoalescedCount();
+	}
+
 	/**
 	 * Sets the socket connection timeout for API connections.
 	 * A timeout of zero (0) means "wait indefinitely".
@@ -170,6 +518,7 @@ public class APIConnection {
 	 */
 	public void setSocketConnectTimeout(int timeout) {
 	    _socketConnectTimeout = timeout;
+	    resetHttpClient();
 	}
 
 	/**
@@ -240,8 +589,11 @@ public class APIConnection {
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         if(conn instanceof HttpsURLConnection) {
             SSLSocketFactory ssf = getSSLSocketFactory();
-            if(ssf != null)
-                ((HttpsURLConnection)conn).setSSLSocketFactory(ssf);
+            if(ssf == null)
+                ssf = HttpsURLConnection.getDefaultSSLSocketFactory();
+
+            // Route new connections through the pool so they can be tracked
+            ((HttpsURLConnection)conn).setSSLSocketFactory(getConnectionPool().wrap(ssf));
         }
 
         conn.setConnectTimeout(getSocketConnectTimeout());
@@ -250,45 +602,164 @@ public class APIConnection {
         return conn;
 	}
 
+    /**
+     * Gets the client used for asynchronous requests, creating it if necessary.
+     */
+    private HttpClient getHttpClient() {
+        HttpClient client = _httpClient;
+        if(client == null) {
+            synchronized(this) {
+                client = _httpClient;
+                if(client == null) {
+                    HttpClient.Builder builder = HttpClient.newBuilder()
+                            .version(HttpClient.Version.HTTP_2)
+                            .followRedirects(HttpClient.Redirect.NORMAL);
+
+                    if(getSocketConnectTimeout() > 0)
+                        builder.connectTimeout(Duration.ofMillis(getSocketConnectTimeout()));
+
+                    SSLContext sslContext = getSSLContext();
+                    if(sslContext != null)
+                        builder.sslContext(sslContext);
+
+                    _httpClient = client = builder.build();
+                }
+            }
+        }
+
+        return client;
+    }
+
+    /**
+     * Drops the client used for asynchronous requests, so that the next one is built with the
+     * current settings.  Requests already sent on the old client complete normally.
+     */
+    private void resetHttpClient() {
+        HttpClient old;
+        synchronized(this) {
+            old = _httpClient;
+            _httpClient = null;
+        }
+        shutdown(old);
+    }
+
+    /**
+     * Shuts a client down without waiting for its requests, freeing its selector thread and
+     * connections once they complete.  HttpClient can only be shut down from Java 21; before
+     * that, a client which is no longer used is only reclaimed by the garbage collector.
+     */
+    private static void shutdown(HttpClient client) {
+        if(client == null || HTTP_CLIENT_SHUTDOWN == null)
+            return;
+
+        try {
+            HTTP_CLIENT_SHUTDOWN.invoke(client);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // Left to the garbage collector, as before Java 21
+        }
+    }
+
+    private static Method httpClientShutdown() {
+        try {
+            return HttpClient.class.getMethod("shutdown");
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private String getBasicCredentials() {
+        return Base64.encodeBase64String((key + ":" + secret).getBytes(getHTTPAuthEncoding()));
+    }
+
 	/**
 	 * Authenticate to the athenahealth API service.
+	 *
+	 * This always obtains a new access token, unless another thread is already in the middle of
+	 * obtaining one, in which case this waits for that token instead.
 	 */
 	public void authenticate() throws AthenahealthException {
+	    tokens.refresh(tokens.current());
+	}
+
+	/**
+	 * Authenticate to the athenahealth API service without blocking.
+	 *
+	 * @return a future which completes once the new access token is in place
+	 */
+	public CompletableFuture<Void> authenticateAsync() {
+	    return tokens.refreshAsync(tokens.current()).thenApply(token -> (Void)null);
+	}
+
+	/**
+	 * Sets how long before its expiry the access token is refreshed in the background.
+	 * The default is one minute.
+	 *
+	 * @param leadTime The time before expiry to refresh the token, in ms.
+	 */
+	public void setTokenRefreshLeadTime(long leadTime) {
+	    tokens.setLeadTime(leadTime);
+	}
+
+	/**
+	 * Gets how long before its expiry the access token is refreshed in the background.
+	 *
+	 * @return The time before expiry to refresh the token, in ms.
+	 */
+	public long getTokenRefreshLeadTime() {
+	    return tokens.getLeadTime();
+	}
+
+	/**
+	 * Request a new access token from the athenahealth API service.
+	 *
+	 * @return the new token
+	 */
+	private TokenManager.Token requestToken() throws AthenahealthException {
+	    Metrics metrics = getMetrics();
+	    if (metrics != null)
+	        metrics.tokenRequested();
+
+	    final ConnectionPool pool = getConnectionPool();
+	    ConnectionPool.Lease lease = null;
+	    InputStream body = null;
 	    BufferedReader rd = null;
-	    Writer wr = null;
+	    OutputStream out = null;
 	    try {
 	        // The URL to authenticate to is determined by the version of the API specified at
 	        // construction.
 	        final URL url = new URL(joinPath(getBaseURL(), authPrefixes.get(version), "/token"));
+	        lease = pool.acquire(url, getSocketConnectTimeout());
 	        final HttpURLConnection conn = openConnection(url);
 	        conn.setRequestMethod("POST");
 
-	        final String auth = Base64.encodeBase64String((key + ":" + secret).getBytes(getHTTPAuthEncoding()));
-
-	        conn.setRequestProperty("Authorization", "Basic " + auth);
+	        conn.setRequestProperty("Authorization", "Basic " + getBasicCredentials());
 
 	        conn.setDoOutput(true);
 
-	        wr = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");
-	        wr.write(encodeUrl(Collections.singletonMap("grant_type", "client_credentials")));
-	        wr.flush();
-	        wr.close();
+	        final long issued = System.nanoTime();
+	        out = conn.getOutputStream();
+	        out.write(TOKEN_FORM);
+	        out.close();
 
-	        if(503 == conn.getResponseCode())
+	        if(503 == conn.getResponseCode()) {
+	            ConnectionPool.drain(conn.getErrorStream());
 	            throw new UnavailableException(conn.getResponseMessage());
+	        }
 
 	        final ResponseInfo info = getResponseInfo(conn, "UTF-8");
 
-            rd = new BufferedReader(new InputStreamReader(conn.getInputStream(), info.getCharset()));
-	        final StringBuilder sb = new StringBuilder();
-	        String line;
-	        while ((line = rd.readLine()) != null) {
-	            sb.append(line);
+	        try {
+	            body = conn.getInputStream();
 	        }
-	        rd.close();
-
-	        final JSONObject response = new JSONObject(sb.toString());
-	        token = response.get("access_token").toString();
+	        catch (IOException ioe) {
+	            // Read the error so the connection can be reused
+	            ConnectionPool.drain(conn.getErrorStream());
+	            throw ioe;
+	        }
+            rd = new BufferedReader(new InputStreamReader(body, info.getCharset()));
+	        return parseToken(new JSONObject(new JSONTokener(rd)), issued);
 	    }
         catch (MalformedURLException mue)
         {
@@ -300,15 +771,84 @@ public class APIConnection {
 	    }
 	    finally
 	    {
-            if(wr != null) try { wr.close(); }
+            if(out != null) try { out.close(); }
             catch (IOException ioe) { ioe.printStackTrace(); }
 
+            // Drain whatever was not read so the connection can be reused
+            ConnectionPool.drain(body);
+
             if(rd != null) try { rd.close(); }
 	        catch (IOException ioe) { ioe.printStackTrace(); }
+
+            pool.release(lease);
+	    }
+	}
+
+	/**
+	 * Request a new access token from the athenahealth API service without blocking.
+	 *
+	 * @return a future holding the new token
+	 */
+	private CompletableFuture<TokenManager.Token> requestTokenAsync() {
+	    Metrics metrics = getMetrics();
+	    if (metrics != null)
+	        metrics.tokenRequested();
+
+	    final CompletableFuture<TokenManager.Token> result = new CompletableFuture<TokenManager.Token>();
+	    final long issued = System.nanoTime();
+	    final HttpRequest request;
+	    try {
+	        HttpRequest.Builder builder = HttpRequest.newBuilder(new URI(joinPath(getBaseURL(), authPrefixes.get(version), "/token")))
+	                .header("Authorization", "Basic " + getBasicCredentials())
+	                .header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8")
+	                .POST(HttpRequest.BodyPublishers.ofByteArray(TOKEN_FORM));
+	        // Otherwise a hung token endpoint would hold up every caller waiting on the refresh
+	        if(getSocketReadTimeout() > 0)
+	            builder.timeout(Duration.ofMillis(getSocketReadTimeout()));
+	        request = builder.build();
 	    }
+	    catch (URISyntaxException use) {
+	        result.completeExceptionally(new AuthenticationException("Error authenticating with server", use));
+	        return result;
+	    }
+
+	    getHttpClient().sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((response, error) -> {
+	        try {
+	            if(error != null)
+	                throw new CommunicationException("Error authenticating with server", unwrap(error));
+
+	            if(503 == response.statusCode())
+	                throw new UnavailableException("Service Temporarily Unavailable");
+
+	            if(response.statusCode() >= 400)
+	                throw new CommunicationException("Error authenticating with server",
+	                        new IOException("Server returned HTTP response code: " + response.statusCode() + " for URL: " + request.uri()));
+
+	            final ResponseInfo info = getResponseInfo(response.headers().firstValue("Content-Type").orElse(null), "UTF-8");
+	            result.complete(parseToken(new JSONObject(new JSONTokener(
+	                    new InputStreamReader(new ByteArrayInputStream(response.body()), info.getCharset()))), issued));
+	        }
+	        catch (AthenahealthException | RuntimeException e) {
+	            result.completeExceptionally(e);
+	        }
+	        catch (UnsupportedEncodingException uee) {
+	            result.completeExceptionally(new CommunicationException("Error authenticating with server", uee));
+	        }
+	    });
+
+	    return result;
 	}
 
-	private final Pattern PATH_SEPARATORS = Pattern.compile("^/+|/+$");
+	/**
+	 * Read the access token and its lifetime from the authentication response.
+	 *
+	 * @param response the decoded authentication response
+	 * @param issued   the {@link System#nanoTime} at which the token was requested
+	 * @return the token
+	 */
+	private TokenManager.Token parseToken(JSONObject response, long issued) {
+	    return new TokenManager.Token(response.get("access_token").toString(), issued, response.optLong("expires_in", 0));
+	}
 
 	/**
 	 * Join arguments into a valid path.
@@ -316,14 +856,20 @@ public class APIConnection {
 	 * @param args parts of the path to join
 	 * @return the joined path
 	 */
-	private String joinPath(String ... args) {
+	String joinPath(String ... args) {
 		final StringBuilder sb = new StringBuilder();
 		boolean first = true;
 		for (String arg : args) {
-		    String current = PATH_SEPARATORS.matcher(arg).replaceAll("");
+			// Trim leading and trailing slashes
+			int start = 0;
+			int end = arg.length();
+			while (start < end && arg.charAt(start) == '/')
+				start++;
+			while (end > start && arg.charAt(end - 1) == '/')
+				end--;
 
 			// Skip empty strings
-			if (current.isEmpty()) {
+			if (start == end) {
 				continue;
 			}
 
@@ -333,116 +879,612 @@ public class APIConnection {
 				sb.append("/");
 			}
 
-			sb.append(current);
+			sb.append(arg, start, end);
 		}
 
 		return sb.toString();
 	}
 
+	/**
+	 * Build the URL of a call.  Gives the same result as joining the base URL, version, practice
+	 * ID and path, but the first three are joined only once for each practice, and a path which
+	 * already starts with a single slash and does not end with one, as those from a
+	 * {@link PathTemplate} do, is appended as it is.
+	 *
+	 * @param practiceId practice ID to use, or empty for none
+	 * @param path       URI to find
+	 * @return the URL
+	 */
+	String requestURL(String practiceId, String path) {
+		Prefixes prefixes = _prefixes;
+		String prefix = prefixes.get(practiceId);
+
+		int start = 0;
+		int end = path.length();
+		while (start < end && path.charAt(start) == '/')
+			start++;
+		while (end > start && path.charAt(end - 1) == '/')
+			end--;
+
+		if (start == end)
+			return prefix;
+		if (start == 1 && end == path.length())
+			return prefix.concat(path);
+		return new StringBuilder(prefix.length() + 1 + end - start).append(prefix).append('/').append(path, start, end).toString();
+	}
+
+	/**
+	 * The joined base URL, version and practice ID for each practice, for one base URL.
+	 */
+	private final class Prefixes {
+		private final String base;
+		private final ConcurrentMap<String, String> byPractice = new ConcurrentHashMap<String, String>();
+
+		Prefixes(String base) {
+			this.base = base;
+		}
+
+		String get(String practiceId) {
+			String prefix = byPractice.get(practiceId);
+			if (prefix == null) {
+				prefix = joinPath(base, version, practiceId);
+				byPractice.putIfAbsent(practiceId, prefix);
+			}
+			return prefix;
+		}
+	}
+
 	/**
 	 * Convert parameters into a URL query string.
 	 *
 	 * @param parameters keys and values to encode
 	 * @return the query string
 	 */
-	private String encodeUrl(Map<?, ?> parameters) {
-		final StringBuilder sb = new StringBuilder();
-		boolean first = true;
+	String encodeUrl(Map<?, ?> parameters) {
+		return new String(UrlEncodedForm.encode(parameters), StandardCharsets.ISO_8859_1);
+	}
 
-		try {
-		    for (Map.Entry<?,?> pair : parameters.entrySet()) {
-		        String k = pair.getKey().toString();
-		        String v = String.valueOf(pair.getValue());
-
-		        if (first) {
-		            first = false;
-		        } else {
-		            sb.append("&");
-		        }
-                sb.append(URLEncoder.encode(k, "UTF-8"))
-                  .append('=')
-                  .append(URLEncoder.encode(v, "UTF-8"));
-		    }
-		} catch (UnsupportedEncodingException uee) {
-		    throw new InternalError("Java suddenly does not support UTF-8 character encoding");
-		}
+	/**
+	 * Returned by a first attempt at a call which was rejected with 401 Not Authorized.
+	 */
+	private static final Object UNAUTHORIZED = new Object();
 
-		return sb.toString();
+	/**
+	 * Returned by an attempt at a call which was answered with 429 Too Many Requests, so that
+	 * the caller can decide whether to retry it.
+	 */
+	private static final class Throttled {
+	    final Object response;
+	    final long retryAfter;
+
+	    Throttled(Object response, long retryAfter) {
+	        this.response = response;
+	        this.retryAfter = retryAfter;
+	    }
 	}
 
+	/**
+	 * The size of the chunks in which request bodies of unknown length are sent.
+	 */
+	private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
 
 	/**
-	 * Make the API call.
-	 *
-	 * This method abstracts away the connection, streams, and readers necessary to make an HTTP
-	 * request.  It also adds in the Authorization header and token.
+	 * Make the API call, obtaining a new access token and retrying once if the token is rejected.
 	 *
 	 * @param method     HTTP method to use
+	 * @param practiceId practice ID to use, or empty for none
 	 * @param path       URI to find
 	 * @param parameters key-value pairs of request parameters
 	 * @param headers    key-value pairs of request headers
-	 * @param secondCall true if this is the retried request
 	 * @return the JSON-decoded response
 	 *
 	 * @throws AthenahealthException If there is an error making the call.
 	 *                               API-level errors are reported in the return-value.
 	 */
-	private Object call(String method, String path, Map<String, String> parameters, Map<String, String> headers, boolean secondCall) throws AthenahealthException {
-	    Writer wr = null;
-	    BufferedReader rd = null;
-	    BufferedInputStream in = null;
-	    try {
-	        // Join up a url and open a connection
-	        URL url = new URL(joinPath(getBaseURL(), version, practiceId, path));
+	Object call(String method, String practiceId, String path, Map<String, String> parameters, Map<String, String> headers) throws AthenahealthException {
+	    return call(method, practiceId, path, parameters, headers, (BinarySink)null);
+	}
+
+	/**
+	 * Make the API call, writing a binary response to a sink instead of holding it in memory.
+	 *
+	 * @param method     HTTP method to use
+	 * @param practiceId practice ID to use, or empty for none
+	 * @param path       URI to find
+	 * @param parameters key-value pairs of request parameters
+	 * @param headers    key-value pairs of request headers
+	 * @param sink       where to write a binary response, or null to return it in a JSONObject
+	 * @return the JSON-decoded response, or a description of the binary response that was written
+	 *
+	 * @throws AthenahealthException If there is an error making the call.
+	 *                               API-level errors are reported in the return-value.
+	 */
+	Object call(String method, String practiceId, String path, Map<String, String> parameters, Map<String, String> headers, BinarySink sink) throws AthenahealthException {
+	    return call(method, practiceId, path, parameters, headers, sink, null);
+	}
+
+	/**
+	 * Make the API call, binding a successful JSON response with a codec instead of decoding it
+	 * into a JSONObject or JSONArray.
+	 *
+	 * @param method     HTTP method to use
+	 * @param practiceId practice ID to use, or empty for none
+	 * @param path       URI to find
+	 * @param parameters key-value pairs of request parameters
+	 * @param headers    key-value pairs of request headers
+	 * @param sink       where to write a binary response, or null to return it in a JSONObject
+	 * @param codec      how to bind a successful response, or null to decode it as JSON
+	 * @return the bound or JSON-decoded response, or a description of the binary response that
+	 *         was written
+	 *
+	 * @throws AthenahealthException If there is an error making the call.  When a codec is given,
+	 *                               API-level errors are thrown too.
+	 */
+	Object call(String method, String practiceId, String path, Map<String, String> parameters, Map<String, String> headers, BinarySink sink, Codecs.Codec<?> codec) throws AthenahealthException {
+	    Interceptor[] chain = _interceptors;
+	    if (chain.length == 0)
+	        return dispatch(method, practiceId, path, parameters, headers, sink, codec);
+
+	    final Interceptor.Call call = new Interceptor.Call(method, practiceId, path, parameters, headers, false);
+	    return intercept(chain, call,
+	            () -> dispatch(method, practiceId, call.getPath(), call.getParameters(), call.getHeaders(), sink, codec));
+	}
+
+	/**
+	 * Run a call through the interceptors.
+	 *
+	 * @param chain   the interceptors
+	 * @param call    the interceptors' view of the call
+	 * @param request sends the call as the interceptors left it
+	 * @return the response, as changed by the interceptors
+	 */
+	private static Object intercept(Interceptor[] chain, Interceptor.Call call, RequestCoalescer.Request request) throws AthenahealthException {
+	    try {
+	        Object response = call.before(chain);
+	        if (response == null)
+	            response = request.send();
+
+	        return call.after(chain, response);
+	    }
+	    catch (AthenahealthException e) {
+	        call.failed(chain, e);
+	        throw e;
+	    }
+	}
+
+	/**
+	 * Answer the call from the response cache, or share or send it.
+	 */
+	private Object dispatch(String method, String practiceId, String path, Map<String, String> parameters, Map<String, String> headers, BinarySink sink, Codecs.Codec<?> codec) throws AthenahealthException {
+	    ResponseCache.Lookup lookup = sink == null ? lookup(method, practiceId, path, parameters) : null;
+	    if (lookup != null) {
+	        ResponseCache.Entry entry = lookup.fresh();
+	        if (entry != null)
+	            return decodeCached(entry, codec);
+
+	        headers = lookup.conditionalHeaders(headers);
+	    }
+
+	    // A shared response is decoded once, as JSON, for every caller
+	    if (coalesce(method, parameters) && sink == null && codec == null) {
+	        final Map<String, String> requestHeaders = headers;
+	        final ResponseCache.Lookup requestLookup = lookup;
+	        return coalescer.call(RequestCoalescer.key(practiceId, path, headers),
+	                () -> send(method, practiceId, path, null, null, requestHeaders, null, null, requestLookup));
+	    }
+
+	    return send(method, practiceId, path, parameters, null, headers, sink, codec, lookup);
+	}
+
+	/**
+	 * Send the request, retrying it as the retry policy allows.
+	 *
+	 * A request whose body cannot be sent twice, or whose response is written to a sink, is
+	 * never retried, since part of it may already have been sent or written.
+	 */
+	private Object send(String method, String practiceId, String path, Map<String, String> parameters, RequestBody upload, Map<String, String> headers, BinarySink sink, Codecs.Codec<?> codec, ResponseCache.Lookup lookup) throws AthenahealthException {
+	    RetryPolicy policy = getRetryPolicy();
+	    if (policy != null) {
+	        policy.deposit();
+	        if (sink != null || (upload != null && !upload.isRepeatable()) || !policy.isRetryable(method, path))
+	            policy = null;
+	    }
+
+	    for (int attempt = 1; ; attempt++) {
+	        long delay;
+	        try {
+	            Object response = authorize(method, practiceId, path, parameters, upload, headers, sink, codec, lookup);
+	            if (!(response instanceof Throttled))
+	                return response;
+
+	            Throttled throttled = (Throttled)response;
+	            delay = policy == null ? -1 : policy.backoff(attempt, throttled.retryAfter);
+	            if (delay < 0) {
+	                if (codec != null)
+	                    throw rejected(429, throttled.response);
+	                return throttled.response;
+	            }
+	        }
+	        catch (AthenahealthException e) {
+	            delay = policy == null || !policy.isRetryable(e) ? -1 : policy.backoff(attempt, retryAfter(e));
+	            if (delay < 0)
+	                throw e;
+	        }
+
+	        try {
+	            Thread.sleep(delay);
+	        }
+	        catch (InterruptedException ie) {
+	            Thread.currentThread().interrupt();
+	            throw new AthenahealthException("Interrupted while waiting to retry", ie);
+	        }
+	    }
+	}
+
+	/**
+	 * Make one attempt at the request, obtaining a new access token and retrying once if the
+	 * token is rejected.  A body which cannot be sent twice is not retried; an
+	 * {@link AuthenticationException} is thrown instead.  The attempt waits for the concurrency
+	 * limiter, and its outcome is recorded by the circuit breaker and the concurrency limiter, if
+	 * there are any.
+	 */
+	private Object authorize(String method, String practiceId, String path, Map<String, String> parameters, RequestBody upload, Map<String, String> headers, BinarySink sink, Codecs.Codec<?> codec, ResponseCache.Lookup lookup) throws AthenahealthException {
+	    ConcurrencyLimiter concurrency = getConcurrencyLimiter();
+	    if (concurrency != null)
+	        concurrency.acquire();
+
+	    CircuitBreaker breaker = getCircuitBreaker();
+	    CircuitBreaker.Circuit circuit = null;
+	    AtomicLong exchange = new AtomicLong();
+	    boolean sent = false;
+	    boolean failed = false;
+	    boolean throttled = false;
+	    Throwable error = null;
+	    try {
+	        if (breaker != null)
+	            circuit = breaker.acquire(path);
+	        sent = true;
+
+	        TokenManager.Token token = tokens.get();
+	        boolean once = upload != null && !upload.isRepeatable();
+	        Object response = call(method, practiceId, path, parameters, upload, headers, token, once, sink, codec, lookup, exchange);
+	        if (response == UNAUTHORIZED)
+	            response = call(method, practiceId, path, parameters, upload, headers, tokens.refresh(token), true, sink, codec, lookup, exchange);
+
+	        throttled = response instanceof Throttled;
+	        return response;
+	    }
+	    catch (CommunicationException e) {
+	        failed = true;
+	        error = e;
+	        throw e;
+	    }
+	    catch (RateLimitException e) {
+	        // The request was never sent
+	        sent = false;
+	        error = e;
+	        throw e;
+	    }
+	    catch (AthenahealthException | RuntimeException e) {
+	        error = e;
+	        throw e;
+	    }
+	    finally {
+	        Metrics metrics = getMetrics();
+	        if (metrics != null && error != null)
+	            metrics.failed(method, path, error);
+
+	        // Only the exchanges with the server, not the waits for a token, the rate limiter or a
+	        // connection, tell the circuit breaker and the concurrency limiter how the server is doing
+	        if (circuit != null) {
+	            if (sent)
+	                circuit.record(exchange.get(), failed);
+	            else
+	                circuit.release();
+	        }
+	        if (concurrency != null) {
+	            if (sent)
+	                concurrency.release(path, exchange.get(), failed || throttled);
+	            else
+	                concurrency.release();
+	        }
+	    }
+	}
+
+	/**
+	 * Get the wait a failed call's server asked for.
+	 *
+	 * @return the wait, in ms, or -1 if the server did not say
+	 */
+	private static long retryAfter(Throwable error) {
+	    return error instanceof UnavailableException ? ((UnavailableException)error).getRetryAfter() : -1;
+	}
+
+	/**
+	 * Decide whether a request may share an identical request which is already in flight.
+	 */
+	private boolean coalesce(String method, Map<String, String> parameters) {
+	    return _coalesceRequests && "GET".equals(method) && parameters == null;
+	}
+
+	/**
+	 * Look a request up in the response cache.
+	 *
+	 * @return the lookup, or null if the request is not cached
+	 */
+	private ResponseCache.Lookup lookup(String method, String practiceId, String path, Map<String, String> parameters) {
+	    ResponseCache cache = getResponseCache();
+	    if (cache == null || !"GET".equals(method) || parameters != null)
+	        return null;
+
+	    return cache.lookup(key + " " + getBaseURL() + "/" + version, practiceId, path);
+	}
+
+	/**
+	 * Decode a cached response.
+	 *
+	 * @param entry the cached response
+	 * @return a new copy of the JSON-decoded response
+	 */
+	private Object decodeCached(ResponseCache.Entry entry) throws AthenahealthException {
+	    return decodeCached(entry, null);
+	}
+
+	/**
+	 * Decode a cached response.
+	 *
+	 * @param entry the cached response
+	 * @param codec how to bind the response, or null to decode it as JSON
+	 * @return a new copy of the bound or JSON-decoded response
+	 */
+	private Object decodeCached(ResponseCache.Entry entry, Codecs.Codec<?> codec) throws AthenahealthException {
+	    ResponseInfo info = getResponseInfo(entry.contentType, "UTF-8");
+	    try {
+	        return decodeResponse(200, info.getContentType(),
+	                new InputStreamReader(new ByteArrayInputStream(entry.body), info.getCharset()),
+	                Collections.<String, List<String>>emptyMap(), codec);
+	    }
+	    catch (IOException ioe) {
+	        throw new AthenahealthException("Cannot decode cached response", ioe);
+	    }
+	}
+
+	/**
+	 * Make the API call with a body which is streamed to the server as it is sent.
+	 *
+	 * A body which cannot be sent twice is sent only once: if the token is rejected, an
+	 * {@link AuthenticationException} is thrown rather than retrying, and the retry policy does
+	 * not apply.
+	 *
+	 * @param method     HTTP method to use
+	 * @param practiceId practice ID to use, or empty for none
+	 * @param path       URI to find
+	 * @param body       the request body
+	 * @param headers    key-value pairs of request headers
+	 * @return the JSON-decoded response
+	 *
+	 * @throws AthenahealthException If there is an error making the call.
+	 *                               API-level errors are reported in the return-value.
+	 */
+	Object upload(String method, String practiceId, String path, RequestBody body, Map<String, String> headers) throws AthenahealthException {
+	    Interceptor[] chain = _interceptors;
+	    if (chain.length == 0)
+	        return send(method, practiceId, path, null, body, headers, null, null, null);
+
+	    final Interceptor.Call call = new Interceptor.Call(method, practiceId, path, null, headers, false);
+	    return intercept(chain, call,
+	            () -> send(method, practiceId, call.getPath(), null, body, call.getHeaders(), null, null, null));
+	}
+
+	/**
+	 * Append parameters to a path as a query string.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters, or null for none
+	 * @return the path with its query string
+	 */
+	String appendQuery(String path, Map<String, String> parameters) {
+		if (parameters == null)
+			return path;
+
+		return path + "?" + encodeUrl(parameters);
+	}
+
+	/**
+	 * Convert a link returned by the API, such as the <code>next</code> link of a page of results,
+	 * into a path relative to the API version.  Such links already include the practice ID.
+	 *
+	 * @param link the link, either absolute or starting with the API version
+	 * @return the path to request with an empty practice ID
+	 */
+	String relativeLink(String link) {
+		String path = link;
+
+		String base = getBaseURL();
+		if (base != null && path.startsWith(base))
+			path = path.substring(base.length());
+
+		String prefix = "/" + version + "/";
+		if (path.startsWith(prefix))
+			path = path.substring(prefix.length() - 1);
+
+		return path;
+	}
+
+	/**
+	 * Make the API call.
+	 *
+	 * This method abstracts away the connection, streams, and readers necessary to make an HTTP
+	 * request.  It also adds in the Authorization header and token.
+	 *
+	 * @param method     HTTP method to use
+	 * @param practiceId practice ID to use, or empty for none
+	 * @param path       URI to find
+	 * @param parameters key-value pairs of request parameters
+	 * @param upload     a request body to stream instead of the parameters, or null
+	 * @param headers    key-value pairs of request headers
+	 * @param token      the access token to use
+	 * @param secondCall true if this is the retried request
+	 * @param sink       where to write a binary response, or null to return it in a JSONObject
+	 * @param codec      how to bind a successful response, or null to decode it as JSON
+	 * @param lookup     the response cache's lookup of this request, or null if it is not cached
+	 * @param exchange   accumulates the time spent exchanging the request with the server, in ns,
+	 *                   from when a connection is leased until the response has been read
+	 * @return the JSON-decoded response, or {@link #UNAUTHORIZED} if the token was rejected on the
+	 *         first call, or the response wrapped in {@link Throttled} if it was 429 Too Many Requests
+	 *
+	 * @throws AthenahealthException If there is an error making the call.
+	 *                               API-level errors are reported in the return-value.
+	 */
+	private Object call(String method, String practiceId, String path, Map<String, String> parameters, RequestBody upload, Map<String, String> headers, TokenManager.Token token, boolean secondCall, BinarySink sink, Codecs.Codec<?> codec, ResponseCache.Lookup lookup, AtomicLong exchange) throws AthenahealthException {
+	    RateLimiter limiter = getRateLimiter();
+	    if (limiter != null)
+	        limiter.acquire(practiceId);
+
+	    // Phase timings and sizes for the metrics
+	    final Metrics metrics = getMetrics();
+	    final long start = System.nanoTime();
+	    long leased = 0;
+	    long connected = 0;
+	    long responded = 0;
+	    int status = 0;
+	    long sent = 0;
+	    Metrics.CountingInputStream received = null;
+	    Metrics.CountingInputStream decoded = null;
+
+	    final ConnectionPool pool = getConnectionPool();
+	    ConnectionPool.Lease lease = null;
+	    InputStream body = null;
+	    OutputStream out = null;
+	    BufferedReader rd = null;
+	    BufferedInputStream in = null;
+	    try {
+	        // Join up a url and open a connection
+	        URL url = new URL(requestURL(practiceId, path));
+	        lease = pool.acquire(url, getSocketConnectTimeout());
+	        leased = System.nanoTime();
             HttpURLConnection conn = openConnection(url);
 	        conn.setRequestMethod(method);
 
 	        conn.setRequestProperty("Content-Type",  "application/x-www-form-urlencoded; charset=UTF-8");
 
 	        // Set the Authorization header using the token, then do the rest of the headers
-	        conn.setRequestProperty("Authorization", "Bearer " + token);
+	        conn.setRequestProperty("Authorization", "Bearer " + token.value);
+	        if (getCompression())
+	            conn.setRequestProperty("Accept-Encoding", ContentEncoding.ACCEPT);
 	        if (headers != null) {
 	            for (Map.Entry<String, String> pair : headers.entrySet()) {
 	                conn.setRequestProperty(pair.getKey(), pair.getValue());
 	            }
 	        }
 
-	        // Set the request parameters, if there are any
+	        // Encode the request parameters, if there are any, so that their length is sent up front.
+	        // A retry is buffered instead, since in streaming mode the connection would discard the
+	        // body of a second 401, and the caller gets that error response as it always has.
+	        byte[] form = null;
 	        if (parameters != null) {
-	            conn.setDoOutput(true);
-	            wr = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");
-	            wr.write(encodeUrl(parameters));
-	            wr.flush();
-	            wr.close();
+	            form = UrlEncodedForm.encode(parameters);
+	            if (!secondCall)
+	                conn.setFixedLengthStreamingMode(form.length);
 	        }
+	        else if (upload != null) {
+	            // Stream the body rather than letting the connection buffer it
+	            conn.setRequestProperty("Content-Type", upload.getContentType());
+	            long length = upload.getContentLength();
+	            if (length >= 0)
+	                conn.setFixedLengthStreamingMode(length);
+	            else
+	                conn.setChunkedStreamingMode(UPLOAD_CHUNK_SIZE);
+	        }
+	        conn.setDoOutput(form != null || upload != null);
 
-	        // If we get a 401, retry once
+	        conn.connect();
+	        connected = System.nanoTime();
+
+	        // Send the request parameters
+	        if (form != null) {
+	            out = conn.getOutputStream();
+	            out.write(form);
+	            out.close();
+	            sent = form.length;
+	        }
+	        else if (upload != null) {
+	            Metrics.CountingOutputStream counted = metrics == null ? null : Metrics.count(conn.getOutputStream());
+	            out = counted == null ? conn.getOutputStream() : counted;
+	            upload.writeTo(out);
+	            out.close();
+	            if (counted != null)
+	                sent = counted.getCount();
+	        }
+
+	        status = conn.getResponseCode();
+	        responded = System.nanoTime();
+
+	        // If we get a 401, let the caller retry once
 	        if (conn.getResponseCode() == 401 && !secondCall) {
-	            authenticate();
-	            return call(method, path, parameters, headers, true);
+	            if (metrics != null)
+	                metrics.unauthorizedRetry();
+	            ConnectionPool.drain(conn.getErrorStream());
+	            return UNAUTHORIZED;
+	        }
+
+	        // After a streamed upload is rejected, the connection discards the response
+	        if (conn.getResponseCode() == 401 && upload != null)
+	            throw new AuthenticationException("Access token rejected");
+
+	        noteThrottling(practiceId, conn.getResponseCode(), conn.getHeaderField("Retry-After"));
+
+	        // The cached response is still current
+	        if (lookup != null && conn.getResponseCode() == 304) {
+	            ResponseCache.Entry entry = lookup.notModified();
+	            if (entry != null)
+	                return decodeCached(entry, codec);
 	        }
 
 	        ResponseInfo info = getResponseInfo(conn, "UTF-8");
 
+	        // The API response is in the input stream on success and the error stream on failure.
+	        try {
+	            body = conn.getInputStream();
+	        }
+	        catch (IOException ioe) {
+	            body = conn.getErrorStream();
+	            if(body == null)
+	                throw ioe;
+	        }
+	        if (metrics != null)
+	            body = received = Metrics.count(body);
+
+	        // Decompress the body, whichever stream it is in
+	        InputStream raw = body;
+	        body = ContentEncoding.decode(body, conn.getHeaderField("Content-Encoding"));
+	        if (metrics != null)
+	            body = decoded = body == raw ? received : Metrics.count(body);
+
 	        String contentType = info.getContentType();
 
 	        Object response;
 	        // We may have binary data coming back. Only use text-oriented
 	        // readers when the stream is not binary.
-	        if(contentType != null && contentType.startsWith("image/"))
+	        if(sink != null && conn.getResponseCode() < 300 && isBinary(contentType))
+	        {
+	            // Hand the body straight to the caller's destination
+	            long length = sink.write(body);
+	            response = new JSONObject()
+	                    .put("binary", "true")
+	                    .put("contentType", conn.getContentType())
+	                    .put("length", length);
+	        }
+	        else if(contentType != null && contentType.startsWith("image/"))
 	        {
                 // This is binary data.
 	            long contentLength = conn.getContentLengthLong();
 	            if(contentLength > Integer.MAX_VALUE)
-	                throw new AthenahealthException("Binary response too big: " + contentLength + " > " + Integer.MAX_VALUE);
+	                throw new AthenahealthException("Binary response too big: " + contentLength + " > " + Integer.MAX_VALUE
+	                        + "; use download() to stream it instead");
 
-	            ByteArrayOutputStream baos = new ByteArrayOutputStream((int)contentLength);
-	            try {
-	                in = new BufferedInputStream(conn.getInputStream());
-	            }
-	            catch (IOException ioe) {
-                    in = new BufferedInputStream(conn.getErrorStream());
-	            }
+	            ByteArrayOutputStream baos = new ByteArrayOutputStream(contentLength > 0 ? (int)contentLength : 4096);
+	            in = new BufferedInputStream(body);
 	            byte[] buffer = new byte[4096];
 	            int c;
 	            while ((c = in.read(buffer)) != -1)
@@ -450,75 +1492,26 @@ public class APIConnection {
 
                 baos.close();
 
-                response = new JSONObject()
-                        .put("binary", "true")
-                        .put("contentType", conn.getContentType())
-                        .put("contents", baos.toByteArray());
+                response = binaryResponse(conn.getContentType(), baos.toByteArray());
+	        }
+	        else if(lookup != null && "application/json".equals(contentType))
+	        {
+	            // Keep a copy of the body for the cache
+	            byte[] bytes = body.readAllBytes();
+	            lookup.store(conn.getResponseCode(), bytes, conn.getContentType(), conn.getHeaderField("ETag"),
+	                    conn.getHeaderField("Last-Modified"), conn.getHeaderField("Cache-Control"));
+	            rd = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes), info.getCharset()));
+	            response = decodeResponse(conn.getResponseCode(), contentType, rd, conn.getHeaderFields(), codec);
 	        }
 	        else
 	        {
-	            // The API response is in the input stream on success and the error stream on failure.
-	            try {
-	                rd = new BufferedReader(new InputStreamReader(conn.getInputStream(), info.getCharset()));
-	            }
-	            catch (IOException e) {
-	                rd = new BufferedReader(new InputStreamReader(conn.getErrorStream(), info.getCharset()));
-	            }
-	            StringBuilder sb = new StringBuilder();
-	            String line;
-	            while ((line = rd.readLine()) != null) {
-	                sb.append(line);
-	            }
-	            rd.close();
-
-	            String rawResponse = sb.toString();
-
-	            if(conn.getResponseCode() == 503)
-	                throw new UnavailableException("Service Temporarily Unavailable: " + rawResponse);
-
-	            if(contentType == null)
-	                throw new AthenahealthException("Expected application/json response, got <null> instead.");
-
-	            if(!"application/json".equals(contentType))
-	            {
-	                if("text/xml".equals(contentType)
-	                   && null != rawResponse
-	                   && "<h1>Gateway Timeout</h1>".equals(rawResponse))
-	                    throw new CommunicationException("Service Temporarily Unavailable: " + rawResponse);
-	                else
-	                    throw new AthenahealthException("Expected application/json response, got "
-	                            + contentType + " instead."
-	                            + " Content=" + rawResponse + "; response code=" + conn.getResponseCode());
-	            }
-
-	            // If it won't parse as an object, it'll parse as an array.
-	            try {
-	                response = new JSONObject(rawResponse);
-	            }
-	            catch (JSONException e) {
-	                try {
-	                    response = new JSONArray(rawResponse);
-	                }
-	                catch (JSONException e2)
-	                {
-	                    if(Boolean.getBoolean("com.athenahealth.api.dump-response-on-JSON-error"))
-	                    {
-	                        System.err.println("Server response code: " + conn.getResponseCode());
-	                        Map<String,List<String>> responseHeaders = conn.getHeaderFields();
-	                        for(Map.Entry<String,List<String>> header : responseHeaders.entrySet())
-	                            for(String value : header.getValue())
-	                            {
-	                                if(header.getKey() == null || header.getKey().isEmpty())
-	                                    System.err.println("Status: " + value);
-	                                else
-	                                    System.err.println(header.getKey() + "=" + value);
-	                            }
-	                    }
-	                    throw new AthenahealthException("Cannot parse response from server as JSONObject or JSONArray: " + rawResponse, e2);
-	                }
-	            }
+	            rd = new BufferedReader(new InputStreamReader(body, info.getCharset()));
+	            response = decodeResponse(conn.getResponseCode(), contentType, rd, conn.getHeaderFields(), codec);
 	        }
 
+	        if (conn.getResponseCode() == 429)
+	            return new Throttled(response, parseRetryAfter(conn.getHeaderField("Retry-After")));
+
 	        return response;
 	    }
 	    catch (MalformedURLException mue)
@@ -531,18 +1524,773 @@ public class APIConnection {
         }
         finally
         {
-            if(wr != null) try { wr.close(); }
+            if(out != null) try { out.close(); }
             catch (IOException ioe) { ioe.printStackTrace(); }
 
+            // Drain whatever was not read so the connection can be reused
+            ConnectionPool.drain(body);
+
             if(in != null) try { in.close(); }
             catch (IOException ioe) { ioe.printStackTrace(); }
 
             if(rd != null) try { rd.close(); }
             catch (IOException ioe) { ioe.printStackTrace(); }
+
+            pool.release(lease);
+
+            if(leased != 0)
+                exchange.addAndGet(System.nanoTime() - leased);
+
+            if(metrics != null && responded != 0)
+                metrics.completed(method, path, status, connected - start, responded - connected,
+                        System.nanoTime() - responded, sent, received == null ? 0 : received.getCount(),
+                        decoded == null ? 0 : decoded.getCount());
         }
 	}
 
-	private static class ResponseInfo
+	/**
+	 * Somewhere to write the body of a binary response.
+	 */
+	interface BinarySink {
+	    /**
+	     * Write the whole body.
+	     *
+	     * @param body the body of the response
+	     * @return the number of bytes written
+	     */
+	    long write(InputStream body) throws IOException;
+	}
+
+	/**
+	 * Decide whether a response should be treated as binary data rather than text.
+	 *
+	 * @param contentType the media type of the response, without parameters
+	 * @return true unless the response is JSON, XML, or text
+	 */
+	private static boolean isBinary(String contentType) {
+	    if(contentType == null)
+	        return false;
+
+	    String type = contentType.toLowerCase(Locale.US);
+	    return !type.startsWith("text/")
+	            && !type.equals("application/json") && !type.endsWith("+json")
+	            && !type.equals("application/xml") && !type.endsWith("+xml");
+	}
+
+	/**
+	 * Copy a stream to a channel.  When the channel is a file, the copy is left to
+	 * {@link FileChannel#transferFrom}, which avoids copying through an intermediate buffer where
+	 * the platform allows it.
+	 *
+	 * @param in  the stream to read
+	 * @param out the channel to write, from its current position
+	 * @return the number of bytes copied
+	 */
+	private static long copy(InputStream in, WritableByteChannel out) throws IOException {
+	    ReadableByteChannel source = Channels.newChannel(in);
+	    long total = 0;
+
+	    if(out instanceof FileChannel) {
+	        FileChannel file = (FileChannel)out;
+	        long position = file.position();
+	        long n;
+	        while((n = file.transferFrom(source, position + total, Long.MAX_VALUE)) > 0)
+	            total += n;
+
+	        // transferFrom does not move the channel's position
+	        file.position(position + total);
+	        return total;
+	    }
+
+	    ByteBuffer buffer = ByteBuffer.allocate(65536);
+	    while(source.read(buffer) != -1) {
+	        buffer.flip();
+	        while(buffer.hasRemaining())
+	            total += out.write(buffer);
+	        buffer.clear();
+	    }
+
+	    return total;
+	}
+
+	/**
+	 * Wrap a binary response so that it can be returned like a JSON response.
+	 *
+	 * @param contentType the full Content-Type of the response
+	 * @param contents    the body of the response
+	 * @return a JSONObject holding the binary contents
+	 */
+	private JSONObject binaryResponse(String contentType, byte[] contents) {
+	    return new JSONObject()
+	            .put("binary", "true")
+	            .put("contentType", contentType)
+	            .put("contents", contents);
+	}
+
+	/**
+	 * Decode a textual API response into a JSONObject or JSONArray.
+	 *
+	 * JSON responses are parsed directly from the reader, without first collecting the body into
+	 * a String.  Other responses are only read in full to report them as errors.
+	 *
+	 * @param responseCode    the HTTP status code of the response
+	 * @param contentType     the media type of the response, without parameters
+	 * @param body            the body of the response
+	 * @param responseHeaders the response headers, dumped when the body cannot be parsed
+	 * @return the JSON-decoded response
+	 *
+	 * @throws AthenahealthException If the server reported an error or the response
+	 *                               cannot be decoded.
+	 * @throws IOException           If the body cannot be read.
+	 */
+	Object decodeResponse(int responseCode, String contentType, Reader body, Map<String, List<String>> responseHeaders) throws AthenahealthException, IOException {
+	    return decodeResponse(responseCode, contentType, body, responseHeaders, null);
+	}
+
+	/**
+	 * Decode a textual API response, binding it with a codec if it was successful.
+	 *
+	 * With a codec, the body is read straight into the bound object, without building a
+	 * JSONObject tree.  Error responses, which do not have the shape of the type bound to, are
+	 * decoded as JSON and thrown, except for 429 Too Many Requests, which is returned so that it
+	 * can be retried.
+	 *
+	 * @param responseCode    the HTTP status code of the response
+	 * @param contentType     the media type of the response, without parameters
+	 * @param body            the body of the response
+	 * @param responseHeaders the response headers, dumped when the body cannot be parsed
+	 * @param codec           how to bind a successful response, or null to decode it as JSON
+	 * @return the bound or JSON-decoded response
+	 *
+	 * @throws AthenahealthException If the server reported an error or the response
+	 *                               cannot be decoded.
+	 * @throws IOException           If the body cannot be read.
+	 */
+	Object decodeResponse(int responseCode, String contentType, Reader body, Map<String, List<String>> responseHeaders, Codecs.Codec<?> codec) throws AthenahealthException, IOException {
+	    if(responseCode == 503)
+	        throw new UnavailableException("Service Temporarily Unavailable: " + readFully(body),
+	                parseRetryAfter(header(responseHeaders, "Retry-After")));
+
+	    if(contentType == null)
+	        throw new AthenahealthException("Expected application/json response, got <null> instead.");
+
+	    if(!"application/json".equals(contentType))
+	    {
+	        String rawResponse = readFully(body);
+	        if("text/xml".equals(contentType)
+	           && "<h1>Gateway Timeout</h1>".equals(rawResponse.trim()))
+	            throw new CommunicationException("Service Temporarily Unavailable: " + rawResponse);
+	        else
+	            throw new AthenahealthException("Expected application/json response, got "
+	                    + contentType + " instead."
+	                    + " Content=" + rawResponse + "; response code=" + responseCode);
+	    }
+
+	    // Keep the start of the body to report if it cannot be parsed
+	    Excerpt excerpt = new Excerpt(body);
+	    try {
+	        if(codec == null || responseCode == 429)
+	            return parseJSON(new JSONTokener(excerpt));
+	        if(responseCode >= 300)
+	            throw rejected(responseCode, parseJSON(new JSONTokener(excerpt)));
+
+	        return codec.read(new JsonReader(excerpt));
+	    }
+	    catch (JSONException | NumberFormatException e)
+	    {
+	        if(Boolean.getBoolean("com.athenahealth.api.dump-response-on-JSON-error"))
+	        {
+	            System.err.println("Server response code: " + responseCode);
+	            for(Map.Entry<String,List<String>> header : responseHeaders.entrySet())
+	                for(String value : header.getValue())
+	                {
+	                    if(header.getKey() == null || header.getKey().isEmpty())
+	                        System.err.println("Status: " + value);
+	                    else
+	                        System.err.println(header.getKey() + "=" + value);
+	                }
+	        }
+	        throw new AthenahealthException("Cannot parse response from server as "
+	                + (codec == null ? "JSONObject or JSONArray" : "the requested type") + ": " + excerpt.text()
+	                + " (" + e.getMessage() + ")", e);
+	    }
+	}
+
+	/**
+	 * A reader which keeps a copy of the first characters read through it, so that a response
+	 * which is parsed as it is read can still be quoted when it turns out to be malformed.
+	 */
+	private static final class Excerpt extends FilterReader {
+	    private static final int LENGTH = 1024;
+
+	    private final char[] start = new char[LENGTH];
+	    private int length;
+
+	    Excerpt(Reader in) {
+	        super(in);
+	    }
+
+	    @Override
+	    public int read() throws IOException {
+	        int c = in.read();
+	        if(c >= 0 && length < LENGTH)
+	            start[length++] = (char)c;
+	        return c;
+	    }
+
+	    @Override
+	    public int read(char[] buffer, int offset, int count) throws IOException {
+	        int n = in.read(buffer, offset, count);
+	        if(n > 0 && length < LENGTH) {
+	            int copied = Math.min(n, LENGTH - length);
+	            System.arraycopy(buffer, offset, start, length, copied);
+	            length += copied;
+	        }
+	        return n;
+	    }
+
+	    /**
+	     * Readers which support marks are read a character at a time by JSONTokener; this one
+	     * should be buffered instead.
+	     */
+	    @Override
+	    public boolean markSupported() {
+	        return false;
+	    }
+
+	    /**
+	     * Get the start of the body, reading on from where parsing stopped if less than the
+	     * excerpt's length has been read.
+	     *
+	     * @return up to the first 1024 characters, followed by "..." if the body is longer
+	     */
+	    String text() {
+	        try {
+	            char[] rest = new char[LENGTH];
+	            while(length < LENGTH && read(rest, 0, LENGTH - length) > 0)
+	                ;
+	            return new String(start, 0, length) + (length == LENGTH && in.read() >= 0 ? "..." : "");
+	        }
+	        catch (IOException e) {
+	            return new String(start, 0, length) + "...";
+	        }
+	    }
+	}
+
+	/**
+	 * Describe an error response to a call whose response was to be bound.
+	 *
+	 * @param responseCode the HTTP status code of the response
+	 * @param response     the JSON-decoded response
+	 * @return the exception to throw
+	 */
+	private static AthenahealthException rejected(int responseCode, Object response) {
+	    String message = response instanceof JSONObject ? ((JSONObject)response).optString("error", null) : null;
+	    return new AthenahealthException("Request failed with response code " + responseCode + ": "
+	            + (message != null ? message : response));
+	}
+
+	/**
+	 * Parse a JSONObject or JSONArray, choosing between them by the first non-whitespace
+	 * character so that the input is only ever parsed once.
+	 *
+	 * @param tokener the source of the JSON text
+	 * @return the JSONObject or JSONArray
+	 *
+	 * @throws JSONException If the text is not a JSON object or array.
+	 */
+	private static Object parseJSON(JSONTokener tokener) {
+	    char c = tokener.nextClean();
+
+	    // Skip a byte order mark, which some servers send with UTF-8
+	    if(c == '\uFEFF')
+	        c = tokener.nextClean();
+
+	    switch(c) {
+	    case '{':
+	        tokener.back();
+	        return new JSONObject(tokener);
+	    case '[':
+	        tokener.back();
+	        return new JSONArray(tokener);
+	    case 0:
+	        throw tokener.syntaxError("Empty response");
+	    default:
+	        throw tokener.syntaxError("Expected '{' or '[' but found '" + c + "'");
+	    }
+	}
+
+	/**
+	 * Read everything that is left in a reader.
+	 *
+	 * @param rd the reader
+	 * @return the text that was read
+	 */
+	private static String readFully(Reader rd) throws IOException {
+	    final StringBuilder sb = new StringBuilder();
+	    final char[] buffer = new char[1024];
+	    int c;
+	    while ((c = rd.read(buffer)) != -1)
+	        sb.append(buffer, 0, c);
+
+	    return sb.toString();
+	}
+
+	/**
+	 * Build the request for an asynchronous API call.
+	 *
+	 * @param method     HTTP method to use
+	 * @param practiceId practice ID to use, or empty for none
+	 * @param path       URI to find
+	 * @param parameters key-value pairs of request parameters
+	 * @param headers    key-value pairs of request headers
+	 * @param token      the access token to use
+	 * @return the request, ready to send
+	 *
+	 * @throws AthenahealthException If the URL or one of the headers is invalid.
+	 */
+	private HttpRequest buildRequest(String method, String practiceId, String path, Map<String, String> parameters, Map<String, String> headers, TokenManager.Token token) throws AthenahealthException {
+	    try {
+	        HttpRequest.Builder builder = HttpRequest.newBuilder(new URI(requestURL(practiceId, path)));
+	        if(getSocketReadTimeout() > 0)
+	            builder.timeout(Duration.ofMillis(getSocketReadTimeout()));
+
+	        builder.header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+
+	        // Set the Authorization header using the token, then do the rest of the headers
+	        builder.header("Authorization", "Bearer " + token.value);
+	        if (getCompression())
+	            builder.header("Accept-Encoding", ContentEncoding.ACCEPT);
+	        if (headers != null) {
+	            for (Map.Entry<String, String> pair : headers.entrySet()) {
+	                builder.setHeader(pair.getKey(), pair.getValue());
+	            }
+	        }
+
+	        // Set the request parameters, if there are any
+	        if (parameters != null)
+	            builder.method(method, HttpRequest.BodyPublishers.ofByteArray(UrlEncodedForm.encode(parameters)));
+	        else
+	            builder.method(method, HttpRequest.BodyPublishers.noBody());
+
+	        return builder.build();
+	    }
+	    catch (URISyntaxException use)
+	    {
+	        throw new AthenahealthException("Invalid URL", use);
+	    }
+	    catch (IllegalArgumentException iae)
+	    {
+	        throw new AthenahealthException("Invalid request", iae);
+	    }
+	}
+
+	/**
+	 * Make the API call without blocking.
+	 *
+	 * This is the asynchronous counterpart of {@link #call}: a 401 response triggers a single
+	 * re-authentication and retry, and the response is decoded in the same way.
+	 *
+	 * @param method     HTTP method to use
+	 * @param practiceId practice ID to use, or empty for none
+	 * @param path       URI to find
+	 * @param parameters key-value pairs of request parameters
+	 * @param headers    key-value pairs of request headers
+	 * @return a future holding the JSON-decoded response
+	 */
+	CompletableFuture<Object> callAsync(final String method, final String practiceId, final String path, final Map<String, String> parameters, Map<String, String> headers) {
+	    final Interceptor[] chain = _interceptors;
+	    if (chain.length == 0)
+	        return dispatchAsync(method, practiceId, path, parameters, headers);
+
+	    final Interceptor.Call call = new Interceptor.Call(method, practiceId, path, parameters, headers, true);
+	    final CompletableFuture<Object> result = new CompletableFuture<Object>();
+	    CompletableFuture<Object> sent;
+	    try {
+	        Object response = call.before(chain);
+	        sent = response != null
+	            ? CompletableFuture.completedFuture(response)
+	            : dispatchAsync(method, practiceId, call.getPath(), call.getParameters(), call.getHeaders());
+	    }
+	    catch (AthenahealthException e) {
+	        call.failed(chain, e);
+	        result.completeExceptionally(e);
+	        return result;
+	    }
+
+	    sent.whenComplete((response, error) -> {
+	        Throwable cause = error == null ? null : unwrap(error);
+	        if (cause == null) {
+	            try {
+	                result.complete(call.after(chain, response));
+	                return;
+	            }
+	            catch (AthenahealthException e) {
+	                cause = e;
+	            }
+	        }
+
+	        if (cause instanceof AthenahealthException)
+	            call.failed(chain, (AthenahealthException)cause);
+	        result.completeExceptionally(cause);
+	    });
+
+	    return result;
+	}
+
+	/**
+	 * Answer the call from the response cache, or share or send it, without blocking.
+	 */
+	private CompletableFuture<Object> dispatchAsync(final String method, final String practiceId, final String path, final Map<String, String> parameters, Map<String, String> headers) {
+	    final CompletableFuture<Object> result = new CompletableFuture<Object>();
+	    final ResponseCache.Lookup lookup = lookup(method, practiceId, path, parameters);
+	    if (lookup != null) {
+	        ResponseCache.Entry entry = lookup.fresh();
+	        if (entry != null) {
+	            try {
+	                result.complete(decodeCached(entry));
+	            }
+	            catch (AthenahealthException | RuntimeException e) {
+	                result.completeExceptionally(e);
+	            }
+	            return result;
+	        }
+
+	        headers = lookup.conditionalHeaders(headers);
+	    }
+
+	    final Map<String, String> requestHeaders = headers;
+	    if (coalesce(method, parameters))
+	        return coalescer.callAsync(RequestCoalescer.key(practiceId, path, headers),
+	                () -> sendAsync(method, practiceId, path, parameters, requestHeaders, lookup, result));
+
+	    return sendAsync(method, practiceId, path, parameters, requestHeaders, lookup, result);
+	}
+
+	/**
+	 * Send the request without blocking, retrying it as the retry policy allows.
+	 */
+	private CompletableFuture<Object> sendAsync(final String method, final String practiceId, final String path, final Map<String, String> parameters, final Map<String, String> headers, final ResponseCache.Lookup lookup, final CompletableFuture<Object> result) {
+	    RetryPolicy policy = getRetryPolicy();
+	    if (policy != null) {
+	        policy.deposit();
+	        if (!policy.isRetryable(method, path))
+	            policy = null;
+	    }
+
+	    attemptAsync(method, practiceId, path, parameters, headers, lookup, policy, 1, result);
+	    return result;
+	}
+
+	/**
+	 * Make one attempt at the request without blocking, once an access token is available, and
+	 * schedule the next attempt if it fails and the retry policy allows.
+	 */
+	private void attemptAsync(final String method, final String practiceId, final String path, final Map<String, String> parameters, final Map<String, String> headers, final ResponseCache.Lookup lookup, final RetryPolicy policy, final int attempt, final CompletableFuture<Object> result) {
+	    final CompletableFuture<Object> current = new CompletableFuture<Object>();
+	    final ConcurrencyLimiter concurrency = getConcurrencyLimiter();
+	    if (concurrency == null)
+	        guardAsync(method, practiceId, path, parameters, headers, lookup, null, current);
+	    else
+	        concurrency.acquireAsync().whenComplete((slot, error) -> {
+	            if (error != null)
+	                current.completeExceptionally(unwrap(error));
+	            else
+	                guardAsync(method, practiceId, path, parameters, headers, lookup, concurrency, current);
+	        });
+
+	    current.whenComplete((response, error) -> {
+	        Throwable cause = error == null ? null : unwrap(error);
+	        long delay = -1;
+	        if (policy != null) {
+	            if (response instanceof Throttled)
+	                delay = policy.backoff(attempt, ((Throttled)response).retryAfter);
+	            else if (cause instanceof AthenahealthException && policy.isRetryable((AthenahealthException)cause))
+	                delay = policy.backoff(attempt, retryAfter(cause));
+	        }
+
+	        if (delay >= 0)
+	            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() ->
+	                    attemptAsync(method, practiceId, path, parameters, headers, lookup, policy, attempt + 1, result));
+	        else if (cause != null)
+	            result.completeExceptionally(cause);
+	        else
+	            result.complete(response instanceof Throttled ? ((Throttled)response).response : response);
+	    });
+	}
+
+	/**
+	 * Send one attempt without blocking, once the concurrency limiter has let it through, and
+	 * record its outcome with the circuit breaker and the concurrency limiter.
+	 */
+	private void guardAsync(final String method, final String practiceId, final String path, final Map<String, String> parameters, final Map<String, String> headers, final ResponseCache.Lookup lookup, final ConcurrencyLimiter concurrency, final CompletableFuture<Object> current) {
+	    CircuitBreaker breaker = getCircuitBreaker();
+	    CircuitBreaker.Circuit acquired = null;
+	    try {
+	        if (breaker != null)
+	            acquired = breaker.acquire(path);
+	    }
+	    catch (CircuitOpenException e) {
+	        if (concurrency != null)
+	            concurrency.release();
+	        current.completeExceptionally(e);
+	        return;
+	    }
+
+	    final CircuitBreaker.Circuit circuit = acquired;
+	    final AtomicLong exchange = new AtomicLong();
+	    final CompletableFuture<Object> sent = new CompletableFuture<Object>();
+	    tokens.getAsync().whenComplete((token, error) -> {
+	        if (error != null)
+	            sent.completeExceptionally(unwrap(error));
+	        else
+	            callAsync(method, practiceId, path, parameters, headers, token, false, lookup, exchange, sent);
+	    });
+
+	    sent.whenComplete((response, error) -> {
+	        Throwable cause = error == null ? null : unwrap(error);
+	        Metrics metrics = getMetrics();
+	        if (metrics != null && cause != null)
+	            metrics.failed(method, path, cause);
+
+	        boolean failed = cause instanceof CommunicationException;
+	        if (cause instanceof RateLimitException) {
+	            // The request was never sent
+	            if (circuit != null)
+	                circuit.release();
+	            if (concurrency != null)
+	                concurrency.release();
+	        }
+	        else {
+	            if (circuit != null)
+	                circuit.record(exchange.get(), failed);
+	            if (concurrency != null)
+	                concurrency.release(path, exchange.get(), failed || response instanceof Throttled);
+	        }
+
+	        if (cause != null)
+	            current.completeExceptionally(cause);
+	        else
+	            current.complete(response);
+	    });
+	}
+
+	/**
+	 * Make one attempt at an API call without blocking.
+	 *
+	 * @param method     HTTP method to use
+	 * @param practiceId practice ID to use, or empty for none
+	 * @param path       URI to find
+	 * @param parameters key-value pairs of request parameters
+	 * @param headers    key-value pairs of request headers
+	 * @param token      the access token to use
+	 * @param secondCall true if this is the retried request
+	 * @param lookup     the response cache's lookup of this request, or null if it is not cached
+	 * @param exchange   accumulates the time spent exchanging the request with the server, in ns
+	 * @param result     the future to complete with the JSON-decoded response
+	 */
+	private void callAsync(final String method, final String practiceId, final String path, final Map<String, String> parameters, final Map<String, String> headers, final TokenManager.Token token, boolean secondCall, final ResponseCache.Lookup lookup, final AtomicLong exchange, final CompletableFuture<Object> result) {
+	    final HttpRequest request;
+	    try {
+	        request = buildRequest(method, practiceId, path, parameters, headers, token);
+	    }
+	    catch (AthenahealthException e) {
+	        result.completeExceptionally(e);
+	        return;
+	    }
+
+	    // Wait for the rate limiter without holding a thread
+	    RateLimiter limiter = getRateLimiter();
+	    if (limiter != null) {
+	        long delay;
+	        try {
+	            delay = limiter.reserve(practiceId);
+	        }
+	        catch (RateLimitException e) {
+	            result.completeExceptionally(e);
+	            return;
+	        }
+
+	        if (delay > 0) {
+	            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() ->
+	                    exchangeAsync(request, method, practiceId, path, parameters, headers, token, secondCall, lookup, exchange, result));
+	            return;
+	        }
+	    }
+
+	    exchangeAsync(request, method, practiceId, path, parameters, headers, token, secondCall, lookup, exchange, result);
+	}
+
+	/**
+	 * Send a request without blocking and complete the result with its decoded response.
+	 */
+	private void exchangeAsync(final HttpRequest request, final String method, final String practiceId, final String path, final Map<String, String> parameters, final Map<String, String> headers, final TokenManager.Token token, boolean secondCall, final ResponseCache.Lookup lookup, final AtomicLong exchange, final CompletableFuture<Object> result) {
+	    final Metrics metrics = getMetrics();
+	    final long start = System.nanoTime();
+	    final AtomicLong responded = new AtomicLong();
+	    HttpResponse.BodyHandler<byte[]> handler = HttpResponse.BodyHandlers.ofByteArray();
+	    if (metrics != null) {
+	        // Note when the headers arrive, before the body is read
+	        handler = info -> {
+	            responded.set(System.nanoTime());
+	            return HttpResponse.BodySubscribers.ofByteArray();
+	        };
+	    }
+
+	    getHttpClient().sendAsync(request, handler).whenComplete((response, failure) -> {
+	        exchange.addAndGet(System.nanoTime() - start);
+
+	        // Decompress the body
+	        Throwable error = failure;
+	        byte[] body = null;
+	        if (response != null) {
+	            try {
+	                body = ContentEncoding.decode(response.body(), response.headers().firstValue("Content-Encoding").orElse(null));
+	            }
+	            catch (IOException ioe) {
+	                error = ioe;
+	            }
+	        }
+
+	        if (metrics != null && response != null)
+	            metrics.completed(method, path, response.statusCode(), -1, responded.get() - start,
+	                    System.nanoTime() - responded.get(), request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(0L),
+	                    response.body().length, body == null ? 0 : body.length);
+
+	        if (error != null) {
+	            Throwable cause = unwrap(error);
+	            if (cause instanceof IOException)
+	                cause = new CommunicationException("I/O error during call", cause);
+	            result.completeExceptionally(cause);
+	            return;
+	        }
+
+	        // If we get a 401, retry once
+	        if (response.statusCode() == 401 && !secondCall) {
+	            if (metrics != null)
+	                metrics.unauthorizedRetry();
+	            tokens.refreshAsync(token).whenComplete((fresh, refreshError) -> {
+	                if (refreshError != null)
+	                    result.completeExceptionally(unwrap(refreshError));
+	                else
+	                    callAsync(method, practiceId, path, parameters, headers, fresh, true, lookup, exchange, result);
+	            });
+	            return;
+	        }
+
+	        noteThrottling(practiceId, response.statusCode(), response.headers().firstValue("Retry-After").orElse(null));
+
+	        try {
+	            // The cached response is still current
+	            if (lookup != null && response.statusCode() == 304) {
+	                ResponseCache.Entry entry = lookup.notModified();
+	                if (entry != null) {
+	                    result.complete(decodeCached(entry));
+	                    return;
+	                }
+	            }
+
+	            String fullContentType = response.headers().firstValue("Content-Type").orElse(null);
+	            ResponseInfo info = getResponseInfo(fullContentType, "UTF-8");
+	            String contentType = info.getContentType();
+
+	            if (lookup != null && "application/json".equals(contentType))
+	                lookup.store(response.statusCode(), body, fullContentType,
+	                        response.headers().firstValue("ETag").orElse(null),
+	                        response.headers().firstValue("Last-Modified").orElse(null),
+	                        response.headers().firstValue("Cache-Control").orElse(null));
+
+	            Object decoded;
+	            if (contentType != null && contentType.startsWith("image/"))
+	                decoded = binaryResponse(fullContentType, body);
+	            else
+	                decoded = decodeResponse(response.statusCode(), contentType,
+	                        new InputStreamReader(new ByteArrayInputStream(body), info.getCharset()),
+	                        response.headers().map());
+
+	            if (response.statusCode() == 429)
+	                decoded = new Throttled(decoded, parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null)));
+
+	            result.complete(decoded);
+	        }
+	        catch (AthenahealthException | RuntimeException e) {
+	            result.completeExceptionally(e);
+	        }
+	        catch (IOException ioe) {
+	            result.completeExceptionally(new CommunicationException("I/O error during call", ioe));
+	        }
+	    });
+	}
+
+	/**
+	 * Tell the rate limiter if the server asked for calls to slow down.
+	 *
+	 * @param practiceId   practice ID of the call
+	 * @param responseCode the HTTP status code of the response
+	 * @param retryAfter   the Retry-After header of the response, or null
+	 */
+	private void noteThrottling(String practiceId, int responseCode, String retryAfter) {
+	    RateLimiter limiter = getRateLimiter();
+	    if (limiter == null)
+	        return;
+
+	    long wait = parseRetryAfter(retryAfter);
+	    if (responseCode == 429 || (responseCode == 503 && wait >= 0))
+	        limiter.throttled(practiceId, wait);
+	}
+
+	/**
+	 * Parse a Retry-After header, which holds either a number of seconds or an HTTP date.
+	 *
+	 * @param value the header value, or null
+	 * @return how long to wait, in ms, or -1 if there is no valid header
+	 */
+	static long parseRetryAfter(String value) {
+	    if (value == null || value.trim().isEmpty())
+	        return -1;
+
+	    String trimmed = value.trim();
+	    try {
+	        return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(trimmed)));
+	    }
+	    catch (NumberFormatException nfe) {
+	        // Not a number of seconds; try a date
+	    }
+
+	    try {
+	        ZonedDateTime date = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME);
+	        return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+	    }
+	    catch (DateTimeParseException dtpe) {
+	        return -1;
+	    }
+	}
+
+	/**
+	 * Find a response header, ignoring the case of its name.
+	 *
+	 * @param headers the response headers
+	 * @param name    the name of the header
+	 * @return the first value of the header, or null if there is none
+	 */
+	private static String header(Map<String, List<String>> headers, String name) {
+	    for (Map.Entry<String, List<String>> header : headers.entrySet())
+	        if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty())
+	            return header.getValue().get(0);
+
+	    return null;
+	}
+
+	/**
+	 * Strip the wrappers that {@link CompletableFuture} puts around failures.
+	 */
+	private static Throwable unwrap(Throwable t) {
+	    while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null)
+	        t = t.getCause();
+	    return t;
+	}
+
+	static class ResponseInfo
 	{
 	    String contentType;
 	    String charset;
@@ -563,9 +2311,16 @@ public class APIConnection {
 
 	private ResponseInfo getResponseInfo(HttpURLConnection conn, String defaultCharset)
 	{
-	    String contentType = conn.getContentType();
+	    return getResponseInfo(conn.getContentType(), defaultCharset);
+	}
+
+	ResponseInfo getResponseInfo(String contentType, String defaultCharset)
+	{
         String charset = defaultCharset;
 
+        if(contentType == null)
+            return new ResponseInfo(null, charset);
+
 	    int pos = contentType.indexOf(';');
 	    if(pos != -1) {
 	        // Use of Locale.US here is justified, since the content-type
@@ -652,13 +2407,294 @@ public class APIConnection {
      *                               API-level errors are reported in the return-value.
 	 */
 	public Object GET(String path, Map<String, String> parameters, Map<String, String> headers) throws AthenahealthException {
-		String query = "";
-		if (parameters != null) {
-			query = "?" + encodeUrl(parameters);
-		}
-		return call("GET", path + query, null, headers, false);
+		return call("GET", practiceId, appendQuery(path, parameters), null, headers);
+	}
+
+	/**
+	 * Perform a GET request, binding the response straight to a record or other class without
+	 * decoding it into a JSONObject first.  See {@link Codecs} for the types that can be bound.
+	 *
+	 * @param path URI to access
+	 * @param type the type to bind the response to
+	 * @param <T>  the type
+	 * @return the bound response
+	 *
+	 * @throws AthenahealthException    If there is an error making the call, or the API reports
+	 *                                  an error.
+	 * @throws IllegalArgumentException If the type cannot be bound.
+	 */
+	public <T> T GETAs(String path, Class<T> type) throws AthenahealthException {
+		return GETAs(path, null, null, type);
+	}
+
+	/**
+	 * Perform a GET request, binding the response straight to a record or other class.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param type       the type to bind the response to
+	 * @param <T>        the type
+	 * @return the bound response
+	 *
+	 * @throws AthenahealthException    If there is an error making the call, or the API reports
+	 *                                  an error.
+	 * @throws IllegalArgumentException If the type cannot be bound.
+	 */
+	public <T> T GETAs(String path, Map<String, String> parameters, Class<T> type) throws AthenahealthException {
+		return GETAs(path, parameters, null, type);
+	}
+
+	/**
+	 * Perform a GET request, binding the response straight to a record or other class.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param headers    the request headers
+	 * @param type       the type to bind the response to
+	 * @param <T>        the type
+	 * @return the bound response
+	 *
+	 * @throws AthenahealthException    If there is an error making the call, or the API reports
+	 *                                  an error.
+	 * @throws IllegalArgumentException If the type cannot be bound.
+	 */
+	public <T> T GETAs(String path, Map<String, String> parameters, Map<String, String> headers, Class<T> type) throws AthenahealthException {
+		return type.cast(callAs("GET", practiceId, appendQuery(path, parameters), headers, type));
+	}
+
+	/**
+	 * Perform a GET request, binding the response straight to a generic type, such as a list of
+	 * records.
+	 *
+	 * @param path URI to access
+	 * @param type the type to bind the response to
+	 * @param <T>  the type
+	 * @return the bound response
+	 *
+	 * @throws AthenahealthException    If there is an error making the call, or the API reports
+	 *                                  an error.
+	 * @throws IllegalArgumentException If the type cannot be bound.
+	 */
+	public <T> T GETAs(String path, TypeRef<T> type) throws AthenahealthException {
+		return GETAs(path, null, null, type);
+	}
+
+	/**
+	 * Perform a GET request, binding the response straight to a generic type.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param type       the type to bind the response to
+	 * @param <T>        the type
+	 * @return the bound response
+	 *
+	 * @throws AthenahealthException    If there is an error making the call, or the API reports
+	 *                                  an error.
+	 * @throws IllegalArgumentException If the type cannot be bound.
+	 */
+	public <T> T GETAs(String path, Map<String, String> parameters, TypeRef<T> type) throws AthenahealthException {
+		return GETAs(path, parameters, null, type);
+	}
+
+	/**
+	 * Perform a GET request, binding the response straight to a generic type.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param headers    the request headers
+	 * @param type       the type to bind the response to
+	 * @param <T>        the type
+	 * @return the bound response
+	 *
+	 * @throws AthenahealthException    If there is an error making the call, or the API reports
+	 *                                  an error.
+	 * @throws IllegalArgumentException If the type cannot be bound.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T GETAs(String path, Map<String, String> parameters, Map<String, String> headers, TypeRef<T> type) throws AthenahealthException {
+		return (T)callAs("GET", practiceId, appendQuery(path, parameters), headers, type.getType());
+	}
+
+	/**
+	 * Make the API call and bind its response to a type.
+	 *
+	 * A response supplied by an interceptor as a JSONObject or JSONArray is bound too, from its
+	 * text.
+	 *
+	 * @param method     HTTP method to use
+	 * @param practiceId practice ID to use, or empty for none
+	 * @param path       URI to find, with its query string
+	 * @param headers    key-value pairs of request headers
+	 * @param type       the type to bind the response to
+	 * @return the bound response
+	 *
+	 * @throws AthenahealthException If there is an error making the call, or the API reports
+	 *                               an error.
+	 */
+	Object callAs(String method, String practiceId, String path, Map<String, String> headers, Type type) throws AthenahealthException {
+	    Codecs.Codec<?> codec = Codecs.get(type);
+	    Object response = call(method, practiceId, path, null, headers, null, codec);
+
+	    Class<?> raw = TypeRef.raw(type);
+	    if ((response instanceof JSONObject || response instanceof JSONArray) && !raw.isInstance(response)) {
+	        try {
+	            response = codec.read(new JsonReader(new StringReader(response.toString())));
+	        }
+	        catch (IOException | JSONException | NumberFormatException e) {
+	            throw new AthenahealthException("Cannot bind response to " + type.getTypeName() + ": " + e.getMessage(), e);
+	        }
+	    }
+	    return response;
+	}
+
+
+	/**
+	 * Perform a GET request without blocking.
+	 *
+	 * @param path URI to access
+	 * @return a future holding the JSON-decoded response
+	 */
+	public CompletableFuture<Object> GETAsync(String path) {
+		return GETAsync(path, null, null);
+	}
+
+	/**
+	 * Perform a GET request without blocking.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @return a future holding the JSON-decoded response
+	 */
+	public CompletableFuture<Object> GETAsync(String path, Map<String, String> parameters) {
+		return GETAsync(path, parameters, null);
+	}
+
+	/**
+	 * Perform a GET request without blocking.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param headers    the request headers
+	 * @return a future holding the JSON-decoded response.  If there is an error making the call,
+	 *         the future completes exceptionally with an {@link AthenahealthException}.
+	 */
+	public CompletableFuture<Object> GETAsync(String path, Map<String, String> parameters, Map<String, String> headers) {
+		return callAsync("GET", practiceId, appendQuery(path, parameters), null, headers);
+	}
+
+
+	/**
+	 * Perform a GET request for a document, image, or other binary resource, writing the
+	 * response to a stream as it arrives.
+	 *
+	 * The body of any successful response which is not JSON, XML, or text, such as image/jpeg or
+	 * application/pdf, is written to <code>out</code> without being held in memory, however large
+	 * it is.  The stream is not closed.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param headers    the request headers
+	 * @param out        where to write the response
+	 * @return a JSONObject with "binary", "contentType", and "length" (the number of bytes
+	 *         written) if the response was written, or else the JSON-decoded response
+	 *
+	 * @throws AthenahealthException If there is an error making the call.
+	 *                               API-level errors are reported in the return-value.
+	 */
+	public Object download(String path, Map<String, String> parameters, Map<String, String> headers, final OutputStream out) throws AthenahealthException {
+		return download(practiceId, path, parameters, headers, out);
+	}
+
+	/**
+	 * Perform a GET request for a binary resource, writing the response to a channel as it
+	 * arrives.  A {@link FileChannel} is written from its current position, which is then
+	 * advanced past the response.  The channel is not closed.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param headers    the request headers
+	 * @param out        where to write the response
+	 * @return a JSONObject with "binary", "contentType", and "length" (the number of bytes
+	 *         written) if the response was written, or else the JSON-decoded response
+	 *
+	 * @throws AthenahealthException If there is an error making the call.
+	 *                               API-level errors are reported in the return-value.
+	 *
+	 * @see #download(String, Map, Map, OutputStream)
+	 */
+	public Object download(String path, Map<String, String> parameters, Map<String, String> headers, final WritableByteChannel out) throws AthenahealthException {
+		return download(practiceId, path, parameters, headers, out);
+	}
+
+	/**
+	 * Perform a GET request for a binary resource, writing the response to a file as it
+	 * arrives.  The file is created or replaced only if a binary response is received.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param headers    the request headers
+	 * @param file       where to write the response
+	 * @return a JSONObject with "binary", "contentType", and "length" (the number of bytes
+	 *         written) if the response was written, or else the JSON-decoded response
+	 *
+	 * @throws AthenahealthException If there is an error making the call.
+	 *                               API-level errors are reported in the return-value.
+	 *
+	 * @see #download(String, Map, Map, OutputStream)
+	 */
+	public Object download(String path, Map<String, String> parameters, Map<String, String> headers, final Path file) throws AthenahealthException {
+		return download(practiceId, path, parameters, headers, file);
+	}
+
+	Object download(String practiceId, String path, Map<String, String> parameters, Map<String, String> headers, final OutputStream out) throws AthenahealthException {
+		return call("GET", practiceId, appendQuery(path, parameters), null, headers, body -> body.transferTo(out));
+	}
+
+	Object download(String practiceId, String path, Map<String, String> parameters, Map<String, String> headers, final WritableByteChannel out) throws AthenahealthException {
+		return call("GET", practiceId, appendQuery(path, parameters), null, headers, body -> copy(body, out));
+	}
+
+	Object download(String practiceId, String path, Map<String, String> parameters, Map<String, String> headers, final Path file) throws AthenahealthException {
+		return call("GET", practiceId, appendQuery(path, parameters), null, headers, body -> {
+			try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				return copy(body, out);
+			}
+		});
+	}
+
+
+	/**
+	 * Perform GET requests for every page of a list endpoint.
+	 *
+	 * Nothing is requested until the result is iterated.  Pages are then fetched one after
+	 * another by following their <code>next</code> links, with the next page requested in the
+	 * background while the current one is consumed.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters for the first page
+	 * @param listKey    the key under which each page holds its records, such as
+	 *                   "appointments", or null to use whichever list the page contains
+	 * @return the records of all pages
+	 */
+	public PagedResults GETAll(String path, Map<String, String> parameters, String listKey) {
+		return GETAll(path, parameters, null, listKey);
 	}
 
+	/**
+	 * Perform GET requests for every page of a list endpoint.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters for the first page
+	 * @param headers    the request headers
+	 * @param listKey    the key under which each page holds its records, such as
+	 *                   "appointments", or null to use whichever list the page contains
+	 * @return the records of all pages
+	 *
+	 * @see #GETAll(String, Map, String)
+	 */
+	public PagedResults GETAll(String path, Map<String, String> parameters, Map<String, String> headers, String listKey) {
+		return new PagedResults(this, practiceId, path, parameters, headers, listKey);
+	}
 
 	/**
 	 * Perform a POST request.
@@ -699,7 +2735,101 @@ public class APIConnection {
      *                               API-level errors are reported in the return-value.
 	 */
 	public Object POST(String path, Map<String, String> parameters, Map<String, String> headers) throws AthenahealthException {
-		return call("POST", path, parameters, headers, false);
+		return call("POST", practiceId, path, parameters, headers);
+	}
+
+	/**
+	 * Perform a POST request with a multipart/form-data body, such as a document upload.
+	 *
+	 * @param path URI to access
+	 * @param form the form to send
+	 * @return the JSON-decoded response
+	 *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+	 */
+	public Object upload(String path, MultipartForm form) throws AthenahealthException {
+		return upload(path, form, null);
+	}
+
+	/**
+	 * Perform a POST request with a multipart/form-data body, such as a document upload.
+	 *
+	 * The files in the form are streamed to the server as the request is sent.  If the form
+	 * contains a stream, it can only be sent once, so if the access token is rejected an
+	 * {@link AuthenticationException} is thrown instead of retrying.
+	 *
+	 * @param path    URI to access
+	 * @param form    the form to send
+	 * @param headers the request headers
+	 * @return the JSON-decoded response
+	 *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+	 */
+	public Object upload(String path, MultipartForm form, Map<String, String> headers) throws AthenahealthException {
+		return upload("POST", practiceId, path, form, headers);
+	}
+
+	/**
+	 * Perform a request whose parameters may repeat a name, such as a search for several
+	 * appointment types at once.  GET and DELETE send the form as the query string; other
+	 * methods send it as the request body.
+	 *
+	 * @param method  HTTP method to use
+	 * @param path    URI to access
+	 * @param form    the parameters, or null for none
+	 * @param headers the request headers
+	 * @return the JSON-decoded response
+	 *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+	 */
+	public Object request(String method, String path, UrlEncodedForm form, Map<String, String> headers) throws AthenahealthException {
+		return request(method, practiceId, path, form, headers);
+	}
+
+	Object request(String method, String practiceId, String path, UrlEncodedForm form, Map<String, String> headers) throws AthenahealthException {
+		if (form == null)
+			return call(method, practiceId, path, null, headers);
+		if ("GET".equals(method) || "DELETE".equals(method))
+			return call(method, practiceId, form.appendTo(path), null, headers);
+		return upload(method, practiceId, path, form, headers);
+	}
+
+
+	/**
+	 * Perform a POST request without blocking.
+	 *
+	 * @param path URI to access
+	 * @return a future holding the JSON-decoded response
+	 */
+	public CompletableFuture<Object> POSTAsync(String path) {
+		return POSTAsync(path, null, null);
+	}
+
+	/**
+	 * Perform a POST request without blocking.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @return a future holding the JSON-decoded response
+	 */
+	public CompletableFuture<Object> POSTAsync(String path, Map<String, String> parameters) {
+		return POSTAsync(path, parameters, null);
+	}
+
+	/**
+	 * Perform a POST request without blocking.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param headers    the request headers
+	 * @return a future holding the JSON-decoded response.  If there is an error making the call,
+	 *         the future completes exceptionally with an {@link AthenahealthException}.
+	 */
+	public CompletableFuture<Object> POSTAsync(String path, Map<String, String> parameters, Map<String, String> headers) {
+		return callAsync("POST", practiceId, path, parameters, headers);
 	}
 
 
@@ -742,7 +2872,42 @@ public class APIConnection {
      *                               API-level errors are reported in the return-value.
 	 */
 	public Object PUT(String path, Map<String, String> parameters, Map<String, String> headers) throws AthenahealthException {
-		return call("PUT", path, parameters, headers, false);
+		return call("PUT", practiceId, path, parameters, headers);
+	}
+
+
+	/**
+	 * Perform a PUT request without blocking.
+	 *
+	 * @param path URI to access
+	 * @return a future holding the JSON-decoded response
+	 */
+	public CompletableFuture<Object> PUTAsync(String path) {
+		return PUTAsync(path, null, null);
+	}
+
+	/**
+	 * Perform a PUT request without blocking.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @return a future holding the JSON-decoded response
+	 */
+	public CompletableFuture<Object> PUTAsync(String path, Map<String, String> parameters) {
+		return PUTAsync(path, parameters, null);
+	}
+
+	/**
+	 * Perform a PUT request without blocking.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param headers    the request headers
+	 * @return a future holding the JSON-decoded response.  If there is an error making the call,
+	 *         the future completes exceptionally with an {@link AthenahealthException}.
+	 */
+	public CompletableFuture<Object> PUTAsync(String path, Map<String, String> parameters, Map<String, String> headers) {
+		return callAsync("PUT", practiceId, path, parameters, headers);
 	}
 
 
@@ -785,11 +2950,42 @@ public class APIConnection {
      *                               API-level errors are reported in the return-value.
 	 */
 	public Object DELETE(String path, Map<String, String> parameters, Map<String, String> headers) throws AthenahealthException {
-		String query = "";
-		if (parameters != null) {
-			query = "?" + encodeUrl(parameters);
-		}
-		return call("DELETE", path + query, null, headers, false);
+		return call("DELETE", practiceId, appendQuery(path, parameters), null, headers);
+	}
+
+
+	/**
+	 * Perform a DELETE request without blocking.
+	 *
+	 * @param path URI to access
+	 * @return a future holding the JSON-decoded response
+	 */
+	public CompletableFuture<Object> DELETEAsync(String path) {
+		return DELETEAsync(path, null, null);
+	}
+
+	/**
+	 * Perform a DELETE request without blocking.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @return a future holding the JSON-decoded response
+	 */
+	public CompletableFuture<Object> DELETEAsync(String path, Map<String, String> parameters) {
+		return DELETEAsync(path, parameters, null);
+	}
+
+	/**
+	 * Perform a DELETE request without blocking.
+	 *
+	 * @param path       URI to access
+	 * @param parameters the request parameters
+	 * @param headers    the request headers
+	 * @return a future holding the JSON-decoded response.  If there is an error making the call,
+	 *         the future completes exceptionally with an {@link AthenahealthException}.
+	 */
+	public CompletableFuture<Object> DELETEAsync(String path, Map<String, String> parameters, Map<String, String> headers) {
+		return callAsync("DELETE", practiceId, appendQuery(path, parameters), null, headers);
 	}
 
 	/**
@@ -798,12 +2994,42 @@ public class APIConnection {
 	 * @return the access token
 	 */
 	public String getToken() {
-		return token;
+		TokenManager.Token token = tokens.current();
+		return token == null ? null : token.value;
+	}
+
+	/**
+	 * Returns a view of this connection which makes requests on behalf of the specified practice.
+	 *
+	 * The view shares this connection's access token, connection pool and settings, so one
+	 * connection can serve many practices at once.  Unlike {@link #setPracticeID}, it does not
+	 * change the practice ID used by this connection or by any other view.
+	 *
+	 * @param practiceId the practice ID to use for requests made through the view
+	 * @return the view
+	 */
+	public PracticeConnection forPractice(String practiceId) {
+		return new PracticeConnection(this, practiceId);
+	}
+
+	/**
+	 * Stop refreshing the access token in the background, and shut down the client used for
+	 * asynchronous requests where the Java runtime allows.  Requests in flight complete normally.
+	 * The connection may still be used afterwards, fetching a token on demand when the current
+	 * one expires.
+	 */
+	@Override
+	public void close() {
+		tokens.close();
+		resetHttpClient();
 	}
 
 	/**
 	 * Set the practice ID to use for requests.
 	 *
+	 * This affects every thread using this connection.  To work with several practices at once,
+	 * use {@link #forPractice} instead.
+	 *
 	 * @param practiceId the new practiceId
 	 */
 	public void setPracticeID(String practiceId) {
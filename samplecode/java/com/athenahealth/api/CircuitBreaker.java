@@ -0,0 +1,489 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sending calls to an endpoint which is failing, so that callers fail
+ * at once instead of waiting for it to time out.
+ *
+ * Calls are grouped by path template: the path without its query string,
+ * with every segment which contains a digit, such as an ID, replaced by
+ * "*".  So <code>/patients/123/appointments</code> and
+ * <code>/patients/456/appointments</code> share the template
+ * <code>patients/&#42;/appointments</code>.
+ *
+ * Each template has a circuit which records the outcome of its most recent
+ * calls.  A call fails if it throws a {@link CommunicationException}, such as
+ * a 503 or a timeout, and is slow if it succeeds but takes longer than the
+ * slow call duration.  Once enough calls have been recorded, a circuit opens
+ * when the share of failed calls or of slow calls reaches its threshold.
+ * While it is open, calls throw {@link CircuitOpenException}, an
+ * {@link UnavailableException}, without being sent.  The retry policy does
+ * not retry it, so the call fails fast.
+ *
+ * After the open duration, the circuit lets a few probe calls through.  If
+ * they all succeed in good time, it closes again; if any fails, it opens for
+ * another open duration.
+ */
+public class CircuitBreaker {
+    /**
+     * The state of a circuit.
+     */
+    public enum State {
+        /** Calls are sent and their outcomes recorded. */
+        CLOSED,
+        /** Calls fail without being sent. */
+        OPEN,
+        /** A few probe calls are sent to see whether the endpoint recovered. */
+        HALF_OPEN
+    }
+
+    /**
+     * Told when a circuit changes state.
+     */
+    public interface Listener {
+        /**
+         * Called after a circuit changes state.
+         *
+         * @param template The path template of the circuit.
+         * @param from     The old state.
+         * @param to       The new state.
+         */
+        void stateChanged(String template, State from, State to);
+    }
+
+    private volatile int windowSize = 20;
+    private volatile int minimumCalls = 10;
+    private volatile double failureRateThreshold = 0.5;
+    private volatile double slowCallRateThreshold = 0.5;
+    private volatile long slowCallDuration = 10000;
+    private volatile long openDuration = 30000;
+    private volatile int probes = 3;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Sets the number of recent calls whose outcome each circuit considers.
+     * The default is 20.  Circuits which already exist keep their size.
+     *
+     * @param size The number of calls.
+     */
+    public void setWindowSize(int size) {
+        if(size < 1)
+            throw new IllegalArgumentException("Window size must be at least 1");
+
+        windowSize = size;
+    }
+
+    /**
+     * Gets the number of recent calls whose outcome each circuit considers.
+     *
+     * @return The number of calls.
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Sets the number of calls a circuit must record before it may open.
+     * The default is 10.
+     *
+     * @param calls The number of calls.
+     */
+    public void setMinimumCalls(int calls) {
+        minimumCalls = calls;
+    }
+
+    /**
+     * Gets the number of calls a circuit must record before it may open.
+     *
+     * @return The number of calls.
+     */
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Sets the share of failed calls at which a circuit opens.  The default
+     * is 0.5.
+     *
+     * @param threshold The failure rate, between 0 and 1.
+     */
+    public void setFailureRateThreshold(double threshold) {
+        failureRateThreshold = threshold;
+    }
+
+    /**
+     * Gets the share of failed calls at which a circuit opens.
+     *
+     * @return The failure rate, between 0 and 1.
+     */
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Sets the share of slow calls at which a circuit opens.  The default is
+     * 0.5; a threshold above 1 means slow calls never open a circuit.
+     *
+     * @param threshold The slow call rate, between 0 and 1.
+     */
+    public void setSlowCallRateThreshold(double threshold) {
+        slowCallRateThreshold = threshold;
+    }
+
+    /**
+     * Gets the share of slow calls at which a circuit opens.
+     *
+     * @return The slow call rate, between 0 and 1.
+     */
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    /**
+     * Sets how long a successful call may take before it counts as slow.
+     * Only the time spent exchanging the request with the server counts, not
+     * waits on the client side for a token, the rate limiter or a connection.
+     * The default is 10s.
+     *
+     * @param duration The slow call duration, in ms.
+     */
+    public void setSlowCallDuration(long duration) {
+        slowCallDuration = duration;
+    }
+
+    /**
+     * Gets how long a successful call may take before it counts as slow.
+     *
+     * @return The slow call duration, in ms.
+     */
+    public long getSlowCallDuration() {
+        return slowCallDuration;
+    }
+
+    /**
+     * Sets how long a circuit stays open before it lets probe calls
+     * through.  The default is 30s.
+     *
+     * @param duration The open duration, in ms.
+     */
+    public void setOpenDuration(long duration) {
+        openDuration = duration;
+    }
+
+    /**
+     * Gets how long a circuit stays open before it lets probe calls through.
+     *
+     * @return The open duration, in ms.
+     */
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Sets the number of probe calls which must succeed for a half-open
+     * circuit to close.  The default is 3.
+     *
+     * @param probes The number of probe calls.
+     */
+    public void setProbeCalls(int probes) {
+        if(probes < 1)
+            throw new IllegalArgumentException("Probe calls must be at least 1");
+
+        this.probes = probes;
+    }
+
+    /**
+     * Gets the number of probe calls which must succeed for a half-open
+     * circuit to close.
+     *
+     * @return The number of probe calls.
+     */
+    public int getProbeCalls() {
+        return probes;
+    }
+
+    /**
+     * Adds a listener to be told when any circuit changes state.  Listeners
+     * are called on the thread which made the call that caused the change.
+     *
+     * @param listener The listener to add.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets the state of the circuit for a path.
+     *
+     * @param path The path, with or without IDs and a query string.
+     * @return The state of the path's circuit.
+     */
+    public State getState(String path) {
+        Circuit circuit = circuits.get(template(path));
+        return circuit == null ? State.CLOSED : circuit.state();
+    }
+
+    /**
+     * Gets the number of calls which failed because their circuit was open.
+     *
+     * @return The number of calls rejected.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Closes every circuit and forgets the calls they recorded.
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{ rejected=").append(rejected.get());
+        for(Circuit circuit : circuits.values())
+            if(circuit.state() != State.CLOSED)
+                sb.append(", ").append(circuit.template).append('=').append(circuit.state());
+
+        return sb.append(" }").toString();
+    }
+
+    /**
+     * Gets permission to make a call.
+     *
+     * @param path the path of the call
+     * @return the circuit to record the outcome of the call with
+     *
+     * @throws CircuitOpenException If the circuit is open.
+     */
+    Circuit acquire(String path) throws CircuitOpenException {
+        String template = template(path);
+        Circuit circuit = circuits.get(template);
+        if(circuit == null) {
+            Circuit created = new Circuit(template, windowSize);
+            circuit = circuits.putIfAbsent(template, created);
+            if(circuit == null)
+                circuit = created;
+        }
+
+        circuit.acquire();
+        return circuit;
+    }
+
+    /**
+     * Builds the path template which groups a path with the same path for
+     * other IDs: the query string and any leading or trailing slashes are
+     * stripped, and every segment which contains a digit becomes "*".
+     */
+    static String template(String path) {
+        int end = path.indexOf('?');
+        if(end < 0)
+            end = path.length();
+
+        int start = 0;
+        while(start < end && path.charAt(start) == '/')
+            start++;
+        while(end > start && path.charAt(end - 1) == '/')
+            end--;
+
+        StringBuilder sb = new StringBuilder(end - start);
+        int segment = start;
+        boolean digit = false;
+        for(int i = start; i <= end; i++) {
+            if(i == end || path.charAt(i) == '/') {
+                if(digit)
+                    sb.append('*');
+                else
+                    sb.append(path, segment, i);
+                if(i < end)
+                    sb.append('/');
+                segment = i + 1;
+                digit = false;
+            }
+            else if(Character.isDigit(path.charAt(i)))
+                digit = true;
+        }
+
+        return sb.toString();
+    }
+
+    private void fire(String template, State from, State to) {
+        for(Listener listener : listeners) {
+            try {
+                listener.stateChanged(template, from, to);
+            }
+            catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The state and recent outcomes of the calls to one path template.
+     */
+    final class Circuit {
+        private final String template;
+
+        // Guarded by this.  A ring of the most recent outcomes.
+        private final boolean[] failed;
+        private final boolean[] slow;
+        private int next;
+        private int recorded;
+        private int failures;
+        private int slowCalls;
+        private State state = State.CLOSED;
+        private long opened;
+        private int probesStarted;
+        private int probesSucceeded;
+
+        Circuit(String template, int size) {
+            this.template = template;
+            this.failed = new boolean[size];
+            this.slow = new boolean[size];
+        }
+
+        synchronized State state() {
+            return state;
+        }
+
+        void acquire() throws CircuitOpenException {
+            State from;
+            State to;
+            synchronized(this) {
+                from = state;
+                if(state == State.OPEN) {
+                    long remaining = openDuration - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - opened);
+                    if(remaining > 0) {
+                        rejected.incrementAndGet();
+                        throw new CircuitOpenException("Circuit open for " + template + "; retry in " + remaining + " ms", remaining);
+                    }
+
+                    state = State.HALF_OPEN;
+                    probesStarted = 0;
+                    probesSucceeded = 0;
+                }
+
+                if(state == State.HALF_OPEN) {
+                    if(probesStarted >= probes) {
+                        rejected.incrementAndGet();
+                        throw new CircuitOpenException("Circuit half-open for " + template + "; waiting for probe calls", -1);
+                    }
+
+                    probesStarted++;
+                }
+                to = state;
+            }
+
+            if(from != to)
+                fire(template, from, to);
+        }
+
+        /**
+         * Records the outcome of a call.
+         *
+         * @param nanos   how long the call's exchanges with the server took,
+         *                not counting waits on the client side, in ns
+         * @param failure true if the call failed with a communication error
+         */
+        void record(long nanos, boolean failure) {
+            boolean late = !failure && TimeUnit.NANOSECONDS.toMillis(nanos) >= slowCallDuration;
+
+            State from;
+            State to;
+            synchronized(this) {
+                from = state;
+                if(state == State.HALF_OPEN) {
+                    if(failure || late)
+                        open();
+                    else if(++probesSucceeded >= probes)
+                        close();
+                }
+                else if(state == State.CLOSED) {
+                    add(failure, late);
+                    if(recorded >= minimumCalls
+                       && (failures >= failureRateThreshold * recorded
+                           || slowCalls >= slowCallRateThreshold * recorded))
+                        open();
+                }
+                to = state;
+            }
+
+            if(from != to)
+                fire(template, from, to);
+        }
+
+        /**
+         * Lets a call which ended without an outcome give back its probe.
+         */
+        synchronized void release() {
+            if(state == State.HALF_OPEN && probesStarted > probesSucceeded)
+                probesStarted--;
+        }
+
+        private void add(boolean failure, boolean late) {
+            if(recorded == failed.length) {
+                if(failed[next])
+                    failures--;
+                if(slow[next])
+                    slowCalls--;
+            }
+            else
+                recorded++;
+
+            failed[next] = failure;
+            slow[next] = late;
+            if(failure)
+                failures++;
+            if(late)
+                slowCalls++;
+            next = (next + 1) % failed.length;
+        }
+
+        private void open() {
+            state = State.OPEN;
+            opened = System.nanoTime();
+        }
+
+        private void close() {
+            state = State.CLOSED;
+            next = 0;
+            recorded = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.athenahealth.api;
+
+/**
+ * Exception type indicating that a call was not made because the
+ * {@link CircuitBreaker} for its path is open.  It is an
+ * {@link UnavailableException}, so outage handlers see it, but the
+ * {@link RetryPolicy} does not retry it: nothing was sent, and the call fails
+ * fast, as the breaker intends.  {@link #getRetryAfter} gives how long until
+ * the circuit lets calls through again.
+ */
+public class CircuitOpenException
+    extends UnavailableException {
+    private static final long serialVersionUID = -5238091764431180627L;
+
+    /**
+     * Creates a new CircuitOpenException with the specified detail message.
+     *
+     * @param message An explanation for the error.
+     * @param retryAfter How long until the circuit lets calls through again,
+     *                   in ms, or -1 if it is waiting for probe calls.
+     */
+    public CircuitOpenException(String message, long retryAfter) {
+        super(message, retryAfter);
+    }
+}
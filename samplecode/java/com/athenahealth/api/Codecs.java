@@ -0,0 +1,741 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.athenahealth.api;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Binds JSON straight from a {@link JsonReader} to Java objects, for
+ * {@link APIConnection#GETAs(String, Map, Class)}.
+ *
+ * A codec is built once for each type, the first time it is needed, and
+ * cached.  Building one uses reflection to find the fields or record
+ * components and turn them into method handles; binding uses only the
+ * handles.  Members are matched to JSON names ignoring the case of ASCII
+ * letters, so a field <code>patientId</code> binds <code>patientid</code>,
+ * and names with no member are skipped without being decoded.
+ *
+ * These types can be bound:
+ *
+ * <ul>
+ * <li>String, the primitives and their wrappers, BigDecimal, and enums by
+ *     constant name.  Numbers and booleans may be quoted, as the API sends
+ *     them.</li>
+ * <li>List, Collection, Set and Map with String keys, of any of these.</li>
+ * <li>Records, through their canonical constructor.  Missing components are
+ *     null, 0 or false.</li>
+ * <li>Other classes with a no-argument constructor, by setting their
+ *     non-static, non-final, non-transient fields, including inherited
+ *     ones.</li>
+ * <li>Generic records and classes, given their type arguments, as in
+ *     <code>new TypeRef&lt;Page&lt;Department&gt;&gt;() {}</code>.  A type
+ *     variable with no argument, as when the raw class is bound, cannot be
+ *     bound.</li>
+ * <li>Object, JSONObject and JSONArray, which are decoded as org.json would
+ *     decode them, for parts of a response with no fixed shape.</li>
+ * </ul>
+ */
+final class Codecs {
+    /**
+     * Reads one value of a type.
+     */
+    interface Codec<T> {
+        /**
+         * Reads the next value, which may be null.
+         */
+        T read(JsonReader in) throws IOException;
+    }
+
+    private static final ConcurrentMap<Type, Codec<?>> codecs = new ConcurrentHashMap<Type, Codec<?>>();
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    // The types whose codecs this thread is building
+    private static final ThreadLocal<Set<Type>> building = ThreadLocal.withInitial(LinkedHashSet::new);
+
+    // Class.isRecord and Class.getRecordComponents, which are newer than the Java this builds for
+    private static final Method IS_RECORD;
+    private static final Method GET_RECORD_COMPONENTS;
+    private static final Method COMPONENT_NAME;
+    private static final Method COMPONENT_TYPE;
+    private static final Method COMPONENT_GENERIC_TYPE;
+    static {
+        Method isRecord = null;
+        Method getRecordComponents = null;
+        Method name = null;
+        Method type = null;
+        Method genericType = null;
+        try {
+            isRecord = Class.class.getMethod("isRecord");
+            getRecordComponents = Class.class.getMethod("getRecordComponents");
+            Class<?> component = Class.forName("java.lang.reflect.RecordComponent");
+            name = component.getMethod("getName");
+            type = component.getMethod("getType");
+            genericType = component.getMethod("getGenericType");
+        }
+        catch (ReflectiveOperationException e) {
+            // There are no records before Java 16
+        }
+        IS_RECORD = isRecord;
+        GET_RECORD_COMPONENTS = getRecordComponents;
+        COMPONENT_NAME = name;
+        COMPONENT_TYPE = type;
+        COMPONENT_GENERIC_TYPE = genericType;
+
+        codecs.put(String.class, (Codec<String>)in -> in.nextNull() ? null : in.nextString());
+        codecs.put(Integer.class, (Codec<Integer>)in -> in.nextNull() ? null : in.nextInt());
+        codecs.put(Long.class, (Codec<Long>)in -> in.nextNull() ? null : in.nextLong());
+        codecs.put(Double.class, (Codec<Double>)in -> in.nextNull() ? null : in.nextDouble());
+        codecs.put(Float.class, (Codec<Float>)in -> in.nextNull() ? null : (float)in.nextDouble());
+        codecs.put(Short.class, (Codec<Short>)in -> in.nextNull() ? null : (short)in.nextInt());
+        codecs.put(Byte.class, (Codec<Byte>)in -> in.nextNull() ? null : (byte)in.nextInt());
+        codecs.put(Character.class, (Codec<Character>)in -> in.nextNull() ? null : nextChar(in));
+        codecs.put(Boolean.class, (Codec<Boolean>)in -> in.nextNull() ? null : in.nextBoolean());
+        codecs.put(BigDecimal.class, (Codec<BigDecimal>)in -> {
+            if(in.nextNull())
+                return null;
+            String value = in.nextString();
+            return value.isEmpty() ? null : new BigDecimal(value);
+        });
+        codecs.put(int.class, codecs.get(Integer.class));
+        codecs.put(long.class, codecs.get(Long.class));
+        codecs.put(double.class, codecs.get(Double.class));
+        codecs.put(float.class, codecs.get(Float.class));
+        codecs.put(short.class, codecs.get(Short.class));
+        codecs.put(byte.class, codecs.get(Byte.class));
+        codecs.put(char.class, codecs.get(Character.class));
+        codecs.put(boolean.class, codecs.get(Boolean.class));
+        codecs.put(Object.class, (Codec<Object>)Codecs::readAny);
+        codecs.put(JSONObject.class, (Codec<Object>)Codecs::readAny);
+        codecs.put(JSONArray.class, (Codec<Object>)Codecs::readAny);
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * Gets the codec for a type, building it if need be.
+     *
+     * @throws IllegalArgumentException if the type cannot be bound
+     */
+    static Codec<?> get(Type type) {
+        Codec<?> codec = codecs.get(type);
+        if(codec == null) {
+            Set<Type> types = building.get();
+            types.add(type);
+            try {
+                codec = create(type);
+            }
+            finally {
+                types.remove(type);
+            }
+            Codec<?> raced = codecs.putIfAbsent(type, codec);
+            if(raced != null)
+                codec = raced;
+        }
+        return codec;
+    }
+
+    /**
+     * Gets the codec for a member's type.  If that type is still being built,
+     * because it refers to itself, its codec is looked up when first used.
+     */
+    private static Codec<?> lazy(final Type type) {
+        if(!building.get().contains(type))
+            return get(type);
+
+        return new Codec<Object>() {
+            private volatile Codec<?> resolved;
+
+            @Override
+            public Object read(JsonReader in) throws IOException {
+                Codec<?> codec = resolved;
+                if(codec == null)
+                    resolved = codec = get(type);
+                return codec.read(in);
+            }
+        };
+    }
+
+    private static Codec<?> create(Type type) {
+        if(type instanceof WildcardType)
+            return get(((WildcardType)type).getUpperBounds()[0]);
+        if(type instanceof TypeVariable)
+            throw unbound((TypeVariable<?>)type);
+        if(type instanceof GenericArrayType)
+            throw new IllegalArgumentException("Cannot bind to " + type.getTypeName());
+
+        Class<?> raw = TypeRef.raw(type);
+        if(raw == Object.class)
+            return get(Object.class);
+
+        if(Collection.class.isAssignableFrom(raw) || raw == Iterable.class) {
+            final Codec<?> element = lazy(argument(type, 0));
+            final boolean set = Set.class.isAssignableFrom(raw);
+            if(!raw.isInterface() && !raw.isAssignableFrom(set ? LinkedHashSet.class : ArrayList.class))
+                throw new IllegalArgumentException("Cannot bind to " + type.getTypeName() + "; use List or Set");
+
+            return (Codec<Collection<Object>>)in -> {
+                if(in.nextNull())
+                    return null;
+
+                Collection<Object> values = set ? new LinkedHashSet<Object>() : new ArrayList<Object>();
+                in.beginArray();
+                while(in.hasNext())
+                    values.add(element.read(in));
+                in.endArray();
+                return values;
+            };
+        }
+
+        if(Map.class.isAssignableFrom(raw)) {
+            if(argument(type, 0) != String.class || !raw.isAssignableFrom(LinkedHashMap.class))
+                throw new IllegalArgumentException("Cannot bind to " + type.getTypeName() + "; use Map<String, V>");
+
+            final Codec<?> value = lazy(argument(type, 1));
+            return (Codec<Map<String, Object>>)in -> {
+                if(in.nextNull())
+                    return null;
+
+                Map<String, Object> values = new LinkedHashMap<String, Object>();
+                in.beginObject();
+                while(in.hasNext())
+                    values.put(in.nextNameString(), value.read(in));
+                in.endObject();
+                return values;
+            };
+        }
+
+        if(raw.isEnum())
+            return enumCodec(raw);
+
+        if(raw.isPrimitive() || raw.isArray() || raw.isInterface() || Modifier.isAbstract(raw.getModifiers())
+                || raw.getName().startsWith("java."))
+            throw new IllegalArgumentException("Cannot bind to " + type.getTypeName());
+
+        try {
+            if(IS_RECORD != null && (Boolean)IS_RECORD.invoke(raw))
+                return new RecordCodec(type);
+            return new BeanCodec(type);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IllegalArgumentException("Cannot bind to " + type.getTypeName() + ": " + e, e);
+        }
+    }
+
+    private static Type argument(Type type, int index) {
+        if(type instanceof ParameterizedType)
+            return ((ParameterizedType)type).getActualTypeArguments()[index];
+        return Object.class;
+    }
+
+    /**
+     * Maps the type parameters of a class to the type arguments it is
+     * given, if any.
+     */
+    private static Map<TypeVariable<?>, Type> arguments(Type type) {
+        Map<TypeVariable<?>, Type> arguments = new HashMap<TypeVariable<?>, Type>();
+        if(type instanceof ParameterizedType) {
+            TypeVariable<?>[] parameters = TypeRef.raw(type).getTypeParameters();
+            Type[] actual = ((ParameterizedType)type).getActualTypeArguments();
+            for(int i = 0; i < parameters.length; i++)
+                arguments.put(parameters[i], actual[i]);
+        }
+        return arguments;
+    }
+
+    /**
+     * Replaces the type variables in a member's type with the arguments
+     * they stand for, so that a field <code>List&lt;T&gt; items</code> of
+     * <code>Page&lt;Department&gt;</code> binds a List&lt;Department&gt;.
+     *
+     * @throws IllegalArgumentException if a type variable has no argument
+     */
+    private static Type resolve(Type type, Map<TypeVariable<?>, Type> arguments) {
+        if(type instanceof TypeVariable) {
+            Type argument = arguments.get(type);
+            if(argument == null)
+                throw unbound((TypeVariable<?>)type);
+            return argument;
+        }
+        if(type instanceof WildcardType)
+            return resolve(((WildcardType)type).getUpperBounds()[0], arguments);
+        if(!(type instanceof ParameterizedType))
+            return type;
+
+        ParameterizedType parameterized = (ParameterizedType)type;
+        Type owner = parameterized.getOwnerType();
+        Type resolvedOwner = owner == null ? null : resolve(owner, arguments);
+        Type[] actual = parameterized.getActualTypeArguments();
+        Type[] resolved = new Type[actual.length];
+        boolean changed = resolvedOwner != owner;
+        for(int i = 0; i < actual.length; i++) {
+            resolved[i] = resolve(actual[i], arguments);
+            changed |= resolved[i] != actual[i];
+        }
+        return changed ? new Parameterized(resolvedOwner, parameterized.getRawType(), resolved) : type;
+    }
+
+    private static IllegalArgumentException unbound(TypeVariable<?> variable) {
+        return new IllegalArgumentException("Cannot bind to type variable " + variable.getName() + " of "
+            + variable.getGenericDeclaration() + "; give its type argument, as in new TypeRef<Page<Department>>() {}");
+    }
+
+    /**
+     * A generic type with its type variables replaced.  It equals the
+     * ParameterizedType reflection gives for the same type, so both find
+     * the same codec.
+     */
+    private static final class Parameterized implements ParameterizedType {
+        private final Type owner;
+        private final Type raw;
+        private final Type[] arguments;
+
+        Parameterized(Type owner, Type raw, Type[] arguments) {
+            this.owner = owner;
+            this.raw = raw;
+            this.arguments = arguments;
+        }
+
+        @Override
+        public Type[] getActualTypeArguments() {
+            return arguments.clone();
+        }
+
+        @Override
+        public Type getRawType() {
+            return raw;
+        }
+
+        @Override
+        public Type getOwnerType() {
+            return owner;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof ParameterizedType))
+                return false;
+
+            ParameterizedType that = (ParameterizedType)o;
+            return Objects.equals(owner, that.getOwnerType()) && raw.equals(that.getRawType())
+                && Arrays.equals(arguments, that.getActualTypeArguments());
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(arguments) ^ Objects.hashCode(owner) ^ raw.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder name = new StringBuilder(raw.getTypeName()).append('<');
+            for(int i = 0; i < arguments.length; i++)
+                name.append(i == 0 ? "" : ", ").append(arguments[i].getTypeName());
+            return name.append('>').toString();
+        }
+    }
+
+    private static char nextChar(JsonReader in) throws IOException {
+        String value = in.nextString();
+        if(value.length() != 1)
+            throw in.syntax("Expected one character, not \"" + value + "\"");
+        return value.charAt(0);
+    }
+
+    private static Codec<?> enumCodec(Class<?> type) {
+        final Map<String, Object> constants = new LinkedHashMap<String, Object>();
+        for(Object constant : type.getEnumConstants())
+            constants.put(((Enum<?>)constant).name(), constant);
+        for(Object constant : type.getEnumConstants())
+            constants.putIfAbsent(((Enum<?>)constant).name().toLowerCase(java.util.Locale.ROOT), constant);
+
+        return (Codec<Object>)in -> {
+            if(in.nextNull())
+                return null;
+
+            String name = in.nextString();
+            Object constant = constants.get(name);
+            if(constant == null)
+                constant = constants.get(name.toLowerCase(java.util.Locale.ROOT));
+            if(constant == null && !name.isEmpty())
+                throw in.syntax("No constant " + name + " in " + type.getName());
+            return constant;
+        };
+    }
+
+    /**
+     * Reads any value as org.json would: a JSONObject, JSONArray, String,
+     * Boolean, number, or JSONObject.NULL.
+     */
+    static Object readAny(JsonReader in) throws IOException {
+        int c = in.peek();
+        switch(c) {
+        case '{':
+            JSONObject object = new JSONObject();
+            in.beginObject();
+            while(in.hasNext()) {
+                String name = in.nextNameString();
+                object.put(name, readAny(in));
+            }
+            in.endObject();
+            return object;
+        case '[':
+            JSONArray array = new JSONArray();
+            in.beginArray();
+            while(in.hasNext())
+                array.put(readAny(in));
+            in.endArray();
+            return array;
+        case '"':
+            return in.nextString();
+        case 'n':
+            in.nextNull();
+            return JSONObject.NULL;
+        case 't':
+        case 'f':
+            return in.nextBoolean();
+        default:
+            return JSONObject.stringToValue(in.nextString());
+        }
+    }
+
+    /**
+     * Looks up member names without allocating, by open addressing over
+     * their lower-case characters.
+     */
+    static final class Names {
+        private final char[][] keys;
+        private final int[] indexes;
+        private final int mask;
+
+        Names(List<String> names) {
+            int size = Integer.highestOneBit(Math.max(names.size(), 1) * 2) * 2;
+            keys = new char[size][];
+            indexes = new int[size];
+            mask = size - 1;
+
+            for(int i = 0; i < names.size(); i++) {
+                char[] key = names.get(i).toLowerCase(java.util.Locale.ROOT).toCharArray();
+                if(find(key, key.length) >= 0)
+                    throw new IllegalArgumentException("Two members are named " + names.get(i) + ", ignoring case");
+
+                int slot = hash(key, key.length) & mask;
+                while(keys[slot] != null)
+                    slot = (slot + 1) & mask;
+                keys[slot] = key;
+                indexes[slot] = i;
+            }
+        }
+
+        /**
+         * @return the index of the name, or -1
+         */
+        int find(char[] name, int length) {
+            int slot = hash(name, length) & mask;
+            while(true) {
+                char[] key = keys[slot];
+                if(key == null)
+                    return -1;
+                if(equal(key, name, length))
+                    return indexes[slot];
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private static int hash(char[] name, int length) {
+            int h = 0;
+            for(int i = 0; i < length; i++)
+                h = 31 * h + name[i];
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean equal(char[] key, char[] name, int length) {
+            if(key.length != length)
+                return false;
+            for(int i = 0; i < length; i++)
+                if(key[i] != name[i])
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * Binds a record through its canonical constructor.
+     */
+    private static final class RecordCodec implements Codec<Object> {
+        private final Names names;
+        private final Codec<?>[] components;
+        private final Object[] defaults;
+        private final MethodHandle constructor;
+
+        RecordCodec(Type generic) throws ReflectiveOperationException {
+            Class<?> type = TypeRef.raw(generic);
+            Map<TypeVariable<?>, Type> arguments = arguments(generic);
+            Object[] members = (Object[])GET_RECORD_COMPONENTS.invoke(type);
+            List<String> list = new ArrayList<String>();
+            Class<?>[] types = new Class<?>[members.length];
+            components = new Codec<?>[members.length];
+            defaults = new Object[members.length];
+            for(int i = 0; i < members.length; i++) {
+                list.add((String)COMPONENT_NAME.invoke(members[i]));
+                types[i] = (Class<?>)COMPONENT_TYPE.invoke(members[i]);
+                components[i] = lazy(resolve((Type)COMPONENT_GENERIC_TYPE.invoke(members[i]), arguments));
+                defaults[i] = defaultValue(types[i]);
+            }
+            names = new Names(list);
+
+            Constructor<?> canonical = type.getDeclaredConstructor(types);
+            canonical.setAccessible(true);
+            constructor = lookup.unreflectConstructor(canonical)
+                .asSpreader(Object[].class, members.length)
+                .asType(MethodType.methodType(Object.class, Object[].class));
+        }
+
+        @Override
+        public Object read(JsonReader in) throws IOException {
+            if(in.nextNull())
+                return null;
+
+            Object[] arguments = defaults.clone();
+            in.beginObject();
+            while(in.hasNext()) {
+                int length = in.nextName();
+                int i = names.find(in.chars(), length);
+                if(i < 0) {
+                    in.skipValue();
+                }
+                else {
+                    Object value = components[i].read(in);
+                    if(value != null)
+                        arguments[i] = value;
+                }
+            }
+            in.endObject();
+
+            try {
+                return (Object)constructor.invokeExact(arguments);
+            }
+            catch (RuntimeException | Error e) {
+                throw e;
+            }
+            catch (Throwable t) {
+                throw new JSONException(t);
+            }
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if(type == int.class)
+                return 0;
+            if(type == long.class)
+                return 0L;
+            if(type == double.class)
+                return 0.0;
+            if(type == float.class)
+                return 0.0f;
+            if(type == short.class)
+                return (short)0;
+            if(type == byte.class)
+                return (byte)0;
+            if(type == char.class)
+                return '\0';
+            if(type == boolean.class)
+                return false;
+            return null;
+        }
+    }
+
+    /**
+     * Binds a class with a no-argument constructor by setting its fields.
+     */
+    private static final class BeanCodec implements Codec<Object> {
+        private final Names names;
+        private final Property[] properties;
+        private final MethodHandle constructor;
+
+        BeanCodec(Type generic) throws ReflectiveOperationException {
+            Class<?> type = TypeRef.raw(generic);
+            Constructor<?> noArguments = type.getDeclaredConstructor();
+            noArguments.setAccessible(true);
+            constructor = lookup.unreflectConstructor(noArguments).asType(MethodType.methodType(Object.class));
+
+            List<String> list = new ArrayList<String>();
+            List<Property> fields = new ArrayList<Property>();
+            // Each superclass's type arguments are resolved against its subclass's
+            Map<TypeVariable<?>, Type> arguments = arguments(generic);
+            for(Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for(Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if(Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic())
+                        continue;
+
+                    field.setAccessible(true);
+                    list.add(field.getName());
+                    fields.add(Property.of(field, resolve(field.getGenericType(), arguments), lookup.unreflectSetter(field)));
+                }
+                if(c.getSuperclass() != null)
+                    arguments = arguments(resolve(c.getGenericSuperclass(), arguments));
+            }
+            names = new Names(list);
+            properties = fields.toArray(new Property[0]);
+        }
+
+        @Override
+        public Object read(JsonReader in) throws IOException {
+            if(in.nextNull())
+                return null;
+
+            try {
+                Object target = (Object)constructor.invokeExact();
+                in.beginObject();
+                while(in.hasNext()) {
+                    int length = in.nextName();
+                    int i = names.find(in.chars(), length);
+                    if(i < 0)
+                        in.skipValue();
+                    else if(!in.nextNull())
+                        properties[i].read(in, target);
+                }
+                in.endObject();
+                return target;
+            }
+            catch (IOException | RuntimeException | Error e) {
+                throw e;
+            }
+            catch (Throwable t) {
+                throw new JSONException(t);
+            }
+        }
+    }
+
+    /**
+     * Sets one field, with primitives unboxed.
+     */
+    private abstract static class Property {
+        final MethodHandle setter;
+
+        Property(MethodHandle setter, Class<?> type) {
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, type));
+        }
+
+        abstract void read(JsonReader in, Object target) throws Throwable;
+
+        static Property of(Field field, Type generic, MethodHandle setter) {
+            Class<?> type = field.getType();
+            if(type == int.class) {
+                return new Property(setter, int.class) {
+                    @Override
+                    void read(JsonReader in, Object target) throws Throwable {
+                        this.setter.invokeExact(target, in.nextInt());
+                    }
+                };
+            }
+            if(type == long.class) {
+                return new Property(setter, long.class) {
+                    @Override
+                    void read(JsonReader in, Object target) throws Throwable {
+                        this.setter.invokeExact(target, in.nextLong());
+                    }
+                };
+            }
+            if(type == double.class) {
+                return new Property(setter, double.class) {
+                    @Override
+                    void read(JsonReader in, Object target) throws Throwable {
+                        this.setter.invokeExact(target, in.nextDouble());
+                    }
+                };
+            }
+            if(type == float.class) {
+                return new Property(setter, float.class) {
+                    @Override
+                    void read(JsonReader in, Object target) throws Throwable {
+                        this.setter.invokeExact(target, (float)in.nextDouble());
+                    }
+                };
+            }
+            if(type == short.class) {
+                return new Property(setter, short.class) {
+                    @Override
+                    void read(JsonReader in, Object target) throws Throwable {
+                        this.setter.invokeExact(target, (short)in.nextInt());
+                    }
+                };
+            }
+            if(type == byte.class) {
+                return new Property(setter, byte.class) {
+                    @Override
+                    void read(JsonReader in, Object target) throws Throwable {
+                        this.setter.invokeExact(target, (byte)in.nextInt());
+                    }
+                };
+            }
+            if(type == char.class) {
+                return new Property(setter, char.class) {
+                    @Override
+                    void read(JsonReader in, Object target) throws Throwable {
+                        this.setter.invokeExact(target, nextChar(in));
+                    }
+                };
+            }
+            if(type == boolean.class) {
+                return new Property(setter, boolean.class) {
+                    @Override
+                    void read(JsonReader in, Object target) throws Throwable {
+                        this.setter.invokeExact(target, in.nextBoolean());
+                    }
+                };
+            }
+
+            final Codec<?> codec = lazy(generic);
+            return new Property(setter, Object.class) {
+                @Override
+                void read(JsonReader in, Object target) throws Throwable {
+                    this.setter.invokeExact(target, (Object)codec.read(in));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.athenahealth.api;
+
+/**
+ * Exception type indicating that a call was not made because too many calls
+ * were already in flight or waiting to be sent.
+ */
+public class ConcurrencyLimitException
+    extends AthenahealthException {
+    private static final long serialVersionUID = -1862409135726904433L;
+
+    /**
+     * Creates a new ConcurrencyLimitException with the specified detail
+     * message.
+     *
+     * @param message An explanation for the error.
+     */
+    public ConcurrencyLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of calls in flight at once, finding the limit from the
+ * latency and errors of the calls themselves.
+ *
+ * The limit rises by about one for every limit's worth of calls which
+ * complete in good time while the limit is in use, and falls by a tenth
+ * when a call fails with a {@link CommunicationException}, is answered
+ * 429 Too Many Requests, or takes more than a given multiple of the lowest
+ * recent latency of its path template.  So the limit climbs while the server
+ * keeps up and backs off as soon as its latency rises.  Path templates are
+ * built as for {@link CircuitBreaker}, so a slow endpoint is judged against
+ * its own latency, not that of the fastest.  The limit falls at most once for
+ * the calls which were in flight together: a call which was sent before the
+ * last fall saw the old limit, and does not lower it again.  Latency is only the time spent
+ * exchanging requests with the server: waits on the client side, for a
+ * token, the rate limiter or a pooled connection, do not count.
+ *
+ * A call made while the limit is reached waits in a queue.  When the queue
+ * is full, or a call has waited too long, it throws
+ * {@link ConcurrencyLimitException}.  Asynchronous calls wait without
+ * holding a thread.
+ */
+public class ConcurrencyLimiter {
+    /**
+     * The fraction of the limit kept when a call is dropped or slow.
+     */
+    private static final double BACKOFF_RATIO = 0.9;
+
+    /**
+     * The number of calls to a path template after which its lowest latency
+     * is measured afresh, so that the limiter notices when the server's
+     * normal latency changes.
+     */
+    private static final int BASELINE_WINDOW = 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private volatile int maxQueue = 100;
+    private volatile long maxWait;
+    private volatile double latencyTolerance = 2.0;
+
+    // Guarded by this
+    private double limit;
+    private int inFlight;
+    private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<CompletableFuture<Void>>();
+    private final Map<String, Baseline> baselines = new HashMap<String, Baseline>();
+    private long decreased = System.nanoTime();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a limiter.
+     *
+     * @param initialLimit The number of calls allowed in flight at first.
+     * @param minLimit     The lowest the limit may fall to.
+     * @param maxLimit     The highest the limit may rise to.
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if(minLimit < 1)
+            throw new IllegalArgumentException("Minimum limit must be at least 1");
+        if(maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("Limits must satisfy minimum <= initial <= maximum");
+
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Sets the number of calls which may wait for the limit.  Calls beyond
+     * this fail at once.  The default is 100; zero (0) means calls never
+     * wait.
+     *
+     * @param maxQueue The maximum number of waiting calls.
+     */
+    public void setMaxQueue(int maxQueue) {
+        this.maxQueue = maxQueue;
+    }
+
+    /**
+     * Gets the number of calls which may wait for the limit.
+     *
+     * @return The maximum number of waiting calls.
+     */
+    public int getMaxQueue() {
+        return maxQueue;
+    }
+
+    /**
+     * Sets the longest a call will wait for the limit.  A maximum of zero
+     * (0) means "wait indefinitely".
+     *
+     * @param maxWait The maximum wait, in ms.
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Gets the longest a call will wait for the limit.  A maximum of zero
+     * (0) means "wait indefinitely".
+     *
+     * @return The maximum wait, in ms.
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Sets how many times the lowest recent latency of its path template a
+     * call may take before the limit is lowered.  The default is 2.
+     *
+     * @param tolerance The latency multiple.
+     */
+    public void setLatencyTolerance(double tolerance) {
+        if(!(tolerance > 1))
+            throw new IllegalArgumentException("Latency tolerance must be greater than 1");
+
+        latencyTolerance = tolerance;
+    }
+
+    /**
+     * Gets how many times the lowest recent latency of its path template a
+     * call may take before the limit is lowered.
+     *
+     * @return The latency multiple.
+     */
+    public double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    /**
+     * Gets the number of calls currently allowed in flight.
+     *
+     * @return The limit.
+     */
+    public synchronized int getLimit() {
+        return (int)limit;
+    }
+
+    /**
+     * Gets the number of calls in flight.
+     *
+     * @return The number of calls.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Gets the number of calls waiting for the limit.
+     *
+     * @return The number of calls.
+     */
+    public synchronized int getQueueLength() {
+        return waiting.size();
+    }
+
+    /**
+     * Gets the number of calls which failed rather than wait.
+     *
+     * @return The number of ConcurrencyLimitExceptions thrown.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ limit=" + (int)limit + ", inFlight=" + inFlight + ", waiting=" + waiting.size()
+            + ", rejected=" + rejected.get() + " }";
+    }
+
+    /**
+     * Waits until a call may be made.
+     *
+     * @throws ConcurrencyLimitException If the queue is full or the wait is
+     *                                   too long.
+     * @throws AthenahealthException If the thread is interrupted while
+     *                               waiting.
+     */
+    void acquire() throws AthenahealthException {
+        CompletableFuture<Void> slot = acquireAsync(false);
+        if(slot.isDone()) {
+            await(slot);
+            return;
+        }
+
+        long wait = maxWait;
+        try {
+            if(wait > 0)
+                slot.get(wait, TimeUnit.MILLISECONDS);
+            else
+                slot.get();
+        }
+        catch (TimeoutException te) {
+            timeout(slot);
+            await(slot);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            if(!abandon(slot))
+                release();
+            throw new AthenahealthException("Interrupted while waiting for concurrency limit", ie);
+        }
+        catch (ExecutionException ee) {
+            await(slot);
+        }
+    }
+
+    /**
+     * Reserves a call without waiting for it.
+     *
+     * @return a future which completes when the call may be made, or fails
+     *         with {@link ConcurrencyLimitException}
+     */
+    CompletableFuture<Void> acquireAsync() {
+        return acquireAsync(true);
+    }
+
+    /**
+     * Ends a call which was not sent, without adjusting the limit.
+     */
+    void release() {
+        List<CompletableFuture<Void>> next;
+        synchronized(this) {
+            inFlight--;
+            next = next();
+        }
+
+        for(CompletableFuture<Void> slot : next)
+            slot.complete(null);
+    }
+
+    /**
+     * Ends a call and adjusts the limit from its outcome.
+     *
+     * @param path    the path of the call
+     * @param nanos   how long the call's exchanges with the server took,
+     *                not counting waits on the client side, in ns
+     * @param dropped true if the call failed or was throttled by the server
+     */
+    void release(String path, long nanos, boolean dropped) {
+        String template = CircuitBreaker.template(path);
+        long now = System.nanoTime();
+        List<CompletableFuture<Void>> next;
+        synchronized(this) {
+            inFlight--;
+
+            Baseline baseline = baselines.get(template);
+            if(baseline == null)
+                baselines.put(template, baseline = new Baseline());
+            boolean slow = baseline.record(nanos, dropped) > latencyTolerance;
+
+            if(dropped || slow) {
+                // A call sent before the last fall has been answered for already
+                if(now - nanos - decreased >= 0) {
+                    limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                    decreased = now;
+                }
+            }
+            else if(inFlight + 1 >= limit / 2)
+                limit = Math.min(maxLimit, limit + 1 / limit);
+
+            next = next();
+        }
+
+        for(CompletableFuture<Void> slot : next)
+            slot.complete(null);
+    }
+
+    /**
+     * The lowest recent latency of one path template.
+     */
+    private static final class Baseline {
+        private long lowest = Long.MAX_VALUE;
+        private long next = Long.MAX_VALUE;
+        private int samples;
+
+        /**
+         * Adds a call's latency.
+         *
+         * @return the latency as a multiple of the lowest, which is 1 for
+         *         the first call to the template
+         */
+        double record(long nanos, boolean dropped) {
+            if(++samples >= BASELINE_WINDOW) {
+                // Start again from the lowest latency of the last window
+                lowest = next;
+                next = Long.MAX_VALUE;
+                samples = 0;
+            }
+            if(!dropped) {
+                lowest = Math.min(lowest, nanos);
+                next = Math.min(next, nanos);
+            }
+
+            return lowest == Long.MAX_VALUE ? 1 : (double)nanos / Math.max(lowest, 1);
+        }
+    }
+
+    private CompletableFuture<Void> acquireAsync(boolean timed) {
+        CompletableFuture<Void> slot = new CompletableFuture<Void>();
+        synchronized(this) {
+            if(inFlight < (int)limit && waiting.isEmpty()) {
+                inFlight++;
+                slot.complete(null);
+                return slot;
+            }
+
+            if(waiting.size() >= maxQueue) {
+                rejected.incrementAndGet();
+                slot.completeExceptionally(new ConcurrencyLimitException("Concurrency limit of " + (int)limit + " calls reached and "
+                        + waiting.size() + " calls waiting"));
+                return slot;
+            }
+
+            waiting.add(slot);
+        }
+
+        long wait = maxWait;
+        if(timed && wait > 0)
+            CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS).execute(() -> timeout(slot));
+
+        return slot;
+    }
+
+    /**
+     * Hands the free slots to the calls waiting longest.  Raising the limit
+     * may free more than one.
+     */
+    private List<CompletableFuture<Void>> next() {
+        if(inFlight >= (int)limit || waiting.isEmpty())
+            return Collections.emptyList();
+
+        List<CompletableFuture<Void>> next = new ArrayList<CompletableFuture<Void>>(1);
+        while(inFlight < (int)limit && !waiting.isEmpty()) {
+            next.add(waiting.poll());
+            inFlight++;
+        }
+
+        return next;
+    }
+
+    /**
+     * Fails a waiting call which has waited too long.  A call which was
+     * given a slot meanwhile keeps it.
+     */
+    private void timeout(CompletableFuture<Void> slot) {
+        if(abandon(slot)) {
+            rejected.incrementAndGet();
+            slot.completeExceptionally(new ConcurrencyLimitException("Waited " + maxWait + " ms for concurrency limit of "
+                    + getLimit() + " calls"));
+        }
+    }
+
+    /**
+     * Takes a call out of the queue.
+     *
+     * @return true if it was still waiting, false if it was given a slot
+     */
+    private synchronized boolean abandon(CompletableFuture<Void> slot) {
+        return waiting.remove(slot);
+    }
+
+    private static void await(CompletableFuture<Void> slot) throws AthenahealthException {
+        try {
+            slot.join();
+        }
+        catch (RuntimeException e) {
+            if(e.getCause() instanceof AthenahealthException)
+                throw (AthenahealthException)e.getCause();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Manages the keep-alive connections used by an {@link APIConnection}.
+ *
+ * HttpURLConnection keeps idle connections in a JDK-wide cache which cannot
+ * be sized or inspected.  This pool sits in front of that cache: it can
+ * limit how many requests may be in flight to each host, tracks every TLS
+ * connection opened on its behalf, and evicts connections which have been
+ * idle too long or have outlived their maximum lifetime.  Connections are
+ * only evicted while no request to their host is in flight, since it is not
+ * possible to tell which cached connection the next request will pick up.
+ *
+ * By default there is no limit on the requests in flight to a host.  With
+ * {@link #setMaxConnectionsPerHost} set, further requests wait for a
+ * connection to be released, for up to the connect timeout, and then fail
+ * with a {@link ConnectionPoolTimeoutException}.
+ *
+ * The JDK keeps at most <code>http.maxConnections</code> (default 5) idle
+ * connections per host.  When allowing more than that in flight, raise the
+ * system property as well or the extra connections will not be reused.
+ *
+ * Connection statistics only cover HTTPS, since plain HTTP connections are
+ * not opened through a socket factory which can be observed.
+ */
+public class ConnectionPool {
+    /**
+     * The largest number of unread bytes that will be read and discarded
+     * to return a connection to the pool.  Longer responses are abandoned
+     * along with their connection.
+     */
+    private static final int MAX_DRAIN_BYTES = 256 * 1024;
+
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+    private final ThreadLocal<Lease> currentLease = new ThreadLocal<Lease>();
+
+    private volatile int maxConnectionsPerHost = Integer.MAX_VALUE;
+    private volatile long idleTimeout = 5 * 1000;
+    private volatile long maxLifetime = 5 * 60 * 1000;
+
+    private volatile TrackingSSLSocketFactory trackingFactory;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsReused = new AtomicLong();
+    private final AtomicLong connectionsEvicted = new AtomicLong();
+
+    /**
+     * Sets the maximum number of requests that may be in flight to a single
+     * host at once. Further requests wait for a connection to be released.
+     * The default, {@link Integer#MAX_VALUE}, means "no limit".
+     *
+     * @param max The maximum number of connections per host.
+     */
+    public void setMaxConnectionsPerHost(int max) {
+        if(max < 1)
+            throw new IllegalArgumentException("Maximum connections must be at least 1");
+
+        maxConnectionsPerHost = max;
+
+        for(Host host : hosts.values())
+            synchronized(host) {
+                host.notifyAll();
+            }
+    }
+
+    /**
+     * Gets the maximum number of requests that may be in flight to a single
+     * host at once.
+     *
+     * @return The maximum number of connections per host.
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Sets how long a host may go without any requests before its idle
+     * connections are closed. A timeout of zero (0) means "never".
+     *
+     * @param timeout The idle timeout, in ms.
+     */
+    public void setIdleTimeout(long timeout) {
+        idleTimeout = timeout;
+    }
+
+    /**
+     * Gets how long a host may go without any requests before its idle
+     * connections are closed. A timeout of zero (0) means "never".
+     *
+     * @return The idle timeout, in ms.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets how long a connection may be kept open after it was established.
+     * A lifetime of zero (0) means "forever".
+     *
+     * @param lifetime The maximum connection lifetime, in ms.
+     */
+    public void setMaxLifetime(long lifetime) {
+        maxLifetime = lifetime;
+    }
+
+    /**
+     * Gets how long a connection may be kept open after it was established.
+     * A lifetime of zero (0) means "forever".
+     *
+     * @return The maximum connection lifetime, in ms.
+     */
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * Gets the number of requests which have been made through this pool.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of new TLS connections (and therefore full handshakes)
+     * made through this pool.
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * Gets the number of HTTPS requests which reused an existing connection.
+     */
+    public long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    /**
+     * Gets the number of connections closed for being idle or too old.
+     */
+    public long getConnectionsEvicted() {
+        return connectionsEvicted.get();
+    }
+
+    @Override
+    public String toString() {
+        return "{ requests=" + getRequestCount()
+            + ", opened=" + getConnectionsOpened()
+            + ", reused=" + getConnectionsReused()
+            + ", evicted=" + getConnectionsEvicted() + " }";
+    }
+
+    /**
+     * Gets a socket factory which opens sockets through the specified
+     * factory while tracking them in this pool.
+     *
+     * The same wrapper is returned for as long as the delegate stays the
+     * same, since the JDK only reuses connections made by the same factory.
+     *
+     * @param delegate The factory which actually opens connections.
+     * @return A tracking factory.
+     */
+    SSLSocketFactory wrap(SSLSocketFactory delegate) {
+        TrackingSSLSocketFactory factory = trackingFactory;
+        if(factory == null || factory.delegate != delegate) {
+            synchronized(this) {
+                factory = trackingFactory;
+                if(factory == null || factory.delegate != delegate)
+                    trackingFactory = factory = new TrackingSSLSocketFactory(delegate);
+            }
+        }
+
+        return factory;
+    }
+
+    /**
+     * Waits for permission to make a request to the host of the specified URL.
+     * Idle and expired connections to that host are evicted first.
+     *
+     * @param url The URL about to be requested.
+     * @param timeout The maximum time to wait, in ms. Zero (0) means "wait indefinitely".
+     * @return A lease which must be passed to {@link #release} after the response has been read.
+     *
+     * @throws ConnectionPoolTimeoutException If no connection became available in time.
+     * @throws AthenahealthException          If the thread was interrupted while waiting.
+     */
+    Lease acquire(URL url, long timeout) throws AthenahealthException {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + port;
+
+        Host host = hosts.get(key);
+        if(host == null) {
+            host = new Host();
+            Host existing = hosts.putIfAbsent(key, host);
+            if(existing != null)
+                host = existing;
+        }
+
+        synchronized(host) {
+            long deadline = System.currentTimeMillis() + timeout;
+            try {
+                while(host.inUse >= maxConnectionsPerHost) {
+                    if(timeout <= 0) {
+                        host.wait();
+                    }
+                    else {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if(remaining <= 0)
+                            throw new ConnectionPoolTimeoutException("Timed out waiting for a connection to " + key
+                                    + "; " + maxConnectionsPerHost + " already in use");
+                        host.wait(remaining);
+                    }
+                }
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new AthenahealthException("Interrupted waiting for a connection to " + key, ie);
+            }
+
+            if(host.inUse == 0)
+                host.evict(System.currentTimeMillis());
+
+            host.inUse++;
+        }
+
+        requests.incrementAndGet();
+        Lease lease = new Lease(host, "https".equals(url.getProtocol()));
+        currentLease.set(lease);
+        return lease;
+    }
+
+    /**
+     * Returns a connection to the pool.
+     *
+     * @param lease The lease returned by {@link #acquire}.
+     */
+    void release(Lease lease) {
+        if(lease == null)
+            return;
+
+        if(currentLease.get() == lease)
+            currentLease.remove();
+
+        if(lease.secure && !lease.opened)
+            connectionsReused.incrementAndGet();
+
+        Host host = lease.host;
+        synchronized(host) {
+            host.inUse--;
+            host.lastUsed = System.currentTimeMillis();
+            host.notify();
+        }
+    }
+
+    /**
+     * Reads and discards whatever is left of a response body, then closes it.
+     * The JDK only keeps a connection alive once its response has been
+     * completely consumed, so this lets a connection be reused after an
+     * error or an early return.
+     *
+     * @param in The response body stream. May be null.
+     */
+    static void drain(InputStream in) {
+        if(in == null)
+            return;
+
+        try {
+            byte[] buffer = new byte[4096];
+            int total = 0;
+            int c;
+            while(total < MAX_DRAIN_BYTES && (c = in.read(buffer)) != -1)
+                total += c;
+        }
+        catch (IOException ioe) {
+            // The connection is unusable anyway; the JDK will discard it.
+        }
+        finally {
+            try { in.close(); }
+            catch (IOException ioe) { /* Already closed or broken. */ }
+        }
+    }
+
+    private void opened(Socket socket) {
+        connectionsOpened.incrementAndGet();
+
+        Lease lease = currentLease.get();
+        if(lease != null) {
+            lease.opened = true;
+            synchronized(lease.host) {
+                lease.host.sockets.add(new TrackedSocket(socket, System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * Permission to make one request to a host.
+     */
+    static final class Lease {
+        final Host host;
+        final boolean secure;
+        boolean opened;
+
+        Lease(Host host, boolean secure) {
+            this.host = host;
+            this.secure = secure;
+        }
+    }
+
+    private static final class TrackedSocket {
+        final Socket socket;
+        final long created;
+
+        TrackedSocket(Socket socket, long created) {
+            this.socket = socket;
+            this.created = created;
+        }
+    }
+
+    /**
+     * The connections to one scheme/host/port. Guarded by its own monitor.
+     */
+    final class Host {
+        final List<TrackedSocket> sockets = new ArrayList<TrackedSocket>();
+        int inUse;
+        long lastUsed = System.currentTimeMillis();
+
+        /**
+         * Closes connections which are idle or have outlived their lifetime.
+         * Must only be called while no request to this host is in flight.
+         */
+        void evict(long now) {
+            boolean idle = idleTimeout > 0 && now - lastUsed > idleTimeout;
+
+            for(Iterator<TrackedSocket> i = sockets.iterator(); i.hasNext(); ) {
+                TrackedSocket tracked = i.next();
+                if(tracked.socket.isClosed()) {
+                    i.remove();
+                }
+                else if(idle || (maxLifetime > 0 && now - tracked.created > maxLifetime)) {
+                    i.remove();
+                    connectionsEvicted.incrementAndGet();
+                    try { tracked.socket.close(); }
+                    catch (IOException ioe) { /* Nothing more to do. */ }
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens sockets through another factory, reporting each one to the pool.
+     */
+    private final class TrackingSSLSocketFactory extends SSLSocketFactory {
+        final SSLSocketFactory delegate;
+
+        TrackingSSLSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private Socket track(Socket socket) {
+            opened(socket);
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return track(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return track(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return track(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return track(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return track(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return track(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
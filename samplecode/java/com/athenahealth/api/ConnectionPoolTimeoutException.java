@@ -0,0 +1,21 @@
+package com.athenahealth.api;
+
+/**
+ * Exception type indicating that a call was not made because its
+ * {@link ConnectionPool} had no connection to the host free in time.
+ * Nothing was sent, so it is not retried as a network failure.
+ */
+public class ConnectionPoolTimeoutException
+    extends AthenahealthException {
+    private static final long serialVersionUID = 4417206339716028261L;
+
+    /**
+     * Creates a new ConnectionPoolTimeoutException with the specified
+     * detail message.
+     *
+     * @param message An explanation for the error.
+     */
+    public ConnectionPoolTimeoutException(String message) {
+        super(message);
+    }
+}
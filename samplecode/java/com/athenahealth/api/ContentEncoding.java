@@ -0,0 +1,131 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.athenahealth.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes response bodies sent with a Content-Encoding of gzip or deflate.
+ * Neither HttpURLConnection nor HttpClient does this itself.
+ *
+ * Bodies are decoded as they are read, so a compressed response is never
+ * held in memory in both forms.  An empty body, such as that of a 204 or
+ * 304, is passed through even if it claims an encoding.
+ */
+final class ContentEncoding {
+    /**
+     * The Accept-Encoding header sent when compression is enabled.
+     */
+    static final String ACCEPT = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * Wraps a response body to decode it.
+     *
+     * @param in       the body as received
+     * @param encoding the Content-Encoding header, or null
+     * @return the decoded body, or <code>in</code> if it is not encoded, or in
+     *         an encoding which is not understood
+     *
+     * @throws IOException If the start of the body cannot be read or is not
+     *                     in the encoding given.
+     */
+    static InputStream decode(InputStream in, String encoding) throws IOException {
+        if(encoding == null || in == null)
+            return in;
+
+        String name = encoding.trim().toLowerCase(Locale.ROOT);
+        boolean gzip = name.equals("gzip") || name.equals("x-gzip");
+        if(!gzip && !name.equals("deflate"))
+            return in;
+
+        PushbackInputStream peek = new PushbackInputStream(in, 2);
+        int first = peek.read();
+        if(first < 0)
+            return peek;
+        int second = peek.read();
+        if(second >= 0)
+            peek.unread(second);
+        peek.unread(first);
+
+        if(gzip)
+            return new GZIPInputStream(peek, BUFFER_SIZE);
+
+        // "deflate" should be zlib-wrapped, but some servers send raw deflate
+        boolean zlib = second >= 0 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+        return new Inflating(peek, new Inflater(!zlib));
+    }
+
+    /**
+     * Decodes a response body which has been received whole.
+     *
+     * @param body     the body as received
+     * @param encoding the Content-Encoding header, or null
+     * @return the decoded body, or <code>body</code> if it is not encoded
+     *
+     * @throws IOException If the body is not in the encoding given.
+     */
+    static byte[] decode(byte[] body, String encoding) throws IOException {
+        InputStream in = new ByteArrayInputStream(body);
+        InputStream decoded = decode(in, encoding);
+        if(decoded == in)
+            return body;
+
+        try {
+            return decoded.readAllBytes();
+        }
+        finally {
+            decoded.close();
+        }
+    }
+
+    /**
+     * Frees its inflater when closed, which InflaterInputStream only does
+     * for inflaters it creates.
+     */
+    private static final class Inflating extends InflaterInputStream {
+        private boolean closed;
+
+        Inflating(InputStream in, Inflater inflater) {
+            super(in, inflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(!closed) {
+                closed = true;
+                try {
+                    super.close();
+                }
+                finally {
+                    inf.end();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sees every call an {@link APIConnection} makes, before it is sent and
+ * after it completes.
+ *
+ * Interceptors run in the order they were added.  Before a call is sent,
+ * each interceptor may change its path, parameters and headers, or answer it
+ * at once by returning a response, in which case neither the later
+ * interceptors nor the server see the call.  Afterwards, the interceptors
+ * which saw the call are given its decoded response, or the exception it
+ * failed with, in the reverse order.
+ *
+ * Interceptors see each call once, however many times it is retried, and
+ * before the response cache: an interceptor which answers a call itself is
+ * not limited by the cache's rules.  Asynchronous calls run
+ * {@link #beforeCall} on the calling thread, and the rest on whichever thread
+ * completes the call.
+ */
+public interface Interceptor {
+    /**
+     * Called before a call is sent.
+     *
+     * @param call The call, which may be changed.
+     * @return A response to return without sending the call, or null to
+     *         send it.
+     *
+     * @throws AthenahealthException To fail the call without sending it.
+     */
+    default Object beforeCall(Call call) throws AthenahealthException {
+        return null;
+    }
+
+    /**
+     * Called with the response to a call.
+     *
+     * @param call     The call.
+     * @param response The decoded response.
+     * @return The response to give the caller, usually the one given.
+     *
+     * @throws AthenahealthException To fail the call after all.
+     */
+    default Object afterCall(Call call, Object response) throws AthenahealthException {
+        return response;
+    }
+
+    /**
+     * Called when a call fails.
+     *
+     * @param call  The call.
+     * @param error The error the call failed with.
+     */
+    default void onError(Call call, AthenahealthException error) {
+    }
+
+    /**
+     * A call which is being intercepted.
+     */
+    final class Call {
+        private final String method;
+        private final String practiceId;
+        private final boolean async;
+        private String path;
+        private Map<String, String> parameters;
+        private Map<String, String> headers;
+        private Map<String, Object> attributes;
+
+        // The number of interceptors which have seen the call
+        int seen;
+
+        Call(String method, String practiceId, String path, Map<String, String> parameters, Map<String, String> headers, boolean async) {
+            this.method = method;
+            this.practiceId = practiceId;
+            this.path = path;
+            this.parameters = parameters;
+            this.headers = headers;
+            this.async = async;
+        }
+
+        /**
+         * Gets the HTTP method.
+         *
+         * @return The method.
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * Gets the practice ID the call is made for.
+         *
+         * @return The practice ID, or empty for none.
+         */
+        public String getPracticeId() {
+            return practiceId;
+        }
+
+        /**
+         * Gets whether the caller is waiting for a future rather than
+         * blocking.
+         *
+         * @return true if the call was made by one of the asynchronous methods
+         */
+        public boolean isAsync() {
+            return async;
+        }
+
+        /**
+         * Gets the path, without the version or practice ID.
+         *
+         * @return The path, including any query string.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Sets the path to call.
+         *
+         * @param path The path, without the version or practice ID.
+         */
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        /**
+         * Gets the request parameters sent in the body.
+         *
+         * @return The parameters, or null if there are none.
+         */
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * Sets the request parameters to send in the body.
+         *
+         * @param parameters The parameters, or null for none.
+         */
+        public void setParameters(Map<String, String> parameters) {
+            this.parameters = parameters;
+        }
+
+        /**
+         * Gets the request headers.
+         *
+         * @return The headers, or null if there are none.
+         */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Sets a request header.  The caller's map of headers is not changed.
+         *
+         * @param name  The name of the header.
+         * @param value The value of the header.
+         */
+        public void setHeader(String name, String value) {
+            Map<String, String> copy = headers == null
+                ? new HashMap<String, String>()
+                : new HashMap<String, String>(headers);
+            copy.put(name, value);
+            headers = copy;
+        }
+
+        /**
+         * Gets a value an interceptor stored with the call.
+         *
+         * @param name The name of the value.
+         * @return The value, or null if there is none.
+         */
+        public Object getAttribute(String name) {
+            return attributes == null ? null : attributes.get(name);
+        }
+
+        /**
+         * Stores a value with the call, for example to pass it from
+         * {@link Interceptor#beforeCall} to {@link Interceptor#afterCall}.
+         *
+         * @param name  The name of the value.
+         * @param value The value.
+         */
+        public void setAttribute(String name, Object value) {
+            if(attributes == null)
+                attributes = new HashMap<String, Object>();
+            attributes.put(name, value);
+        }
+
+        /**
+         * Runs the interceptors before the call is sent.
+         *
+         * @return the response of the interceptor which answered the call,
+         *         or null if none did
+         */
+        Object before(Interceptor[] chain) throws AthenahealthException {
+            while(seen < chain.length) {
+                Object response = chain[seen++].beforeCall(this);
+                if(response != null)
+                    return response;
+            }
+
+            return null;
+        }
+
+        /**
+         * Runs the interceptors which saw the call over its response.
+         */
+        Object after(Interceptor[] chain, Object response) throws AthenahealthException {
+            for(int i = seen - 1; i >= 0; i--)
+                response = chain[i].afterCall(this, response);
+
+            return response;
+        }
+
+        /**
+         * Tells the interceptors which saw the call that it failed.
+         */
+        void failed(Interceptor[] chain, AthenahealthException error) {
+            for(int i = seen - 1; i >= 0; i--)
+                chain[i].onError(this, error);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.athenahealth.api;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONException;
+
+/**
+ * Reads JSON one token at a time, for {@link Codecs} to bind straight to
+ * Java objects without building a JSONObject tree first.
+ *
+ * Names and values are read into a buffer which is reused, so names can be
+ * matched and numbers parsed without allocating Strings, and values which
+ * are not wanted are skipped without being decoded at all.  Since the API
+ * sends most numbers and booleans as strings, the number and boolean readers
+ * accept them quoted as well as bare.
+ *
+ * Malformed input is reported with a {@link JSONException}, as org.json
+ * does.  Commas between members are not checked.
+ */
+final class JsonReader {
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+
+    // Characters consumed before the current buffer, for error messages
+    private long consumed;
+
+    // The last name or value read
+    private char[] scratch = new char[64];
+    private int length;
+
+    JsonReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the next character other than whitespace without consuming it,
+     * or -1 at the end of the input.
+     */
+    int peek() throws IOException {
+        while(true) {
+            if(pos == limit && !fill())
+                return -1;
+
+            char c = buffer[pos];
+            if(c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\uFEFF')
+                pos++;
+            else
+                return c;
+        }
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+    }
+
+    void endObject() throws IOException {
+        expect('}');
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+    }
+
+    void endArray() throws IOException {
+        expect(']');
+    }
+
+    /**
+     * Returns whether the current object or array has another member,
+     * consuming the comma before it.
+     */
+    boolean hasNext() throws IOException {
+        int c = peek();
+        if(c == ',') {
+            pos++;
+            c = peek();
+        }
+        return c != '}' && c != ']' && c != -1;
+    }
+
+    /**
+     * Reads a member's name, and the colon after it, into the buffer
+     * returned by {@link #chars}.  ASCII letters are made lower case.
+     *
+     * @return the length of the name
+     */
+    int nextName() throws IOException {
+        if(peek() != '"')
+            throw syntax("Expected a name");
+        pos++;
+        readString(true);
+        expect(':');
+        return length;
+    }
+
+    /**
+     * Reads a member's name as it is, and the colon after it.
+     */
+    String nextNameString() throws IOException {
+        if(peek() != '"')
+            throw syntax("Expected a name");
+        pos++;
+        readString(false);
+        String name = new String(scratch, 0, length);
+        expect(':');
+        return name;
+    }
+
+    /**
+     * @return the buffer holding the last name read
+     */
+    char[] chars() {
+        return scratch;
+    }
+
+    /**
+     * Consumes a null if there is one.
+     *
+     * @return true if the next value was null
+     */
+    boolean nextNull() throws IOException {
+        if(peek() != 'n')
+            return false;
+
+        readToken();
+        if(!matches("null"))
+            throw syntax("Expected null");
+        return true;
+    }
+
+    /**
+     * Reads a string, or the text of a number or boolean.
+     */
+    String nextString() throws IOException {
+        readScalar();
+        return new String(scratch, 0, length);
+    }
+
+    /**
+     * Reads a whole number, bare or quoted.  An empty string is 0.
+     */
+    long nextLong() throws IOException {
+        readScalar();
+        if(length == 0)
+            return 0;
+
+        int i = 0;
+        boolean negative = scratch[0] == '-';
+        if(negative || scratch[0] == '+')
+            i++;
+        if(i == length)
+            throw syntax("Expected a number");
+
+        long value = 0;
+        for(; i < length; i++) {
+            char c = scratch[i];
+            if(c < '0' || c > '9' || value < Long.MIN_VALUE / 10) {
+                // A fraction, exponent, or overflow
+                return (long)parseDouble();
+            }
+            value = value * 10 - (c - '0');
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Reads a whole number which fits in an int.
+     */
+    int nextInt() throws IOException {
+        long value = nextLong();
+        if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw syntax("Number out of range for int: " + value);
+        return (int)value;
+    }
+
+    /**
+     * Reads a number, bare or quoted.  An empty string is 0.
+     */
+    double nextDouble() throws IOException {
+        readScalar();
+        return length == 0 ? 0 : parseDouble();
+    }
+
+    /**
+     * Reads true or false, bare or quoted, or Y or N as the API sometimes
+     * sends them.  An empty string is false.
+     */
+    boolean nextBoolean() throws IOException {
+        readScalar();
+        if(length == 0 || matchesIgnoreCase("false") || matchesIgnoreCase("n") || matchesIgnoreCase("no"))
+            return false;
+        if(matchesIgnoreCase("true") || matchesIgnoreCase("y") || matchesIgnoreCase("yes"))
+            return true;
+        throw syntax("Expected a boolean but found " + new String(scratch, 0, length));
+    }
+
+    /**
+     * Skips a value of any kind, including whole objects and arrays, without
+     * decoding it.
+     */
+    void skipValue() throws IOException {
+        int c = peek();
+        if(c == '"') {
+            pos++;
+            skipString();
+            return;
+        }
+        if(c != '{' && c != '[') {
+            if(c == -1 || c == '}' || c == ']' || c == ',' || c == ':')
+                throw syntax("Expected a value");
+            readToken();
+            return;
+        }
+
+        int depth = 0;
+        while(true) {
+            int next = read();
+            switch(next) {
+            case -1:
+                throw syntax("Unterminated " + (c == '{' ? "object" : "array"));
+            case '"':
+                skipString();
+                break;
+            case '{':
+            case '[':
+                depth++;
+                break;
+            case '}':
+            case ']':
+                if(--depth == 0)
+                    return;
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns an exception describing a problem at the current position.
+     */
+    JSONException syntax(String message) {
+        return new JSONException(message + " at character " + (consumed + pos));
+    }
+
+    private boolean fill() throws IOException {
+        consumed += limit;
+        pos = 0;
+        limit = in.read(buffer, 0, buffer.length);
+        if(limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private int read() throws IOException {
+        if(pos == limit && !fill())
+            return -1;
+        return buffer[pos++];
+    }
+
+    private void expect(char c) throws IOException {
+        if(peek() != c)
+            throw syntax("Expected '" + c + "'");
+        pos++;
+    }
+
+    /**
+     * Reads a string value or a bare token into the buffer.
+     */
+    private void readScalar() throws IOException {
+        int c = peek();
+        if(c == '"') {
+            pos++;
+            readString(false);
+        }
+        else if(c == '{' || c == '[' || c == '}' || c == ']' || c == ',' || c == -1) {
+            throw syntax("Expected a string or number");
+        }
+        else {
+            readToken();
+        }
+    }
+
+    /**
+     * Reads a bare token, such as a number, true, false or null.
+     */
+    private void readToken() throws IOException {
+        length = 0;
+        while(true) {
+            if(pos == limit && !fill())
+                return;
+
+            char c = buffer[pos];
+            if(c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\n' || c == '\r' || c == '\t')
+                return;
+            append(c);
+            pos++;
+        }
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote has been consumed.
+     */
+    private void readString(boolean lowerCase) throws IOException {
+        length = 0;
+        while(true) {
+            // Copy runs of plain characters straight from the buffer
+            int start = pos;
+            while(pos < limit) {
+                char c = buffer[pos];
+                if(c == '"' || c == '\\' || (lowerCase && c >= 'A' && c <= 'Z'))
+                    break;
+                pos++;
+            }
+            if(pos > start) {
+                ensure(pos - start);
+                System.arraycopy(buffer, start, scratch, length, pos - start);
+                length += pos - start;
+            }
+
+            int c = read();
+            switch(c) {
+            case -1:
+                throw syntax("Unterminated string");
+            case '"':
+                return;
+            case '\\':
+                append(escape());
+                break;
+            default:
+                // An upper case letter in a name, or the first character of the next buffer
+                append(lowerCase && c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : (char)c);
+                break;
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        while(true) {
+            int c = read();
+            if(c == -1)
+                throw syntax("Unterminated string");
+            if(c == '"')
+                return;
+            if(c == '\\')
+                read();
+        }
+    }
+
+    private char escape() throws IOException {
+        int c = read();
+        switch(c) {
+        case 'b':
+            return '\b';
+        case 't':
+            return '\t';
+        case 'n':
+            return '\n';
+        case 'f':
+            return '\f';
+        case 'r':
+            return '\r';
+        case 'u':
+            int value = 0;
+            for(int i = 0; i < 4; i++) {
+                int digit = Character.digit(read(), 16);
+                if(digit < 0)
+                    throw syntax("Invalid \\u escape");
+                value = value << 4 | digit;
+            }
+            return (char)value;
+        case '"':
+        case '\\':
+        case '/':
+            return (char)c;
+        default:
+            throw syntax("Invalid escape");
+        }
+    }
+
+    private void append(char c) {
+        ensure(1);
+        scratch[length++] = c;
+    }
+
+    private void ensure(int more) {
+        if(length + more > scratch.length) {
+            char[] bigger = new char[Math.max(scratch.length * 2, length + more)];
+            System.arraycopy(scratch, 0, bigger, 0, length);
+            scratch = bigger;
+        }
+    }
+
+    private boolean matches(String s) {
+        if(length != s.length())
+            return false;
+        for(int i = 0; i < length; i++)
+            if(scratch[i] != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    private boolean matchesIgnoreCase(String s) {
+        if(length != s.length())
+            return false;
+        for(int i = 0; i < length; i++)
+            if(Character.toLowerCase(scratch[i]) != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    private double parseDouble() {
+        try {
+            return Double.parseDouble(new String(scratch, 0, length));
+        }
+        catch (NumberFormatException e) {
+            throw syntax("Expected a number but found " + new String(scratch, 0, length));
+        }
+    }
+}
@@ -0,0 +1,720 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Records how long calls take and what they return, per HTTP method and
+ * path template.
+ *
+ * Path templates are built as for {@link CircuitBreaker}: IDs and other
+ * segments with digits become "*", so every patient's appointments are
+ * counted together.  For each method and template the metrics keep latency
+ * histograms of the whole exchange and of its three phases, counts of status
+ * codes and of exceptions, and the bytes sent and received.  Compressed
+ * responses are counted both as received and as decoded.
+ *
+ * <ul>
+ * <li>connect: opening the connection, which is close to zero when a
+ *     keep-alive connection is reused.  Asynchronous calls do not report it.</li>
+ * <li>first byte: sending the request and waiting for the response headers,
+ *     which is mostly the server's time.</li>
+ * <li>body: reading the response body.</li>
+ * </ul>
+ *
+ * The metrics also count access tokens fetched and calls retried after a 401.
+ * Read them with {@link #getEndpoints()}, be told of each call with a
+ * {@link Listener}, or publish them over JMX with {@link #registerMBean}.
+ * Recording a call takes a few atomic increments and no locks.
+ */
+public class Metrics {
+    /**
+     * Told of every exchange with the server.  Listeners are called on the
+     * thread which made the call, or a thread of the asynchronous client, so
+     * they should return quickly.
+     */
+    public interface Listener {
+        /**
+         * Called when a response has been received.
+         *
+         * @param method        The HTTP method.
+         * @param template      The path template.
+         * @param status        The HTTP status code.
+         * @param connectNanos  The time taken to connect, in ns, or -1 if
+         *                      not known.
+         * @param firstByteNanos The time until the response headers arrived,
+         *                      in ns.
+         * @param bodyNanos     The time taken to read the body, in ns.
+         * @param bytesSent     The size of the request body.
+         * @param bytesReceived The size of the response body.
+         */
+        default void requestCompleted(String method, String template, int status, long connectNanos,
+                long firstByteNanos, long bodyNanos, long bytesSent, long bytesReceived) {
+        }
+
+        /**
+         * Called when a call fails.
+         *
+         * @param method   The HTTP method.
+         * @param template The path template.
+         * @param error    The error the call failed with.
+         */
+        default void requestFailed(String method, String template, Throwable error) {
+        }
+    }
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final LongAdder tokenRequests = new LongAdder();
+    private final LongAdder unauthorizedRetries = new LongAdder();
+
+    /**
+     * Adds a listener to be told of every exchange.
+     *
+     * @param listener The listener to add.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets the metrics of every method and path template called so far, in
+     * order.
+     *
+     * @return A snapshot of each endpoint.
+     */
+    public List<Endpoint> getEndpoints() {
+        List<Endpoint> list = new ArrayList<Endpoint>(new TreeMap<String, Endpoint>(endpoints).values());
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Gets the metrics of one method and path.
+     *
+     * @param method The HTTP method.
+     * @param path   The path, with or without IDs and a query string.
+     * @return The endpoint's metrics, or null if it has not been called.
+     */
+    public Endpoint getEndpoint(String method, String path) {
+        return endpoints.get(method + " " + CircuitBreaker.template(path));
+    }
+
+    /**
+     * Gets the number of access tokens requested.
+     *
+     * @return The number of token requests.
+     */
+    public long getTokenRequestCount() {
+        return tokenRequests.sum();
+    }
+
+    /**
+     * Gets the number of calls retried because the access token was
+     * rejected with 401 Not Authorized.
+     *
+     * @return The number of retries.
+     */
+    public long getUnauthorizedRetryCount() {
+        return unauthorizedRetries.sum();
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public void reset() {
+        endpoints.clear();
+        tokenRequests.reset();
+        unauthorizedRetries.reset();
+    }
+
+    /**
+     * Publishes the metrics as an MXBean named
+     * <code>com.athenahealth.api:type=Metrics,name=</code><i>name</i> on the
+     * platform MBean server.
+     *
+     * @param name A name which distinguishes these metrics from others in
+     *             the same JVM.
+     * @return The name the bean was registered under.
+     *
+     * @throws JMException If the bean cannot be registered.
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.athenahealth.api:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBeanAdapter(), objectName);
+        return objectName;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{ tokenRequests=").append(tokenRequests.sum())
+            .append(", unauthorizedRetries=").append(unauthorizedRetries.sum());
+        for(Endpoint endpoint : getEndpoints())
+            sb.append(",\n  ").append(endpoint);
+
+        return sb.append(" }").toString();
+    }
+
+    /**
+     * Records an exchange which received a response.  <code>bytesDecoded</code>
+     * is the size of the body after decompression.
+     */
+    void completed(String method, String path, int status, long connectNanos, long firstByteNanos, long bodyNanos, long bytesSent,
+            long bytesReceived, long bytesDecoded) {
+        Endpoint endpoint = endpoint(method, path);
+        endpoint.completed(status, connectNanos, firstByteNanos, bodyNanos, bytesSent, bytesReceived, bytesDecoded);
+
+        for(Listener listener : listeners)
+            listener.requestCompleted(method, endpoint.template, status, connectNanos, firstByteNanos, bodyNanos, bytesSent, bytesReceived);
+    }
+
+    /**
+     * Records a call which failed.
+     */
+    void failed(String method, String path, Throwable error) {
+        Endpoint endpoint = endpoint(method, path);
+        endpoint.failed(error);
+
+        for(Listener listener : listeners)
+            listener.requestFailed(method, endpoint.template, error);
+    }
+
+    void tokenRequested() {
+        tokenRequests.increment();
+    }
+
+    void unauthorizedRetry() {
+        unauthorizedRetries.increment();
+    }
+
+    /**
+     * Wraps a stream to count the bytes read from it.
+     */
+    static CountingInputStream count(InputStream in) {
+        return new CountingInputStream(in);
+    }
+
+    /**
+     * Wraps a stream to count the bytes written to it.
+     */
+    static CountingOutputStream count(OutputStream out) {
+        return new CountingOutputStream(out);
+    }
+
+    private Endpoint endpoint(String method, String path) {
+        String template = CircuitBreaker.template(path);
+        String key = method + " " + template;
+        Endpoint endpoint = endpoints.get(key);
+        if(endpoint == null) {
+            Endpoint created = new Endpoint(method, template);
+            endpoint = endpoints.putIfAbsent(key, created);
+            if(endpoint == null)
+                endpoint = created;
+        }
+
+        return endpoint;
+    }
+
+    /**
+     * The metrics of one HTTP method and path template.  The counters are
+     * live: they go on changing as calls are made.
+     */
+    public static final class Endpoint {
+        private final String method;
+        private final String template;
+        private final Histogram connect = new Histogram();
+        private final Histogram firstByte = new Histogram();
+        private final Histogram body = new Histogram();
+        private final Histogram total = new Histogram();
+        private final ConcurrentMap<Integer, LongAdder> statuses = new ConcurrentHashMap<Integer, LongAdder>();
+        private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder received = new LongAdder();
+        private final LongAdder decoded = new LongAdder();
+
+        Endpoint(String method, String template) {
+            this.method = method;
+            this.template = template;
+        }
+
+        /**
+         * Gets the HTTP method.
+         *
+         * @return The method.
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * Gets the path template.
+         *
+         * @return The template, such as <code>patients/&#42;/appointments</code>.
+         */
+        public String getTemplate() {
+            return template;
+        }
+
+        /**
+         * Gets the number of responses received.
+         *
+         * @return The number of responses.
+         */
+        public long getResponseCount() {
+            return total.count();
+        }
+
+        /**
+         * Gets the number of responses with each status code.
+         *
+         * @return The counts, by status code.
+         */
+        public Map<Integer, Long> getStatusCounts() {
+            Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+            for(Map.Entry<Integer, LongAdder> status : statuses.entrySet())
+                counts.put(status.getKey(), status.getValue().sum());
+            return counts;
+        }
+
+        /**
+         * Gets the number of calls which failed with each type of exception.
+         *
+         * @return The counts, by exception class name.
+         */
+        public Map<String, Long> getExceptionCounts() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for(Map.Entry<String, LongAdder> error : errors.entrySet())
+                counts.put(error.getKey(), error.getValue().sum());
+            return counts;
+        }
+
+        /**
+         * Gets the total size of the request bodies sent.
+         *
+         * @return The number of bytes.
+         */
+        public long getBytesSent() {
+            return sent.sum();
+        }
+
+        /**
+         * Gets the total size of the response bodies received, as sent over
+         * the network.
+         *
+         * @return The number of bytes.
+         */
+        public long getBytesReceived() {
+            return received.sum();
+        }
+
+        /**
+         * Gets the total size of the response bodies after decompression.
+         * This is the same as {@link #getBytesReceived} unless responses
+         * were compressed.
+         *
+         * @return The number of bytes.
+         */
+        public long getBytesDecoded() {
+            return decoded.sum();
+        }
+
+        /**
+         * Gets the time taken to connect.
+         *
+         * @return A snapshot of the latency.
+         */
+        public Latency getConnectLatency() {
+            return connect.snapshot();
+        }
+
+        /**
+         * Gets the time from sending the request to receiving the response
+         * headers.
+         *
+         * @return A snapshot of the latency.
+         */
+        public Latency getFirstByteLatency() {
+            return firstByte.snapshot();
+        }
+
+        /**
+         * Gets the time taken to read the response body.
+         *
+         * @return A snapshot of the latency.
+         */
+        public Latency getBodyLatency() {
+            return body.snapshot();
+        }
+
+        /**
+         * Gets the time taken by the whole exchange.
+         *
+         * @return A snapshot of the latency.
+         */
+        public Latency getTotalLatency() {
+            return total.snapshot();
+        }
+
+        @Override
+        public String toString() {
+            Latency latency = total.snapshot();
+            return method + " " + template + ": responses=" + latency.getCount()
+                + ", p50=" + latency.getPercentile(50) + "ms, p99=" + latency.getPercentile(99)
+                + "ms, max=" + latency.getMax() + "ms, statuses=" + getStatusCounts()
+                + ", exceptions=" + getExceptionCounts()
+                + ", sent=" + sent.sum() + ", received=" + received.sum() + ", decoded=" + decoded.sum();
+        }
+
+        void completed(int status, long connectNanos, long firstByteNanos, long bodyNanos, long bytesSent, long bytesReceived, long bytesDecoded) {
+            long elapsed = firstByteNanos + bodyNanos;
+            if(connectNanos >= 0) {
+                connect.record(connectNanos);
+                elapsed += connectNanos;
+            }
+            firstByte.record(firstByteNanos);
+            body.record(bodyNanos);
+            total.record(elapsed);
+
+            adder(statuses, status).increment();
+            if(bytesSent > 0)
+                sent.add(bytesSent);
+            if(bytesReceived > 0)
+                received.add(bytesReceived);
+            if(bytesDecoded > 0)
+                decoded.add(bytesDecoded);
+        }
+
+        void failed(Throwable error) {
+            adder(errors, error.getClass().getSimpleName()).increment();
+        }
+
+        private static <K> LongAdder adder(ConcurrentMap<K, LongAdder> map, K key) {
+            LongAdder adder = map.get(key);
+            if(adder == null) {
+                LongAdder created = new LongAdder();
+                adder = map.putIfAbsent(key, created);
+                if(adder == null)
+                    adder = created;
+            }
+
+            return adder;
+        }
+    }
+
+    /**
+     * A snapshot of a latency histogram.  Percentiles are accurate to within
+     * about 6%.
+     */
+    public static final class Latency {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Latency(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Gets the number of times recorded.
+         *
+         * @return The count.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the mean time.
+         *
+         * @return The mean, in ms.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : sum / 1000.0 / count;
+        }
+
+        /**
+         * Gets the longest time.
+         *
+         * @return The maximum, in ms.
+         */
+        public double getMax() {
+            return max / 1000.0;
+        }
+
+        /**
+         * Gets the time within which a given percentage of calls completed.
+         *
+         * @param percentile The percentage, such as 50 or 99.9.
+         * @return The time, in ms.
+         */
+        public double getPercentile(double percentile) {
+            if(count == 0)
+                return 0;
+
+            long rank = (long)Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if(seen >= Math.max(rank, 1))
+                    return Math.min(Histogram.highest(i), max) / 1000.0;
+            }
+
+            return max / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return "{ count=" + count + ", mean=" + getMean() + "ms, p50=" + getPercentile(50)
+                + "ms, p99=" + getPercentile(99) + "ms, max=" + getMax() + "ms }";
+        }
+    }
+
+    /**
+     * A histogram of times in microseconds, with 16 buckets for each power of
+     * two.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (65 - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+            counts.incrementAndGet(index(micros));
+            count.increment();
+            sum.add(micros);
+
+            long current = max.get();
+            while(micros > current && !max.compareAndSet(current, micros))
+                current = max.get();
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        Latency snapshot() {
+            long[] copy = new long[BUCKETS];
+            long total = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+                total += copy[i];
+            }
+
+            return new Latency(copy, total, sum.sum(), max.get());
+        }
+
+        static int index(long micros) {
+            if(micros < SUB_BUCKETS)
+                return (int)micros;
+
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int shift = exponent - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int)((micros >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * Returns the highest time which falls in a bucket.
+         */
+        static long highest(int index) {
+            if(index < SUB_BUCKETS)
+                return index;
+
+            int shift = index / SUB_BUCKETS - 1;
+            long lowest = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+
+    static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private final class MXBeanAdapter implements MetricsMXBean {
+        @Override
+        public long getTokenRequestCount() {
+            return Metrics.this.getTokenRequestCount();
+        }
+
+        @Override
+        public long getUnauthorizedRetryCount() {
+            return Metrics.this.getUnauthorizedRetryCount();
+        }
+
+        @Override
+        public Map<String, Long> getResponseCounts() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for(Endpoint endpoint : endpoints.values())
+                counts.put(endpoint.method + " " + endpoint.template, endpoint.getResponseCount());
+            return counts;
+        }
+
+        @Override
+        public Map<String, Long> getStatusCounts() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for(Endpoint endpoint : endpoints.values())
+                for(Map.Entry<Integer, Long> status : endpoint.getStatusCounts().entrySet())
+                    counts.merge(String.valueOf(status.getKey()), status.getValue(), Long::sum);
+            return counts;
+        }
+
+        @Override
+        public Map<String, Long> getExceptionCounts() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for(Endpoint endpoint : endpoints.values())
+                for(Map.Entry<String, Long> error : endpoint.getExceptionCounts().entrySet())
+                    counts.merge(error.getKey(), error.getValue(), Long::sum);
+            return counts;
+        }
+
+        @Override
+        public long getBytesSent() {
+            long total = 0;
+            for(Endpoint endpoint : endpoints.values())
+                total += endpoint.getBytesSent();
+            return total;
+        }
+
+        @Override
+        public long getBytesReceived() {
+            long total = 0;
+            for(Endpoint endpoint : endpoints.values())
+                total += endpoint.getBytesReceived();
+            return total;
+        }
+
+        @Override
+        public long getBytesDecoded() {
+            long total = 0;
+            for(Endpoint endpoint : endpoints.values())
+                total += endpoint.getBytesDecoded();
+            return total;
+        }
+
+        @Override
+        public Map<String, String> getLatencies() {
+            Map<String, String> latencies = new TreeMap<String, String>();
+            for(Endpoint endpoint : endpoints.values())
+                latencies.put(endpoint.method + " " + endpoint.template,
+                        "total=" + endpoint.getTotalLatency() + " connect=" + endpoint.getConnectLatency()
+                        + " firstByte=" + endpoint.getFirstByteLatency() + " body=" + endpoint.getBodyLatency());
+            return latencies;
+        }
+
+        @Override
+        public void reset() {
+            Metrics.this.reset();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.util.Map;
+
+/**
+ * The view of {@link Metrics} published over JMX by
+ * {@link Metrics#registerMBean}.  Endpoints are named by HTTP method and
+ * path template, such as <code>GET patients/&#42;/appointments</code>.
+ */
+public interface MetricsMXBean {
+    /**
+     * @return The number of access tokens requested.
+     */
+    long getTokenRequestCount();
+
+    /**
+     * @return The number of calls retried after 401 Not Authorized.
+     */
+    long getUnauthorizedRetryCount();
+
+    /**
+     * @return The number of responses received, by endpoint.
+     */
+    Map<String, Long> getResponseCounts();
+
+    /**
+     * @return The number of responses, by status code.
+     */
+    Map<String, Long> getStatusCounts();
+
+    /**
+     * @return The number of failed calls, by exception class name.
+     */
+    Map<String, Long> getExceptionCounts();
+
+    /**
+     * @return The total size of the request bodies sent.
+     */
+    long getBytesSent();
+
+    /**
+     * @return The total size of the response bodies received, as sent over
+     *         the network.
+     */
+    long getBytesReceived();
+
+    /**
+     * @return The total size of the response bodies after decompression.
+     */
+    long getBytesDecoded();
+
+    /**
+     * @return A summary of each latency histogram, by endpoint.
+     */
+    Map<String, String> getLatencies();
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    void reset();
+}
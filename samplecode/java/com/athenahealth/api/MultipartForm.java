@@ -0,0 +1,267 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A multipart/form-data request body, such as a document upload to
+ * <code>/patients/{patientid}/documents</code>.
+ *
+ * Files and streams are read as the request is sent and are never held in
+ * memory.  By default the body is sent with chunked transfer encoding.  Call
+ * {@link #setFixedLength} to send a Content-Length header instead; the length
+ * is then worked out from the sizes of the files and the lengths given for
+ * the streams before anything is sent.
+ *
+ * <pre>
+ * MultipartForm form = new MultipartForm()
+ *     .addField("departmentid", "1")
+ *     .addField("documentsubclass", "CLINICALDOCUMENT")
+ *     .addFile("attachmentcontents", Paths.get("scan.pdf"), "application/pdf");
+ * Object response = api.upload("/patients/1/documents", form);
+ * </pre>
+ *
+ * A form with a stream part can only be sent once.
+ */
+public final class MultipartForm implements RequestBody {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] DASHES = { '-', '-' };
+    private static final char[] BOUNDARY_CHARS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String boundary;
+    private final List<Part> parts = new ArrayList<Part>();
+    private boolean fixedLength;
+
+    /**
+     * Creates an empty form with a random boundary.
+     */
+    public MultipartForm() {
+        StringBuilder sb = new StringBuilder("----------");
+        for(int i = 0; i < 32; i++)
+            sb.append(BOUNDARY_CHARS[random.nextInt(BOUNDARY_CHARS.length)]);
+        boundary = sb.toString();
+    }
+
+    /**
+     * Adds a text field.
+     *
+     * @param name  the name of the field
+     * @param value the value of the field
+     * @return this form
+     */
+    public MultipartForm addField(String name, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        parts.add(new Part(header(name, null, null), bytes, null, null, bytes.length));
+        return this;
+    }
+
+    /**
+     * Adds a file, using its name as the file name.
+     *
+     * @param name        the name of the field
+     * @param file        the file to send
+     * @param contentType the media type of the file, such as "application/pdf"
+     * @return this form
+     */
+    public MultipartForm addFile(String name, Path file, String contentType) {
+        Path fileName = file.getFileName();
+        return addFile(name, fileName == null ? name : fileName.toString(), file, contentType);
+    }
+
+    /**
+     * Adds a file.
+     *
+     * @param name        the name of the field
+     * @param fileName    the file name to send
+     * @param file        the file to send
+     * @param contentType the media type of the file, such as "application/pdf"
+     * @return this form
+     */
+    public MultipartForm addFile(String name, String fileName, Path file, String contentType) {
+        parts.add(new Part(header(name, fileName, contentType), null, file, null, -1));
+        return this;
+    }
+
+    /**
+     * Adds the contents of a stream as a file.  The stream is read when the
+     * form is sent and closed afterwards.
+     *
+     * @param name        the name of the field
+     * @param fileName    the file name to send
+     * @param in          the contents of the file
+     * @param length      the number of bytes in the stream, or -1 if not known
+     * @param contentType the media type of the file, such as "application/pdf"
+     * @return this form
+     */
+    public MultipartForm addFile(String name, String fileName, InputStream in, long length, String contentType) {
+        parts.add(new Part(header(name, fileName, contentType), null, null, in, length));
+        return this;
+    }
+
+    /**
+     * Sets whether to send a Content-Length header, computed before the form
+     * is sent, instead of using chunked transfer encoding.  Every stream part
+     * must then have a known length.  Some servers and proxies do not accept
+     * chunked requests.
+     *
+     * @param fixedLength true to send a Content-Length header
+     */
+    public void setFixedLength(boolean fixedLength) {
+        this.fixedLength = fixedLength;
+    }
+
+    /**
+     * Returns whether a Content-Length header will be sent.
+     *
+     * @return true if the length is computed up front
+     */
+    public boolean isFixedLength() {
+        return fixedLength;
+    }
+
+    @Override
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    /**
+     * Returns the length of the whole form if {@link #setFixedLength} is set,
+     * or else -1.
+     *
+     * @throws IllegalStateException If a stream part has no known length.
+     */
+    @Override
+    public long getContentLength() throws IOException {
+        if(!fixedLength)
+            return -1;
+
+        byte[] boundaryBytes = boundary.getBytes(UTF8);
+        long length = 0;
+        for(Part part : parts) {
+            long size = part.size();
+            if(size < 0)
+                throw new IllegalStateException("Cannot compute Content-Length: the length of a stream part is unknown");
+
+            // --boundary CRLF headers CRLF contents CRLF
+            length += DASHES.length + boundaryBytes.length + CRLF.length + part.header.length + CRLF.length + size + CRLF.length;
+        }
+
+        // --boundary-- CRLF
+        return length + DASHES.length + boundaryBytes.length + DASHES.length + CRLF.length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        for(Part part : parts)
+            if(part.in != null)
+                return false;
+
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] boundaryBytes = boundary.getBytes(UTF8);
+        for(Part part : parts) {
+            out.write(DASHES);
+            out.write(boundaryBytes);
+            out.write(CRLF);
+            out.write(part.header);
+            out.write(CRLF);
+
+            if(part.value != null)
+                out.write(part.value);
+            else if(part.file != null)
+                Files.copy(part.file, out);
+            else {
+                try {
+                    part.in.transferTo(out);
+                }
+                finally {
+                    part.in.close();
+                }
+            }
+
+            out.write(CRLF);
+        }
+
+        out.write(DASHES);
+        out.write(boundaryBytes);
+        out.write(DASHES);
+        out.write(CRLF);
+    }
+
+    /**
+     * Builds the headers of a part, up to and including the CRLF which ends
+     * the last header.
+     */
+    private static byte[] header(String name, String fileName, String contentType) {
+        StringBuilder sb = new StringBuilder("Content-Disposition: form-data; name=\"")
+            .append(quote(name))
+            .append('"');
+        if(fileName != null)
+            sb.append("; filename=\"").append(quote(fileName)).append('"');
+        sb.append("\r\n");
+
+        if(contentType != null)
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+
+        return sb.toString().getBytes(UTF8);
+    }
+
+    /**
+     * Escapes a name for use in a quoted header parameter.
+     */
+    private static String quote(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\r", "").replace("\n", "");
+    }
+
+    private static final class Part {
+        final byte[] header;
+        final byte[] value;
+        final Path file;
+        final InputStream in;
+        final long length;
+
+        Part(byte[] header, byte[] value, Path file, InputStream in, long length) {
+            this.header = header;
+            this.value = value;
+            this.file = file;
+            this.in = in;
+            this.length = length;
+        }
+
+        long size() throws IOException {
+            return file != null ? Files.size(file) : length;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MultipartForm { parts=" + parts.size() + ", fixedLength=" + fixedLength + " }";
+    }
+}
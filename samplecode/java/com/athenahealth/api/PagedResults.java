@@ -0,0 +1,436 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The records of a paginated list endpoint, fetched lazily page by page.
+ *
+ * List endpoints return one page of records along with a <code>next</code>
+ * link to the following page.  Iterating over this object follows those
+ * links, requesting the next page in the background while the current one is
+ * being consumed.  How far ahead pages are fetched is bounded both by a number
+ * of pages and by a number of records held in memory.
+ *
+ * Each call to {@link #iterator} starts again from the first page.  Errors
+ * are thrown from the iterator as {@link UncheckedAthenahealthException},
+ * including a page which is an error response or holds no list of records,
+ * such as an expired next link, so that the records never end early.
+ *
+ * When every record is needed at once, {@link #fetchParallel} fetches the
+ * pages concurrently by offset instead of following the links one by one.
+ */
+public final class PagedResults implements Iterable<JSONObject> {
+    private final APIConnection connection;
+    private final String practiceId;
+    private final String path;
+    private final Map<String, String> parameters;
+    private final Map<String, String> headers;
+    private final String listKey;
+
+    private volatile int prefetchDepth = 1;
+    private volatile int maxBufferedRecords = 5000;
+
+    PagedResults(APIConnection connection, String practiceId, String path, Map<String, String> parameters, Map<String, String> headers, String listKey) {
+        this.connection = connection;
+        this.practiceId = practiceId;
+        this.path = path;
+        this.parameters = parameters;
+        this.headers = headers;
+        this.listKey = listKey;
+    }
+
+    /**
+     * Sets how many pages may be requested ahead of the page being consumed.
+     * A depth of zero (0) means pages are only requested when they are needed.
+     * The default is 1.
+     *
+     * @param depth The number of pages to fetch ahead.
+     */
+    public void setPrefetchDepth(int depth) {
+        if(depth < 0)
+            throw new IllegalArgumentException("Prefetch depth must not be negative");
+
+        prefetchDepth = depth;
+    }
+
+    /**
+     * Gets how many pages may be requested ahead of the page being consumed.
+     *
+     * @return The number of pages to fetch ahead.
+     */
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * Sets how many fetched but unconsumed records may be held in memory.
+     * No further pages are prefetched while this many records are waiting.
+     * The default is 5000.
+     *
+     * @param max The maximum number of buffered records.
+     */
+    public void setMaxBufferedRecords(int max) {
+        if(max < 0)
+            throw new IllegalArgumentException("Maximum buffered records must not be negative");
+
+        maxBufferedRecords = max;
+    }
+
+    /**
+     * Gets how many fetched but unconsumed records may be held in memory.
+     *
+     * @return The maximum number of buffered records.
+     */
+    public int getMaxBufferedRecords() {
+        return maxBufferedRecords;
+    }
+
+    @Override
+    public Iterator<JSONObject> iterator() {
+        return new PageIterator();
+    }
+
+    /**
+     * Returns a sequential stream over the records.
+     *
+     * @return the stream
+     */
+    public Stream<JSONObject> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Fetches every record at once, requesting pages concurrently.
+     *
+     * The first page is fetched on its own to learn the page size and the
+     * total number of records.  The remaining pages are then requested by
+     * offset, at most <code>parallelism</code> at a time, and their records
+     * are returned in page order.  If the first page does not report a
+     * <code>totalcount</code>, the pages are fetched one after another.
+     *
+     * Records can move between pages while they are being fetched, for
+     * example when a record is added before one that was already fetched.
+     * When a key is supplied, only the first record with each value of the
+     * key is kept, so shifted records are not returned twice.
+     *
+     * @param parallelism the maximum number of pages to request at once
+     * @param key         the field which identifies a record, such as
+     *                    "patientid", or null to keep every record
+     * @return the records of all pages, in order
+     *
+     * @throws AthenahealthException If any page cannot be fetched, or is an
+     *                               error response rather than a page of
+     *                               records.  No partial list is returned.
+     */
+    public List<JSONObject> fetchParallel(int parallelism, String key) throws AthenahealthException {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+
+        Map<String, String> firstParameters = parameters == null ? new HashMap<String, String>() : parameters;
+        JSONObject first = toPage(connection.call("GET", practiceId, connection.appendQuery(path, parameters), null, headers));
+        JSONArray firstRecords = records(first);
+
+        List<JSONArray> pages = new ArrayList<JSONArray>();
+        pages.add(firstRecords);
+
+        int offset = parseInt(firstParameters.get("offset"), 0);
+        int limit = parseInt(firstParameters.get("limit"), firstRecords.length());
+        int total = first.optInt("totalcount", -1);
+
+        if(total < 0) {
+            // Without a total there is nothing to fan out over
+            String next = first.optString("next", null);
+            while(next != null && !next.isEmpty()) {
+                JSONObject page = toPage(connection.call("GET", "", connection.relativeLink(next), null, headers));
+                pages.add(records(page));
+                next = page.optString("next", null);
+            }
+        }
+        else if(limit > 0) {
+            List<CompletableFuture<Object>> requests = new ArrayList<CompletableFuture<Object>>();
+            final Semaphore permits = new Semaphore(parallelism);
+            final AtomicBoolean failed = new AtomicBoolean();
+            try {
+                // Stop sending requests once one has failed; the failure is thrown below
+                for(int pageOffset = offset + limit; pageOffset < total && !failed.get(); pageOffset += limit) {
+                    Map<String, String> pageParameters = new HashMap<String, String>(firstParameters);
+                    pageParameters.put("offset", String.valueOf(pageOffset));
+                    pageParameters.put("limit", String.valueOf(limit));
+
+                    permits.acquire();
+                    CompletableFuture<Object> request = connection.callAsync("GET", practiceId, connection.appendQuery(path, pageParameters), null, headers);
+                    request.whenComplete((response, error) -> {
+                        // The API's errors are returned as the response, not thrown
+                        if(error != null || response instanceof JSONObject && ((JSONObject)response).has("error"))
+                            failed.set(true);
+                        permits.release();
+                    });
+                    requests.add(request);
+                }
+
+                for(CompletableFuture<Object> request : requests)
+                    pages.add(records(toPage(await(request))));
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new CommunicationException("Interrupted while fetching pages", ie);
+            }
+            finally {
+                for(CompletableFuture<Object> request : requests)
+                    request.cancel(false);
+            }
+        }
+
+        List<JSONObject> result = new ArrayList<JSONObject>(Math.max(total, firstRecords.length()));
+        Set<Object> seen = key == null ? null : new HashSet<Object>();
+        for(JSONArray records : pages) {
+            for(int i = 0; i < records.length(); i++) {
+                JSONObject record = records.getJSONObject(i);
+                if(seen == null || !record.has(key) || seen.add(record.get(key).toString()))
+                    result.add(record);
+            }
+        }
+
+        return result;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if(value == null)
+            return defaultValue;
+
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    private static JSONObject toPage(Object response) throws AthenahealthException {
+        if(!(response instanceof JSONObject))
+            throw new AthenahealthException("Expected a page of results, got: " + response);
+
+        return (JSONObject)response;
+    }
+
+    private static Object await(CompletableFuture<Object> future) throws AthenahealthException {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return future.get();
+                }
+                catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if(cause instanceof AthenahealthException)
+                throw (AthenahealthException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new AthenahealthException("Error fetching page", cause);
+        }
+        finally {
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Finds the records in a page.
+     *
+     * @throws AthenahealthException If the page is an error response or has
+     *                               no list of records.
+     */
+    private JSONArray records(JSONObject page) throws AthenahealthException {
+        // The API's errors are returned as the response, not thrown
+        if(page.has("error"))
+            throw new AthenahealthException("Error fetching page: " + page);
+
+        if(listKey != null) {
+            JSONArray records = page.optJSONArray(listKey);
+            if(records == null)
+                throw new AthenahealthException("Expected a list under \"" + listKey + "\": " + page);
+
+            return records;
+        }
+
+        // Without a key, the records are the one list in the page
+        for(String key : page.keySet()) {
+            JSONArray records = page.optJSONArray(key);
+            if(records != null)
+                return records;
+        }
+
+        throw new AthenahealthException("Expected a list of records: " + page);
+    }
+
+    private final class PageIterator implements Iterator<JSONObject> {
+        // Guarded by this
+        private final ArrayDeque<CompletableFuture<Object>> ahead = new ArrayDeque<CompletableFuture<Object>>();
+        private String pendingLink;
+        private CompletableFuture<Object> requesting;
+        private int bufferedRecords;
+
+        // Only used by the consuming thread
+        private JSONArray records;
+        private int index;
+
+        PageIterator() {
+            synchronized(this) {
+                request(connection.callAsync("GET", practiceId, connection.appendQuery(path, parameters), null, headers));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(records == null || index >= records.length()) {
+                if(!nextPage())
+                    return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public JSONObject next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+
+            return records.getJSONObject(index++);
+        }
+
+        /**
+         * Moves on to the next page, waiting for it if necessary.
+         *
+         * @return false if there are no more pages
+         */
+        private boolean nextPage() {
+            CompletableFuture<Object> future;
+            synchronized(this) {
+                future = ahead.poll();
+                if(future == null) {
+                    if(pendingLink == null)
+                        return false;
+
+                    // Prefetching was held back; fetch the page now
+                    fetch();
+                    future = ahead.poll();
+                }
+            }
+
+            Object response;
+            try {
+                response = await(future);
+                records = records(toPage(response));
+                index = 0;
+            }
+            catch (AthenahealthException e) {
+                throw new UncheckedAthenahealthException(e);
+            }
+
+            synchronized(this) {
+                // The future wakes this thread before it runs the callback which takes the next
+                // link, so take it here if the callback has not yet run
+                arrived(future, response);
+                bufferedRecords -= records.length();
+                prefetch();
+            }
+
+            return true;
+        }
+
+        /**
+         * Requests the page at the pending link. Must hold this iterator's monitor.
+         */
+        private void fetch() {
+            String link = pendingLink;
+            pendingLink = null;
+            request(connection.callAsync("GET", "", connection.relativeLink(link), null, headers));
+        }
+
+        /**
+         * Adds a page request to the queue. Must hold this iterator's monitor.
+         */
+        private void request(CompletableFuture<Object> future) {
+            ahead.add(future);
+            requesting = future;
+            future.whenComplete((response, error) -> arrived(future, response));
+        }
+
+        /**
+         * Requests the next page if the prefetch limits allow it.
+         * Must hold this iterator's monitor.
+         */
+        private void prefetch() {
+            if(requesting == null && pendingLink != null
+               && ahead.size() < prefetchDepth
+               && bufferedRecords < maxBufferedRecords)
+                fetch();
+        }
+
+        /**
+         * Records the size of a page and its link to the next one, once for each page, whether
+         * the request's callback or the consumer gets to it first.
+         */
+        private synchronized void arrived(CompletableFuture<Object> future, Object response) {
+            if(future != requesting)
+                return;
+
+            requesting = null;
+            if(response instanceof JSONObject) {
+                JSONObject page = (JSONObject)response;
+                try {
+                    bufferedRecords += records(page).length();
+                }
+                catch (AthenahealthException e) {
+                    // Reported when the consumer reaches this page
+                    return;
+                }
+
+                String next = page.optString("next", null);
+                if(next != null && !next.isEmpty()) {
+                    pendingLink = next;
+                    prefetch();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.athenahealth.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A path with variables, such as <code>/patients/{patientid}/appointments</code>,
+ * split and encoded once so that it can be expanded for every call without
+ * parsing or regular expressions.
+ *
+ * <pre>
+ * static final PathTemplate APPOINTMENTS = PathTemplate.compile("/patients/{patientid}/appointments");
+ *
+ * Object appointments = api.GET(APPOINTMENTS.expand(patientId), parameters);
+ * </pre>
+ *
+ * Values are percent-encoded as UTF-8, including any "/" in them, so a value
+ * always stays within its own segment.  The constant parts are encoded when
+ * the template is compiled.  Templates are immutable and may be shared
+ * between threads.
+ */
+public final class PathTemplate {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String template;
+
+    // literals[i] precedes variable i; the last literal follows the last variable
+    private final String[] literals;
+    private final String[] variables;
+    private final int literalLength;
+
+    private PathTemplate(String template, String[] literals, String[] variables) {
+        this.template = template;
+        this.literals = literals;
+        this.variables = variables;
+
+        int length = 0;
+        for(String literal : literals)
+            length += literal.length();
+        this.literalLength = length;
+    }
+
+    /**
+     * Compiles a template.  The path is given a leading "/" and loses any
+     * trailing ones, as for the paths passed to {@link APIConnection}.
+     *
+     * @param template the path, with variables in braces
+     * @return the compiled template
+     * @throws IllegalArgumentException if a brace is unmatched or a variable
+     *                                  has no name
+     */
+    public static PathTemplate compile(String template) {
+        int start = 0;
+        int end = template.length();
+        while(start < end && template.charAt(start) == '/')
+            start++;
+        while(end > start && template.charAt(end - 1) == '/')
+            end--;
+
+        List<String> literals = new ArrayList<String>();
+        List<String> variables = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder(end - start + 1).append('/');
+        int i = start;
+        while(i < end) {
+            char c = template.charAt(i);
+            if(c == '{') {
+                int close = template.indexOf('}', i + 1);
+                if(close < 0 || close > end)
+                    throw new IllegalArgumentException("Unmatched { in path template: " + template);
+                String name = template.substring(i + 1, close).trim();
+                if(name.isEmpty())
+                    throw new IllegalArgumentException("Unnamed variable in path template: " + template);
+
+                literals.add(literal.toString());
+                variables.add(name);
+                literal.setLength(0);
+                i = close + 1;
+            }
+            else if(c == '}') {
+                throw new IllegalArgumentException("Unmatched } in path template: " + template);
+            }
+            else {
+                int next = i + 1;
+                while(next < end && template.charAt(next) != '{' && template.charAt(next) != '}')
+                    next++;
+                encode(literal, template, i, next, true);
+                i = next;
+            }
+        }
+        literals.add(literal.toString());
+
+        return new PathTemplate(template, literals.toArray(new String[0]), variables.toArray(new String[0]));
+    }
+
+    /**
+     * Expands the template with values given in the order their variables
+     * appear.
+     *
+     * @param values the value of each variable
+     * @return the path
+     * @throws IllegalArgumentException if the number of values is wrong or a
+     *                                  value is null
+     */
+    public String expand(String ... values) {
+        if(values.length != variables.length)
+            throw new IllegalArgumentException(template + " takes " + variables.length + " values, not " + values.length);
+
+        int length = literalLength;
+        for(int i = 0; i < values.length; i++)
+            length += value(values[i], i).length();
+
+        StringBuilder sb = new StringBuilder(length + 16);
+        for(int i = 0; i < values.length; i++) {
+            sb.append(literals[i]);
+            encode(sb, values[i], 0, values[i].length(), false);
+        }
+        return sb.append(literals[values.length]).toString();
+    }
+
+    /**
+     * Expands the template with values given by variable name.
+     *
+     * @param values the value of each variable
+     * @return the path
+     * @throws IllegalArgumentException if a variable has no value
+     */
+    public String expand(Map<String, String> values) {
+        String[] ordered = new String[variables.length];
+        for(int i = 0; i < variables.length; i++)
+            ordered[i] = values.get(variables[i]);
+        return expand(ordered);
+    }
+
+    /**
+     * Gets the names of the variables, in the order they appear.
+     *
+     * @return the variable names
+     */
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(Arrays.asList(variables));
+    }
+
+    /**
+     * Gets the template this was compiled from.
+     *
+     * @return the template
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    private String value(String value, int index) {
+        if(value == null)
+            throw new IllegalArgumentException("No value for {" + variables[index] + "} in " + template);
+        return value;
+    }
+
+    /**
+     * Appends part of a string percent-encoded as UTF-8.  Unreserved
+     * characters are appended as they are, and so, in constant parts of the
+     * path, are "/" and the other characters allowed in a path segment.
+     */
+    private static void encode(StringBuilder sb, String s, int start, int end, boolean literal) {
+        for(int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if(unreserved(c) || (literal && (c == '/' || c == ':' || c == '@' || c == '!' || c == '$'
+                    || c == '&' || c == '\'' || c == '(' || c == ')' || c == '*' || c == '+' || c == ','
+                    || c == ';' || c == '=' || c == '%'))) {
+                sb.append(c);
+            }
+            else if(c < 0x80) {
+                escape(sb, c);
+            }
+            else if(c < 0x800) {
+                escape(sb, 0xC0 | (c >> 6));
+                escape(sb, 0x80 | (c & 0x3F));
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                escape(sb, 0xF0 | (cp >> 18));
+                escape(sb, 0x80 | ((cp >> 12) & 0x3F));
+                escape(sb, 0x80 | ((cp >> 6) & 0x3F));
+                escape(sb, 0x80 | (cp & 0x3F));
+            }
+            else if(Character.isSurrogate(c)) {
+                // Unpaired, so sent as '?', as String.getBytes does
+                escape(sb, '?');
+            }
+            else {
+                escape(sb, 0xE0 | (c >> 12));
+                escape(sb, 0x80 | ((c >> 6) & 0x3F));
+                escape(sb, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static boolean unreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+            || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+
+    private static void escape(StringBuilder sb, int b) {
+        sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+}
@@ -0,0 +1,608 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A view of an {@link APIConnection} which makes requests on behalf of a single practice.
+ *
+ * Views are obtained from {@link APIConnection#forPractice} and are immutable, so they may be
+ * used from any number of threads.  All views of a connection share its access token, connection
+ * pool and settings; creating one costs no more than a single small object.
+ *
+ * The request methods behave exactly like those of {@link APIConnection}, except that the
+ * practice ID of the view is used in place of the connection's.  Views are not closed; close
+ * the connection once every view of it is done with.
+ */
+public final class PracticeConnection {
+    private final APIConnection connection;
+    private final String practiceId;
+
+    PracticeConnection(APIConnection connection, String practiceId) {
+        if(practiceId == null)
+            throw new IllegalArgumentException("Practice ID must not be null");
+
+        this.connection = connection;
+        this.practiceId = practiceId;
+    }
+
+    /**
+     * Returns the connection this view makes its requests through.
+     *
+     * @return the underlying connection
+     */
+    public APIConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns the practice ID used by this view.
+     *
+     * @return the practice ID
+     */
+    public String getPracticeID() {
+        return practiceId;
+    }
+
+    /**
+     * Perform a GET request.
+     *
+     * @param path URI to access
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object GET(String path) throws AthenahealthException {
+        return GET(path, null, null);
+    }
+
+    /**
+     * Perform a GET request.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object GET(String path, Map<String, String> parameters) throws AthenahealthException {
+        return GET(path, parameters, null);
+    }
+
+    /**
+     * Perform a GET request.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object GET(String path, Map<String, String> parameters, Map<String, String> headers) throws AthenahealthException {
+        return connection.call("GET", practiceId, connection.appendQuery(path, parameters), null, headers);
+    }
+
+    /**
+     * Perform a GET request, binding the response straight to a record or other class.
+     *
+     * @param path URI to access
+     * @param type the type to bind the response to
+     * @param <T>  the type
+     * @return the bound response
+     *
+     * @throws AthenahealthException If there is an error making the call, or the API reports
+     *                               an error.
+     * @see APIConnection#GETAs(String, Map, Map, Class)
+     */
+    public <T> T GETAs(String path, Class<T> type) throws AthenahealthException {
+        return GETAs(path, null, null, type);
+    }
+
+    /**
+     * Perform a GET request, binding the response straight to a record or other class.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param type       the type to bind the response to
+     * @param <T>        the type
+     * @return the bound response
+     *
+     * @throws AthenahealthException If there is an error making the call, or the API reports
+     *                               an error.
+     */
+    public <T> T GETAs(String path, Map<String, String> parameters, Class<T> type) throws AthenahealthException {
+        return GETAs(path, parameters, null, type);
+    }
+
+    /**
+     * Perform a GET request, binding the response straight to a record or other class.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @param type       the type to bind the response to
+     * @param <T>        the type
+     * @return the bound response
+     *
+     * @throws AthenahealthException If there is an error making the call, or the API reports
+     *                               an error.
+     */
+    public <T> T GETAs(String path, Map<String, String> parameters, Map<String, String> headers, Class<T> type) throws AthenahealthException {
+        return type.cast(connection.callAs("GET", practiceId, connection.appendQuery(path, parameters), headers, type));
+    }
+
+    /**
+     * Perform a GET request, binding the response straight to a generic type, such as a list of
+     * records.
+     *
+     * @param path URI to access
+     * @param type the type to bind the response to
+     * @param <T>  the type
+     * @return the bound response
+     *
+     * @throws AthenahealthException If there is an error making the call, or the API reports
+     *                               an error.
+     */
+    public <T> T GETAs(String path, TypeRef<T> type) throws AthenahealthException {
+        return GETAs(path, null, null, type);
+    }
+
+    /**
+     * Perform a GET request, binding the response straight to a generic type.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param type       the type to bind the response to
+     * @param <T>        the type
+     * @return the bound response
+     *
+     * @throws AthenahealthException If there is an error making the call, or the API reports
+     *                               an error.
+     */
+    public <T> T GETAs(String path, Map<String, String> parameters, TypeRef<T> type) throws AthenahealthException {
+        return GETAs(path, parameters, null, type);
+    }
+
+    /**
+     * Perform a GET request, binding the response straight to a generic type.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @param type       the type to bind the response to
+     * @param <T>        the type
+     * @return the bound response
+     *
+     * @throws AthenahealthException If there is an error making the call, or the API reports
+     *                               an error.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T GETAs(String path, Map<String, String> parameters, Map<String, String> headers, TypeRef<T> type) throws AthenahealthException {
+        return (T)connection.callAs("GET", practiceId, connection.appendQuery(path, parameters), headers, type.getType());
+    }
+
+    /**
+     * Perform a GET request without blocking.
+     *
+     * @param path URI to access
+     * @return a future holding the JSON-decoded response
+     */
+    public CompletableFuture<Object> GETAsync(String path) {
+        return GETAsync(path, null, null);
+    }
+
+    /**
+     * Perform a GET request without blocking.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @return a future holding the JSON-decoded response
+     */
+    public CompletableFuture<Object> GETAsync(String path, Map<String, String> parameters) {
+        return GETAsync(path, parameters, null);
+    }
+
+    /**
+     * Perform a GET request without blocking.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @return a future holding the JSON-decoded response.  If there is an error making the call,
+     *         the future completes exceptionally with an {@link AthenahealthException}.
+     */
+    public CompletableFuture<Object> GETAsync(String path, Map<String, String> parameters, Map<String, String> headers) {
+        return connection.callAsync("GET", practiceId, connection.appendQuery(path, parameters), null, headers);
+    }
+
+    /**
+     * Perform a GET request for a binary resource, writing the response to a stream as it arrives.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @param out        where to write the response
+     * @return a JSONObject with "binary", "contentType", and "length" if the response was
+     *         written, or else the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     *
+     * @see APIConnection#download(String, Map, Map, OutputStream)
+     */
+    public Object download(String path, Map<String, String> parameters, Map<String, String> headers, OutputStream out) throws AthenahealthException {
+        return connection.download(practiceId, path, parameters, headers, out);
+    }
+
+    /**
+     * Perform a GET request for a binary resource, writing the response to a channel as it arrives.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @param out        where to write the response
+     * @return a JSONObject with "binary", "contentType", and "length" if the response was
+     *         written, or else the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     *
+     * @see APIConnection#download(String, Map, Map, WritableByteChannel)
+     */
+    public Object download(String path, Map<String, String> parameters, Map<String, String> headers, WritableByteChannel out) throws AthenahealthException {
+        return connection.download(practiceId, path, parameters, headers, out);
+    }
+
+    /**
+     * Perform a GET request for a binary resource, writing the response to a file as it arrives.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @param file       where to write the response
+     * @return a JSONObject with "binary", "contentType", and "length" if the response was
+     *         written, or else the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     *
+     * @see APIConnection#download(String, Map, Map, Path)
+     */
+    public Object download(String path, Map<String, String> parameters, Map<String, String> headers, Path file) throws AthenahealthException {
+        return connection.download(practiceId, path, parameters, headers, file);
+    }
+
+    /**
+     * Perform GET requests for every page of a list endpoint.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters for the first page
+     * @param listKey    the key under which each page holds its records, or null
+     * @return the records of all pages
+     *
+     * @see APIConnection#GETAll(String, Map, String)
+     */
+    public PagedResults GETAll(String path, Map<String, String> parameters, String listKey) {
+        return GETAll(path, parameters, null, listKey);
+    }
+
+    /**
+     * Perform GET requests for every page of a list endpoint.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters for the first page
+     * @param headers    the request headers
+     * @param listKey    the key under which each page holds its records, or null
+     * @return the records of all pages
+     *
+     * @see APIConnection#GETAll(String, Map, String)
+     */
+    public PagedResults GETAll(String path, Map<String, String> parameters, Map<String, String> headers, String listKey) {
+        return new PagedResults(connection, practiceId, path, parameters, headers, listKey);
+    }
+
+    /**
+     * Perform a POST request.
+     *
+     * @param path URI to access
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object POST(String path) throws AthenahealthException {
+        return POST(path, null, null);
+    }
+
+    /**
+     * Perform a POST request.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object POST(String path, Map<String, String> parameters) throws AthenahealthException {
+        return POST(path, parameters, null);
+    }
+
+    /**
+     * Perform a POST request.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object POST(String path, Map<String, String> parameters, Map<String, String> headers) throws AthenahealthException {
+        return connection.call("POST", practiceId, path, parameters, headers);
+    }
+
+    /**
+     * Perform a POST request with a multipart/form-data body, such as a document upload.
+     *
+     * @param path URI to access
+     * @param form the form to send
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object upload(String path, MultipartForm form) throws AthenahealthException {
+        return upload(path, form, null);
+    }
+
+    /**
+     * Perform a POST request with a multipart/form-data body, such as a document upload.
+     *
+     * @param path    URI to access
+     * @param form    the form to send
+     * @param headers the request headers
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     *
+     * @see APIConnection#upload(String, MultipartForm, Map)
+     */
+    public Object upload(String path, MultipartForm form, Map<String, String> headers) throws AthenahealthException {
+        return connection.upload("POST", practiceId, path, form, headers);
+    }
+
+    /**
+     * Perform a request whose parameters may repeat a name.  GET and DELETE send the form as the
+     * query string; other methods send it as the request body.
+     *
+     * @param method  HTTP method to use
+     * @param path    URI to access
+     * @param form    the parameters, or null for none
+     * @param headers the request headers
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     *
+     * @see APIConnection#request(String, String, UrlEncodedForm, Map)
+     */
+    public Object request(String method, String path, UrlEncodedForm form, Map<String, String> headers) throws AthenahealthException {
+        return connection.request(method, practiceId, path, form, headers);
+    }
+
+    /**
+     * Perform a POST request without blocking.
+     *
+     * @param path URI to access
+     * @return a future holding the JSON-decoded response
+     */
+    public CompletableFuture<Object> POSTAsync(String path) {
+        return POSTAsync(path, null, null);
+    }
+
+    /**
+     * Perform a POST request without blocking.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @return a future holding the JSON-decoded response
+     */
+    public CompletableFuture<Object> POSTAsync(String path, Map<String, String> parameters) {
+        return POSTAsync(path, parameters, null);
+    }
+
+    /**
+     * Perform a POST request without blocking.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @return a future holding the JSON-decoded response.  If there is an error making the call,
+     *         the future completes exceptionally with an {@link AthenahealthException}.
+     */
+    public CompletableFuture<Object> POSTAsync(String path, Map<String, String> parameters, Map<String, String> headers) {
+        return connection.callAsync("POST", practiceId, path, parameters, headers);
+    }
+
+    /**
+     * Perform a PUT request.
+     *
+     * @param path URI to access
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object PUT(String path) throws AthenahealthException {
+        return PUT(path, null, null);
+    }
+
+    /**
+     * Perform a PUT request.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object PUT(String path, Map<String, String> parameters) throws AthenahealthException {
+        return PUT(path, parameters, null);
+    }
+
+    /**
+     * Perform a PUT request.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object PUT(String path, Map<String, String> parameters, Map<String, String> headers) throws AthenahealthException {
+        return connection.call("PUT", practiceId, path, parameters, headers);
+    }
+
+    /**
+     * Perform a PUT request without blocking.
+     *
+     * @param path URI to access
+     * @return a future holding the JSON-decoded response
+     */
+    public CompletableFuture<Object> PUTAsync(String path) {
+        return PUTAsync(path, null, null);
+    }
+
+    /**
+     * Perform a PUT request without blocking.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @return a future holding the JSON-decoded response
+     */
+    public CompletableFuture<Object> PUTAsync(String path, Map<String, String> parameters) {
+        return PUTAsync(path, parameters, null);
+    }
+
+    /**
+     * Perform a PUT request without blocking.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @return a future holding the JSON-decoded response.  If there is an error making the call,
+     *         the future completes exceptionally with an {@link AthenahealthException}.
+     */
+    public CompletableFuture<Object> PUTAsync(String path, Map<String, String> parameters, Map<String, String> headers) {
+        return connection.callAsync("PUT", practiceId, path, parameters, headers);
+    }
+
+    /**
+     * Perform a DELETE request.
+     *
+     * @param path URI to access
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object DELETE(String path) throws AthenahealthException {
+        return DELETE(path, null, null);
+    }
+
+    /**
+     * Perform a DELETE request.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object DELETE(String path, Map<String, String> parameters) throws AthenahealthException {
+        return DELETE(path, parameters, null);
+    }
+
+    /**
+     * Perform a DELETE request.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @return the JSON-decoded response
+     *
+     * @throws AthenahealthException If there is an error making the call.
+     *                               API-level errors are reported in the return-value.
+     */
+    public Object DELETE(String path, Map<String, String> parameters, Map<String, String> headers) throws AthenahealthException {
+        return connection.call("DELETE", practiceId, connection.appendQuery(path, parameters), null, headers);
+    }
+
+    /**
+     * Perform a DELETE request without blocking.
+     *
+     * @param path URI to access
+     * @return a future holding the JSON-decoded response
+     */
+    public CompletableFuture<Object> DELETEAsync(String path) {
+        return DELETEAsync(path, null, null);
+    }
+
+    /**
+     * Perform a DELETE request without blocking.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @return a future holding the JSON-decoded response
+     */
+    public CompletableFuture<Object> DELETEAsync(String path, Map<String, String> parameters) {
+        return DELETEAsync(path, parameters, null);
+    }
+
+    /**
+     * Perform a DELETE request without blocking.
+     *
+     * @param path       URI to access
+     * @param parameters the request parameters
+     * @param headers    the request headers
+     * @return a future holding the JSON-decoded response.  If there is an error making the call,
+     *         the future completes exceptionally with an {@link AthenahealthException}.
+     */
+    public CompletableFuture<Object> DELETEAsync(String path, Map<String, String> parameters, Map<String, String> headers) {
+        return connection.callAsync("DELETE", practiceId, connection.appendQuery(path, parameters), null, headers);
+    }
+
+    @Override
+    public String toString() {
+        return "PracticeConnection { practiceId=" + practiceId + " }";
+    }
+}
@@ -0,0 +1,32 @@
+package com.athenahealth.api;
+
+/**
+ * Exception type indicating that a call was not made because it would have
+ * exceeded the client-side rate limit.
+ */
+public class RateLimitException
+    extends AthenahealthException {
+    private static final long serialVersionUID = 6203741958326410485L;
+
+    private final long retryAfter;
+
+    /**
+     * Creates a new RateLimitException with the specified detail message.
+     *
+     * @param message An explanation for the error.
+     * @param retryAfter How long until a call could be made, in ms.
+     */
+    public RateLimitException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Returns how long until a call could be made.
+     *
+     * @return The time until the rate limit allows another call, in ms.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps calls within the API key's queries-per-second quota.
+ *
+ * The limiter is a token bucket: calls may be made at a steady rate, with
+ * short bursts of up to a given size allowed after a quiet period.  Share one
+ * limiter between every {@link APIConnection} which uses the same API key.
+ * Each practice can optionally be given a bucket of its own.
+ *
+ * When the server answers 429 Too Many Requests, or sends Retry-After with a
+ * 503, the limiter halves its rate and holds back all calls until the
+ * Retry-After time has passed.  The rate then climbs back to the configured
+ * one by a tenth of it each second.
+ *
+ * A call which would have to wait for the bucket either waits or, if the
+ * limiter fails fast, throws {@link RateLimitException} at once.
+ */
+public class RateLimiter {
+    /**
+     * The fraction of the configured rate regained each second after the
+     * server throttles calls.
+     */
+    private static final double RECOVERY_PER_SECOND = 0.1;
+
+    /**
+     * The lowest fraction of the configured rate the limiter will drop to.
+     */
+    private static final double MIN_RATE_FRACTION = 0.05;
+
+    private final double permitsPerSecond;
+    private final int burst;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    private volatile boolean perPractice;
+    private volatile boolean failFast;
+    private volatile long maxWait;
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a limiter.
+     *
+     * @param permitsPerSecond The number of calls allowed per second.
+     * @param burst            The number of calls which may be made at once
+     *                         after a quiet period.
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if(!(permitsPerSecond > 0))
+            throw new IllegalArgumentException("Rate must be positive");
+        if(burst < 1)
+            throw new IllegalArgumentException("Burst must be at least 1");
+
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * Gets the number of calls allowed per second.
+     *
+     * @return The configured rate.
+     */
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Gets the number of calls which may be made at once.
+     *
+     * @return The burst size.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Sets whether each practice has a bucket of its own, rather than all
+     * calls sharing one.  Calls made without a practice ID share a bucket.
+     *
+     * @param perPractice true to limit each practice separately
+     */
+    public void setPerPractice(boolean perPractice) {
+        this.perPractice = perPractice;
+    }
+
+    /**
+     * Gets whether each practice has a bucket of its own.
+     *
+     * @return true if each practice is limited separately
+     */
+    public boolean isPerPractice() {
+        return perPractice;
+    }
+
+    /**
+     * Sets whether a call which would have to wait throws
+     * {@link RateLimitException} instead.
+     *
+     * @param failFast true to fail rather than wait
+     */
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    /**
+     * Gets whether a call which would have to wait fails instead.
+     *
+     * @return true if calls fail rather than wait
+     */
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    /**
+     * Sets the longest a call will wait for the bucket.  A call which would
+     * have to wait longer throws {@link RateLimitException}.  A maximum of
+     * zero (0) means "wait indefinitely".
+     *
+     * @param maxWait The maximum wait, in ms.
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Gets the longest a call will wait for the bucket.  A maximum of zero
+     * (0) means "wait indefinitely".
+     *
+     * @return The maximum wait, in ms.
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Gets the rate currently allowed, which is lower than the configured
+     * rate for a while after the server throttles calls.
+     *
+     * @param practiceId The practice ID, if each practice is limited
+     *                   separately.
+     * @return The current rate, in calls per second.
+     */
+    public double getCurrentRate(String practiceId) {
+        Bucket bucket = buckets.get(key(practiceId));
+        return bucket == null ? permitsPerSecond : bucket.currentRate(System.nanoTime());
+    }
+
+    /**
+     * Gets the number of times the server throttled calls.
+     *
+     * @return The number of 429 responses and Retry-After headers seen.
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Gets the number of calls which failed rather than wait.
+     *
+     * @return The number of RateLimitExceptions thrown.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "{ permitsPerSecond=" + permitsPerSecond + ", burst=" + burst
+            + ", throttled=" + throttled.get() + ", rejected=" + rejected.get() + " }";
+    }
+
+    /**
+     * Waits until a call may be made.
+     *
+     * @param practiceId the practice ID of the call
+     *
+     * @throws RateLimitException If the call would have to wait and the
+     *                            limiter fails fast or the wait is too long.
+     * @throws AthenahealthException If the thread is interrupted while
+     *                               waiting.
+     */
+    void acquire(String practiceId) throws AthenahealthException {
+        long delay = reserve(practiceId);
+        if(delay <= 0)
+            return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AthenahealthException("Interrupted while waiting for rate limit", ie);
+        }
+    }
+
+    /**
+     * Reserves a call without waiting for it.
+     *
+     * @param practiceId the practice ID of the call
+     * @return how long to wait before making the call, in ns
+     *
+     * @throws RateLimitException If the call would have to wait and the
+     *                            limiter fails fast or the wait is too long.
+     */
+    long reserve(String practiceId) throws RateLimitException {
+        long limit = failFast ? 0 : maxWait > 0 ? TimeUnit.MILLISECONDS.toNanos(maxWait) : Long.MAX_VALUE;
+        long delay = bucket(practiceId).reserve(System.nanoTime(), limit);
+        if(delay < 0) {
+            rejected.incrementAndGet();
+            long retryAfter = TimeUnit.NANOSECONDS.toMillis(-delay);
+            throw new RateLimitException("Rate limit of " + permitsPerSecond + " calls per second reached; retry in " + retryAfter + " ms", retryAfter);
+        }
+
+        return delay;
+    }
+
+    /**
+     * Slows down after the server throttles a call.
+     *
+     * @param practiceId the practice ID of the call
+     * @param retryAfter how long the server asked to wait, in ms, or -1 if
+     *                   it did not say
+     */
+    void throttled(String practiceId, long retryAfter) {
+        throttled.incrementAndGet();
+        bucket(practiceId).throttled(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(Math.max(retryAfter, 0)));
+    }
+
+    private String key(String practiceId) {
+        return perPractice && practiceId != null ? practiceId : "";
+    }
+
+    private Bucket bucket(String practiceId) {
+        String key = key(practiceId);
+        Bucket bucket = buckets.get(key);
+        if(bucket == null) {
+            Bucket created = new Bucket(System.nanoTime());
+            bucket = buckets.putIfAbsent(key, created);
+            if(bucket == null)
+                bucket = created;
+        }
+
+        return bucket;
+    }
+
+    private final class Bucket {
+        // Guarded by this.  Tokens may go negative: calls which are waiting
+        // have already taken theirs.
+        private double tokens = burst;
+        private long refilled;
+        private double rate = permitsPerSecond;
+        private long adjusted;
+
+        Bucket(long now) {
+            refilled = now;
+            adjusted = now;
+        }
+
+        synchronized double currentRate(long now) {
+            refill(now);
+            return rate;
+        }
+
+        /**
+         * Takes a token.
+         *
+         * @return how long to wait before using it, or minus the wait if it
+         *         is longer than the limit, in which case nothing is taken
+         */
+        synchronized long reserve(long now, long limit) {
+            refill(now);
+
+            long delay = Math.max(0, refilled - now);
+            if(tokens < 1)
+                delay += (long)((1 - tokens) / rate * 1e9);
+
+            if(delay > limit)
+                return -Math.max(delay, 1);
+
+            tokens -= 1;
+            return delay;
+        }
+
+        synchronized void throttled(long now, long retryAfter) {
+            refill(now);
+
+            rate = Math.max(rate / 2, permitsPerSecond * MIN_RATE_FRACTION);
+            tokens = Math.min(tokens, 0);
+
+            // Nothing is refilled or recovered until the server's wait is over
+            long resume = now + retryAfter;
+            if(resume - refilled > 0)
+                refilled = resume;
+            if(resume - adjusted > 0)
+                adjusted = resume;
+        }
+
+        private void refill(long now) {
+            if(now - adjusted > 0) {
+                if(rate < permitsPerSecond)
+                    rate = Math.min(permitsPerSecond, rate + permitsPerSecond * RECOVERY_PER_SECOND * (now - adjusted) / 1e9);
+                adjusted = now;
+            }
+
+            if(now - refilled > 0) {
+                tokens = Math.min(burst, tokens + rate * (now - refilled) / 1e9);
+                refilled = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request body which is written to the connection as it is sent, rather than
+ * being built in memory first.
+ */
+interface RequestBody {
+    /**
+     * Returns the value of the Content-Type header to send with this body.
+     *
+     * @return the content type
+     */
+    String getContentType();
+
+    /**
+     * Returns the number of bytes {@link #writeTo} will write, or -1 if the
+     * body should be sent with chunked transfer encoding instead.
+     *
+     * @return the length of the body, or -1
+     *
+     * @throws IOException If the length cannot be determined.
+     */
+    long getContentLength() throws IOException;
+
+    /**
+     * Returns whether this body can be written more than once, which is
+     * needed to retry a request after a new access token is obtained.
+     *
+     * @return true if {@link #writeTo} may be called again
+     */
+    boolean isRepeatable();
+
+    /**
+     * Writes the body.
+     *
+     * @param out where to write the body; not closed
+     *
+     * @throws IOException If the body cannot be read or written.
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
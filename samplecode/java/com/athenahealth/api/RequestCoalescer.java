@@ -0,0 +1,229 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Lets identical requests which are in flight at the same time share a
+ * single response.
+ *
+ * The first caller for a key sends the request; anyone asking for the same
+ * key before it completes waits for that request instead of sending their
+ * own.  When a response is shared, every caller is given their own copy of
+ * it, so none of them can see another's changes.
+ */
+final class RequestCoalescer {
+    /**
+     * Sends a request.
+     */
+    interface Request {
+        Object send() throws AthenahealthException;
+    }
+
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Builds the key for a request from everything which can change its
+     * response: the practice, the path and sorted query parameters, and the
+     * request headers.
+     */
+    static String key(String practiceId, String path, Map<String, String> headers) {
+        // Each connection has its own coalescer, so the client is not part of the key
+        StringBuilder sb = new StringBuilder(ResponseCache.key("", practiceId, path));
+        if(headers != null)
+            for(Map.Entry<String, String> header : new TreeMap<String, String>(headers).entrySet())
+                sb.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns the number of requests which were answered with another
+     * caller's response.
+     */
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Sends a request, or waits for an identical one already in flight.
+     *
+     * @param key     identifies the request
+     * @param request sends the request if none is in flight
+     * @return the response
+     *
+     * @throws AthenahealthException If the shared request failed.
+     */
+    Object call(String key, Request request) throws AthenahealthException {
+        Flight created = new Flight();
+        Flight flight = join(key, created);
+        if(flight != created)
+            return copy(await(flight.result));
+
+        Object response;
+        try {
+            response = request.send();
+        }
+        catch (AthenahealthException | RuntimeException | Error e) {
+            flight.fail(this, key, e);
+            throw e;
+        }
+
+        return flight.finish(this, key, response);
+    }
+
+    /**
+     * Sends a request without blocking, or shares an identical one already in
+     * flight.
+     *
+     * @param key     identifies the request
+     * @param request sends the request if none is in flight
+     * @return a future holding the response
+     */
+    CompletableFuture<Object> callAsync(final String key, Supplier<CompletableFuture<Object>> request) {
+        final Flight created = new Flight();
+        final Flight flight = join(key, created);
+        if(flight != created)
+            return flight.result.thenApply(RequestCoalescer::copy);
+
+        // Followers may join until the response arrives, so the leader
+        // decides whether it needs a copy only then
+        final CompletableFuture<Object> mine = new CompletableFuture<Object>();
+        request.get().whenComplete((response, error) -> {
+            if(error != null) {
+                flight.fail(this, key, error);
+                mine.completeExceptionally(error);
+            }
+            else
+                mine.complete(flight.finish(this, key, response));
+        });
+
+        return mine;
+    }
+
+    /**
+     * Finds the flight for a key, or starts the given one if there is none.
+     */
+    private Flight join(String key, final Flight created) {
+        return inFlight.compute(key, (k, flight) -> {
+            if(flight == null)
+                return created;
+
+            flight.followers++;
+            coalesced.incrementAndGet();
+            return flight;
+        });
+    }
+
+    /**
+     * Copies a decoded response so that changes to the copy are not seen by
+     * anyone else.  Strings, numbers and booleans are immutable and shared.
+     */
+    static Object copy(Object value) {
+        if(value instanceof JSONObject) {
+            JSONObject object = (JSONObject)value;
+            JSONObject copy = new JSONObject();
+            for(String key : object.keySet())
+                copy.put(key, copy(object.opt(key)));
+            return copy;
+        }
+
+        if(value instanceof JSONArray) {
+            JSONArray array = (JSONArray)value;
+            JSONArray copy = new JSONArray();
+            for(int i = 0; i < array.length(); i++)
+                copy.put(copy(array.opt(i)));
+            return copy;
+        }
+
+        if(value instanceof byte[])
+            return ((byte[])value).clone();
+
+        return value;
+    }
+
+    private static Object await(CompletableFuture<Object> future) throws AthenahealthException {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return future.get();
+                }
+                catch (InterruptedException ie) {
+                    // Keep waiting; the request is shared with other callers
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if(cause instanceof AthenahealthException)
+                throw (AthenahealthException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if(cause instanceof Error)
+                throw (Error)cause;
+            throw new AthenahealthException("Error making call", cause);
+        }
+        finally {
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A request which is in flight.
+     */
+    private static final class Flight {
+        final CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+        // Only changed inside ConcurrentMap.compute for this flight's key
+        int followers;
+
+        /**
+         * Ends the flight and hands the response to the followers.
+         *
+         * @return the response for the leader: the original if nobody else
+         *         shares it, or else a copy
+         */
+        Object finish(RequestCoalescer coalescer, String key, Object response) {
+            // No one can join once the flight is removed, so followers is final
+            coalescer.inFlight.remove(key, this);
+            result.complete(response);
+            return followers == 0 ? response : copy(response);
+        }
+
+        /**
+         * Ends the flight and hands the error to the followers.
+         */
+        void fail(RequestCoalescer coalescer, String key, Throwable error) {
+            coalescer.inFlight.remove(key, this);
+            result.completeExceptionally(error);
+        }
+    }
+}
@@ -0,0 +1,560 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches GET responses from endpoints whose data rarely changes, such as
+ * <code>/departments</code> or <code>/providers</code>.
+ *
+ * Only paths with a time to live are cached.  Rules are set per path with
+ * {@link #setTimeToLive}, and a default can be set for every other path.
+ * Responses are keyed by the requesting connection's API key, base URL and
+ * version, and by practice, path, and query parameters, in any order;
+ * request headers are not part of the key.  A cache may therefore be shared
+ * between connections: those with different credentials never see each
+ * other's responses.
+ *
+ * Once an entry has expired, it is revalidated if the server sent an ETag or
+ * Last-Modified header with it: the next request carries If-None-Match or
+ * If-Modified-Since, and a 304 Not Modified response renews the entry.
+ *
+ * The entries are kept in a {@link Store}.  By default this is a
+ * {@link MemoryStore}, which evicts the least recently used entries when it
+ * holds more than its maximum number of bytes.  Implement Store to keep them
+ * elsewhere, such as off the heap or in a cache shared between processes;
+ * this class still decides what is cached, for how long, and when to
+ * revalidate.
+ *
+ * Each request is served a freshly decoded copy of the response, so callers
+ * may modify what they are given.
+ */
+public class ResponseCache {
+    /**
+     * Holds the entries of a {@link ResponseCache}.  Implementations must be
+     * safe to call from many threads at once.  A store may drop any entry at
+     * any time; the response is then fetched again.
+     */
+    public interface Store {
+        /**
+         * Gets an entry.
+         *
+         * @param key The key of the request.
+         * @return The entry, or null if there is none.
+         */
+        Entry get(String key);
+
+        /**
+         * Adds or replaces an entry.
+         *
+         * @param key   The key of the request.
+         * @param entry The response to keep.
+         */
+        void put(String key, Entry entry);
+
+        /**
+         * Removes every entry.
+         */
+        void clear();
+    }
+
+    private final Store store;
+    private final ConcurrentMap<String, Long> timeToLive = new ConcurrentHashMap<String, Long>();
+    private volatile long defaultTimeToLive;
+
+    // Guarded by this
+    private long hits;
+    private long misses;
+    private long revalidations;
+
+    /**
+     * Creates an empty cache which keeps its entries in memory.
+     *
+     * @param maxBytes The largest total size of the cached responses, in bytes.
+     */
+    public ResponseCache(long maxBytes) {
+        this(new MemoryStore(maxBytes));
+    }
+
+    /**
+     * Creates a cache which keeps its entries in the given store.
+     *
+     * @param store Where to keep the entries.
+     */
+    public ResponseCache(Store store) {
+        if(store == null)
+            throw new IllegalArgumentException("Store must not be null");
+
+        this.store = store;
+    }
+
+    /**
+     * Gets the store which holds the entries.
+     *
+     * @return The store.
+     */
+    public Store getStore() {
+        return store;
+    }
+
+    /**
+     * Sets how long responses from a path, and from every path below it, are
+     * served from the cache before being requested again.  The path is given
+     * without the version or practice ID, for example "/departments".  The
+     * rule with the longest matching path applies.  A time to live of zero
+     * (0) means the path is not cached.
+     *
+     * @param path     The path the rule applies to.
+     * @param lifetime The time to live, in ms.
+     */
+    public void setTimeToLive(String path, long lifetime) {
+        if(lifetime < 0)
+            throw new IllegalArgumentException("Time to live must not be negative");
+
+        timeToLive.put(normalize(path), lifetime);
+    }
+
+    /**
+     * Gets how long responses from a path are cached.
+     *
+     * @param path The path, with or without a query string.
+     * @return The time to live, in ms, or zero (0) if the path is not cached.
+     */
+    public long getTimeToLive(String path) {
+        String p = normalize(path);
+        while(true) {
+            Long lifetime = timeToLive.get(p);
+            if(lifetime != null)
+                return lifetime;
+
+            int slash = p.lastIndexOf('/');
+            if(slash < 0)
+                return defaultTimeToLive;
+
+            p = p.substring(0, slash);
+        }
+    }
+
+    /**
+     * Sets how long responses from paths without a rule of their own are
+     * cached.  The default is zero (0), so only paths with a rule are cached.
+     *
+     * @param lifetime The default time to live, in ms.
+     */
+    public void setDefaultTimeToLive(long lifetime) {
+        if(lifetime < 0)
+            throw new IllegalArgumentException("Time to live must not be negative");
+
+        defaultTimeToLive = lifetime;
+    }
+
+    /**
+     * Gets how long responses from paths without a rule of their own are
+     * cached.
+     *
+     * @return The default time to live, in ms.
+     */
+    public long getDefaultTimeToLive() {
+        return defaultTimeToLive;
+    }
+
+    /**
+     * Gets the number of requests answered from the cache without contacting
+     * the server.
+     *
+     * @return The number of hits.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of requests for cacheable paths which were not in the
+     * cache, or whose entry was out of date, and were answered in full by the
+     * server.
+     *
+     * @return The number of misses.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of expired entries the server confirmed were still
+     * current with 304 Not Modified.
+     *
+     * @return The number of revalidations.
+     */
+    public synchronized long getRevalidationCount() {
+        return revalidations;
+    }
+
+    /**
+     * Removes every entry.  The counters are not reset.
+     */
+    public void clear() {
+        store.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ hits=" + hits + ", misses=" + misses + ", revalidations=" + revalidations
+            + ", store=" + store + " }";
+    }
+
+    /**
+     * Starts looking up a request.
+     *
+     * @param client     the API key, base URL and version of the connection
+     *                   making the request
+     * @param practiceId the practice ID of the request, or empty for none
+     * @param path       the path of the request, including its query string
+     * @return the lookup, or null if the path is not cached
+     */
+    Lookup lookup(String client, String practiceId, String path) {
+        long lifetime = getTimeToLive(path);
+        if(lifetime <= 0)
+            return null;
+
+        String key = key(client, practiceId, path);
+        return new Lookup(key, lifetime, store.get(key));
+    }
+
+    private synchronized void hit() {
+        hits++;
+    }
+
+    private synchronized void miss() {
+        misses++;
+    }
+
+    private synchronized void revalidated() {
+        revalidations++;
+    }
+
+    /**
+     * Builds the key for a request: the client, the practice, the path, and
+     * the query parameters in sorted order.
+     */
+    static String key(String client, String practiceId, String path) {
+        int q = path.indexOf('?');
+        StringBuilder sb = new StringBuilder(client)
+            .append(' ')
+            .append(practiceId == null ? "" : practiceId)
+            .append(' ')
+            .append(normalize(path));
+
+        if(q >= 0 && q < path.length() - 1) {
+            String[] parameters = path.substring(q + 1).split("&");
+            Arrays.sort(parameters);
+            char separator = '?';
+            for(String parameter : parameters) {
+                if(parameter.isEmpty())
+                    continue;
+                sb.append(separator).append(parameter);
+                separator = '&';
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Strips the query string and any leading or trailing slashes.
+     */
+    private static String normalize(String path) {
+        int end = path.indexOf('?');
+        if(end < 0)
+            end = path.length();
+
+        int start = 0;
+        while(start < end && path.charAt(start) == '/')
+            start++;
+        while(end > start && path.charAt(end - 1) == '/')
+            end--;
+
+        return path.substring(start, end);
+    }
+
+    /**
+     * A cached response body.  Entries are immutable, and their expiry is a
+     * wall-clock time, so a store may keep them outside this process.
+     */
+    public static final class Entry {
+        final byte[] body;
+        final String contentType;
+        final String etag;
+        final String lastModified;
+        final long expires;
+
+        /**
+         * Creates an entry.
+         *
+         * @param body         The body of the response, which must not be
+         *                     modified afterwards.
+         * @param contentType  The full Content-Type of the response.
+         * @param etag         The ETag header, or null.
+         * @param lastModified The Last-Modified header, or null.
+         * @param expires      When the entry must be revalidated, in ms since
+         *                     the epoch.
+         */
+        public Entry(byte[] body, String contentType, String etag, String lastModified, long expires) {
+            this.body = body;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        /**
+         * @return The body of the response, which must not be modified.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return The full Content-Type of the response.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return The ETag header, or null.
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return The Last-Modified header, or null.
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return When the entry must be revalidated, in ms since the epoch.
+         */
+        public long getExpires() {
+            return expires;
+        }
+
+        boolean isFresh(long now) {
+            return now < expires;
+        }
+    }
+
+    /**
+     * Keeps entries in memory, up to a total size, evicting the least
+     * recently used.
+     */
+    public static class MemoryStore implements Store {
+        /**
+         * A rough allowance for the memory used by an entry besides its body.
+         */
+        private static final int ENTRY_OVERHEAD = 128;
+
+        private final long maxBytes;
+
+        // Guarded by this
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private long bytes;
+        private long evictions;
+
+        /**
+         * Creates an empty store.
+         *
+         * @param maxBytes The largest total size of the entries, in bytes.
+         */
+        public MemoryStore(long maxBytes) {
+            if(maxBytes < 0)
+                throw new IllegalArgumentException("Maximum size must not be negative");
+
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public synchronized Entry get(String key) {
+            return entries.get(key);
+        }
+
+        @Override
+        public synchronized void put(String key, Entry entry) {
+            if(maxBytes == 0)
+                return;
+
+            Entry old = entries.put(key, entry);
+            if(old != null)
+                bytes -= size(key, old);
+            bytes += size(key, entry);
+
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while(bytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> evicted = eldest.next();
+                eldest.remove();
+                bytes -= size(evicted.getKey(), evicted.getValue());
+                evictions++;
+            }
+        }
+
+        @Override
+        public synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+
+        /**
+         * Gets the largest total size of the entries.
+         *
+         * @return The maximum size, in bytes.
+         */
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        /**
+         * Gets the approximate total size of the entries.
+         *
+         * @return The size, in bytes.
+         */
+        public synchronized long getSize() {
+            return bytes;
+        }
+
+        /**
+         * Gets the number of entries, including expired ones which are kept
+         * for revalidation.
+         *
+         * @return The number of entries.
+         */
+        public synchronized int getEntryCount() {
+            return entries.size();
+        }
+
+        /**
+         * Gets the number of entries evicted to keep the store within its
+         * maximum size.
+         *
+         * @return The number of evictions.
+         */
+        public synchronized long getEvictionCount() {
+            return evictions;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "{ entries=" + entries.size() + ", bytes=" + bytes + ", evictions=" + evictions + " }";
+        }
+
+        private static long size(String key, Entry entry) {
+            return entry.body.length + 2L * key.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * The cache's view of a single request, from lookup to response.
+     */
+    final class Lookup {
+        private final String key;
+        private final long lifetime;
+        private final Entry entry;
+
+        Lookup(String key, long lifetime, Entry entry) {
+            this.key = key;
+            this.lifetime = lifetime;
+            this.entry = entry;
+        }
+
+        /**
+         * Returns the cached entry if it may be used without asking the server.
+         */
+        Entry fresh() {
+            if(entry == null || !entry.isFresh(System.currentTimeMillis()))
+                return null;
+
+            hit();
+            return entry;
+        }
+
+        /**
+         * Adds the headers which ask the server whether the cached entry is
+         * still current.
+         *
+         * @param headers the request headers, which are not modified
+         * @return the headers to send
+         */
+        Map<String, String> conditionalHeaders(Map<String, String> headers) {
+            if(entry == null || (entry.etag == null && entry.lastModified == null))
+                return headers;
+
+            Map<String, String> conditional = headers == null
+                ? new HashMap<String, String>()
+                : new HashMap<String, String>(headers);
+            if(entry.etag != null)
+                conditional.put("If-None-Match", entry.etag);
+            if(entry.lastModified != null)
+                conditional.put("If-Modified-Since", entry.lastModified);
+
+            return conditional;
+        }
+
+        /**
+         * Records a 304 Not Modified response.
+         *
+         * @return the entry which is still current, or null if there was
+         *         none to revalidate
+         */
+        Entry notModified() {
+            if(entry == null)
+                return null;
+
+            revalidated();
+            Entry renewed = new Entry(entry.body, entry.contentType, entry.etag, entry.lastModified,
+                System.currentTimeMillis() + lifetime);
+            store.put(key, renewed);
+            return renewed;
+        }
+
+        /**
+         * Records a complete response, caching it if it is a successful one.
+         *
+         * @param responseCode the HTTP status code
+         * @param body         the body of the response
+         * @param contentType  the full Content-Type of the response
+         * @param etag         the ETag header, or null
+         * @param lastModified the Last-Modified header, or null
+         * @param cacheControl the Cache-Control header, or null
+         */
+        void store(int responseCode, byte[] body, String contentType, String etag, String lastModified, String cacheControl) {
+            miss();
+            if(responseCode != 200
+               || (cacheControl != null && cacheControl.toLowerCase(Locale.US).contains("no-store")))
+                return;
+
+            store.put(key, new Entry(body, contentType, etag, lastModified, System.currentTimeMillis() + lifetime));
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which failed calls an {@link APIConnection} retries, and how long
+ * it waits before each retry.
+ *
+ * A call is retried when it fails with a {@link CommunicationException}, such
+ * as a 503 Service Unavailable, a gateway timeout or an I/O error, or when the
+ * server answers 429 Too Many Requests.  A call refused by an open
+ * {@link CircuitBreaker} is not retried, since it was never sent and the
+ * breaker is there to make it fail fast.  Only GET, PUT and DELETE requests are
+ * retried by default, since repeating them does no harm; use
+ * {@link #addRetryable} to allow a POST which is known to be safe, or override
+ * {@link #isRetryable(String, String)}.
+ *
+ * The wait before each retry is chosen at random between zero and an
+ * exponentially growing cap ("full jitter"), so that many clients which
+ * failed together do not retry together.  A Retry-After header sets the
+ * shortest wait; if it asks for longer than the maximum delay, the call is
+ * not retried.
+ *
+ * Retries are limited per call by a maximum number of attempts, and across
+ * all calls by a budget: every call adds a fraction of a retry to the budget,
+ * plus a small allowance each second, and every retry spends one.  When the
+ * server is down, this keeps retries to a fraction of normal traffic instead
+ * of multiplying it.
+ */
+public class RetryPolicy {
+    private volatile int maxAttempts = 3;
+    private volatile long baseDelay = 100;
+    private volatile long maxDelay = 5000;
+    private volatile double budgetRatio = 0.1;
+    private volatile double minRetriesPerSecond = 5;
+
+    private final List<String[]> retryable = new CopyOnWriteArrayList<String[]>();
+
+    // Guarded by this.  The budget starts with a second's allowance.
+    private double budget = minRetriesPerSecond;
+    private long budgetUpdated = System.nanoTime();
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+
+    /**
+     * Sets the most times a single call is attempted, including the first.
+     * The default is 3.
+     *
+     * @param maxAttempts The maximum number of attempts.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if(maxAttempts < 1)
+            throw new IllegalArgumentException("Maximum attempts must be at least 1");
+
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Gets the most times a single call is attempted, including the first.
+     *
+     * @return The maximum number of attempts.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets the cap on the wait before the first retry.  The cap doubles
+     * with each further retry.  The default is 100ms.
+     *
+     * @param delay The base delay, in ms.
+     */
+    public void setBaseDelay(long delay) {
+        baseDelay = delay;
+    }
+
+    /**
+     * Gets the cap on the wait before the first retry.
+     *
+     * @return The base delay, in ms.
+     */
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * Sets the longest wait before any retry.  The default is 5s.
+     *
+     * @param delay The maximum delay, in ms.
+     */
+    public void setMaxDelay(long delay) {
+        maxDelay = delay;
+    }
+
+    /**
+     * Gets the longest wait before any retry.
+     *
+     * @return The maximum delay, in ms.
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Sets the number of retries each call adds to the shared budget.  The
+     * default is 0.1, so retries add at most a tenth to the number of calls.
+     *
+     * @param ratio The retries earned per call.
+     */
+    public void setBudgetRatio(double ratio) {
+        budgetRatio = ratio;
+    }
+
+    /**
+     * Gets the number of retries each call adds to the shared budget.
+     *
+     * @return The retries earned per call.
+     */
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * Sets the number of retries added to the shared budget each second,
+     * so that a client making few calls can still retry.  The default is 5.
+     *
+     * @param perSecond The retries earned per second.
+     */
+    public void setMinRetriesPerSecond(double perSecond) {
+        minRetriesPerSecond = perSecond;
+    }
+
+    /**
+     * Gets the number of retries added to the shared budget each second.
+     *
+     * @return The retries earned per second.
+     */
+    public double getMinRetriesPerSecond() {
+        return minRetriesPerSecond;
+    }
+
+    /**
+     * Allows calls with the given method and path to be retried.  The path
+     * is given without the version or practice ID, and a segment of "*"
+     * matches any one segment, for example
+     * <code>addRetryable("POST", "/appointments/*&#47;notes")</code>.
+     *
+     * @param method The HTTP method.
+     * @param path   The path to allow.
+     */
+    public void addRetryable(String method, String path) {
+        retryable.add(new String[] { method, trim(path) });
+    }
+
+    /**
+     * Decides whether a call may be retried at all.  Override this to
+     * recognize safe requests in some other way.
+     *
+     * @param method The HTTP method of the call.
+     * @param path   The path of the call, possibly with a query string.
+     * @return true if repeating the call is safe
+     */
+    public boolean isRetryable(String method, String path) {
+        if("GET".equals(method) || "PUT".equals(method) || "DELETE".equals(method))
+            return true;
+
+        String trimmed = trim(path);
+        for(String[] rule : retryable)
+            if(rule[0].equals(method) && matches(rule[1], trimmed))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Decides whether a failure is worth retrying.  By default,
+     * {@link CommunicationException}s are, except a
+     * {@link CircuitOpenException}.
+     *
+     * @param error The error the call failed with.
+     * @return true if the call may succeed if tried again
+     */
+    public boolean isRetryable(AthenahealthException error) {
+        return error instanceof CommunicationException && !(error instanceof CircuitOpenException);
+    }
+
+    /**
+     * Gets the number of retries made.
+     *
+     * @return The number of retries.
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Gets the number of times a call was not retried because the shared
+     * budget had run out.
+     *
+     * @return The number of retries refused.
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhausted.get();
+    }
+
+    @Override
+    public String toString() {
+        return "{ maxAttempts=" + maxAttempts + ", retries=" + retries.get()
+            + ", budgetExhausted=" + budgetExhausted.get() + " }";
+    }
+
+    /**
+     * Adds a new call's share to the retry budget.
+     */
+    synchronized void deposit() {
+        refill();
+        budget = Math.min(budget + budgetRatio, cap());
+    }
+
+    /**
+     * Decides whether to retry a call, and when.
+     *
+     * @param attempt    the number of the attempt which failed, starting at 1
+     * @param retryAfter the wait the server asked for, in ms, or -1 if none
+     * @return how long to wait before retrying, in ms, or -1 to give up
+     */
+    long backoff(int attempt, long retryAfter) {
+        if(attempt >= maxAttempts)
+            return -1;
+
+        long max = maxDelay;
+        if(retryAfter > max)
+            return -1;
+
+        if(!withdraw()) {
+            budgetExhausted.incrementAndGet();
+            return -1;
+        }
+
+        retries.incrementAndGet();
+
+        // Full jitter: anywhere between no wait and the exponential cap
+        long cap = Math.min(max, baseDelay << Math.min(attempt - 1, 30));
+        long delay = cap > 0 ? ThreadLocalRandom.current().nextLong(cap + 1) : 0;
+        return Math.max(delay, retryAfter);
+    }
+
+    private synchronized boolean withdraw() {
+        refill();
+        if(budget < 1)
+            return false;
+
+        budget -= 1;
+        return true;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        budget = Math.min(budget + minRetriesPerSecond * (now - budgetUpdated) / 1e9, cap());
+        budgetUpdated = now;
+    }
+
+    private double cap() {
+        return Math.max(10, minRetriesPerSecond * 10);
+    }
+
+    private static String trim(String path) {
+        int end = path.indexOf('?');
+        if(end < 0)
+            end = path.length();
+
+        int start = 0;
+        while(start < end && path.charAt(start) == '/')
+            start++;
+        while(end > start && path.charAt(end - 1) == '/')
+            end--;
+
+        return path.substring(start, end);
+    }
+
+    private static boolean matches(String pattern, String path) {
+        String[] want = pattern.split("/");
+        String[] have = path.split("/");
+        if(want.length != have.length)
+            return false;
+
+        for(int i = 0; i < want.length; i++)
+            if(!"*".equals(want[i]) && !want[i].equals(have[i]))
+                return false;
+
+        return true;
+    }
+}
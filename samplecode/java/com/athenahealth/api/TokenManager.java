@@ -0,0 +1,297 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the access token for an {@link APIConnection} up to date.
+ *
+ * The manager remembers when the current token expires and fetches a new
+ * one in the background shortly before that happens.  Only one refresh is
+ * ever in progress at a time: callers which need a new token while a
+ * refresh is underway wait for that refresh instead of starting their own.
+ *
+ * The background refreshes are scheduled on a thread shared by every
+ * manager, and fetch the token without blocking it, so that one slow token
+ * endpoint does not hold up the refreshes of other connections.  They stop
+ * when the manager is closed.  A scheduled refresh only holds its
+ * manager weakly, so a manager which is dropped without being closed is
+ * still collected, and its refreshes stop then.
+ */
+final class TokenManager {
+    /**
+     * Fetches new tokens from the server.
+     */
+    interface Source {
+        Token fetch() throws AthenahealthException;
+        CompletableFuture<Token> fetchAsync();
+    }
+
+    /**
+     * An access token and its lifetime.
+     */
+    static final class Token {
+        final String value;
+        private final long issued;
+        private final long lifetime;
+
+        /**
+         * @param value    the access token
+         * @param issued   the {@link System#nanoTime} at which the token was requested
+         * @param lifetime the lifetime of the token, in seconds, or zero if unknown
+         */
+        Token(String value, long issued, long lifetime) {
+            this.value = value;
+            this.issued = issued;
+            this.lifetime = TimeUnit.SECONDS.toNanos(lifetime);
+        }
+
+        boolean isExpired(long now) {
+            return lifetime > 0 && now - issued >= lifetime;
+        }
+    }
+
+    private static final ScheduledThreadPoolExecutor refresher;
+    static {
+        refresher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "athenahealth-token-refresh");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        refresher.setRemoveOnCancelPolicy(true);
+    }
+
+    private final Source source;
+    private volatile Token current;
+    private volatile long leadTime = TimeUnit.SECONDS.toNanos(60);
+
+    // Guarded by this
+    private CompletableFuture<Token> refreshing;
+    private ScheduledFuture<?> scheduled;
+    private boolean closed;
+
+    TokenManager(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Sets how long before expiry a token is refreshed in the background.
+     *
+     * @param millis the lead time, in ms
+     */
+    void setLeadTime(long millis) {
+        leadTime = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    long getLeadTime() {
+        return TimeUnit.NANOSECONDS.toMillis(leadTime);
+    }
+
+    /**
+     * Gets the current token, which may be null or expired.
+     */
+    Token current() {
+        return current;
+    }
+
+    /**
+     * Gets a token which has not expired, fetching one if necessary.
+     */
+    Token get() throws AthenahealthException {
+        Token token = current;
+        if(token != null && !token.isExpired(System.nanoTime()))
+            return token;
+
+        return refresh(token);
+    }
+
+    /**
+     * Gets a token which has not expired, fetching one if necessary.
+     */
+    CompletableFuture<Token> getAsync() {
+        Token token = current;
+        if(token != null && !token.isExpired(System.nanoTime()))
+            return CompletableFuture.completedFuture(token);
+
+        return refreshAsync(token);
+    }
+
+    /**
+     * Replaces a token which is no longer usable. If it has already been
+     * replaced, the replacement is returned without contacting the server.
+     *
+     * @param stale the token which was rejected, or null
+     * @return the new token
+     */
+    Token refresh(Token stale) throws AthenahealthException {
+        CompletableFuture<Token> flight = begin(stale, false);
+
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return flight.get();
+                }
+                catch (InterruptedException ie) {
+                    // Keep waiting; the refresh is shared with other callers
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if(cause instanceof AthenahealthException)
+                throw (AthenahealthException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new AuthenticationException("Error authenticating with server", cause);
+        }
+        finally {
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replaces a token which is no longer usable without blocking.
+     *
+     * @param stale the token which was rejected, or null
+     * @return a future holding the new token
+     */
+    CompletableFuture<Token> refreshAsync(Token stale) {
+        return begin(stale, true);
+    }
+
+    /**
+     * Joins the refresh in progress, or starts one if there is none.
+     */
+    private CompletableFuture<Token> begin(Token stale, boolean async) {
+        final CompletableFuture<Token> flight;
+        synchronized(this) {
+            Token token = current;
+            if(token != null && token != stale && !token.isExpired(System.nanoTime()))
+                return CompletableFuture.completedFuture(token);
+
+            if(refreshing != null)
+                return refreshing;
+
+            refreshing = flight = new CompletableFuture<Token>();
+        }
+
+        if(async) {
+            source.fetchAsync().whenComplete((token, error) -> finish(flight, token, error));
+        }
+        else {
+            try {
+                finish(flight, source.fetch(), null);
+            }
+            catch (AthenahealthException | RuntimeException e) {
+                finish(flight, null, e);
+            }
+        }
+
+        return flight;
+    }
+
+    private void finish(CompletableFuture<Token> flight, Token token, Throwable error) {
+        synchronized(this) {
+            if(token != null) {
+                current = token;
+                schedule(token);
+            }
+            refreshing = null;
+        }
+
+        if(token != null) {
+            flight.complete(token);
+        }
+        else {
+            while(error instanceof CompletionException && error.getCause() != null)
+                error = error.getCause();
+            flight.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Stops refreshing the token in the background.  Tokens are still
+     * fetched on demand.
+     */
+    synchronized void close() {
+        closed = true;
+        if(scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    /**
+     * Arranges for a token to be replaced shortly before it expires.
+     * Must be called while holding this object's monitor.
+     */
+    private void schedule(final Token token) {
+        if(scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+
+        if(token.lifetime <= 0 || closed)
+            return;
+
+        long remaining = token.issued + token.lifetime - System.nanoTime();
+        long delay = remaining - leadTime;
+        if(delay <= 0)
+            delay = remaining / 2;
+
+        scheduled = refresher.schedule(new Refresh(this, token), delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Replaces a token in the background, unless its manager has been
+     * collected.
+     */
+    private static final class Refresh implements Runnable {
+        private final WeakReference<TokenManager> manager;
+        private final Token token;
+
+        Refresh(TokenManager manager, Token token) {
+            this.manager = new WeakReference<TokenManager>(manager);
+            this.token = token;
+        }
+
+        @Override
+        public void run() {
+            TokenManager target = manager.get();
+            if(target == null)
+                return;
+
+            // A failure here is not fatal: the token will be refreshed
+            // on demand once it actually expires.  Fetch it asynchronously,
+            // since this thread runs every manager's refreshes.
+            target.begin(token, true);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.athenahealth.api;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+/**
+ * A generic type to bind a response to, such as a list of records, which a
+ * Class cannot express.  Create one as an anonymous subclass:
+ *
+ * <pre>
+ * static final TypeRef&lt;List&lt;Department&gt;&gt; DEPARTMENTS = new TypeRef&lt;List&lt;Department&gt;&gt;() {};
+ * </pre>
+ *
+ * @param <T> the type
+ * @see APIConnection#GETAs(String, java.util.Map, TypeRef)
+ */
+public abstract class TypeRef<T> {
+    private final Type type;
+
+    /**
+     * Captures the type argument of the anonymous subclass.
+     *
+     * @throws IllegalStateException if the subclass gives no type argument
+     */
+    protected TypeRef() {
+        Type superclass = getClass().getGenericSuperclass();
+        if(!(superclass instanceof ParameterizedType))
+            throw new IllegalStateException("TypeRef must be created with a type argument, as new TypeRef<List<T>>() {}");
+
+        type = ((ParameterizedType)superclass).getActualTypeArguments()[0];
+    }
+
+    /**
+     * Gets the type.
+     *
+     * @return the type argument
+     */
+    public Type getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return type.getTypeName();
+    }
+
+    /**
+     * Returns the class a type erases to.
+     */
+    static Class<?> raw(Type type) {
+        if(type instanceof Class)
+            return (Class<?>)type;
+        if(type instanceof ParameterizedType)
+            return raw(((ParameterizedType)type).getRawType());
+        return Object.class;
+    }
+}
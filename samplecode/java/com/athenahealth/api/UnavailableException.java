@@ -8,13 +8,28 @@ public class UnavailableException
     extends CommunicationException {
     private static final long serialVersionUID = 3791317316140344550L;
 
+    private final long retryAfter;
+
     /**
      * Creates a new UnavailableException with the specified detail message.
      *
      * @param message An explanation for the error.
      */
     public UnavailableException(String message) {
+        this(message, -1);
+    }
+
+    /**
+     * Creates a new UnavailableException with the specified detail message
+     * and the time the server asked clients to wait.
+     *
+     * @param message An explanation for the error.
+     * @param retryAfter The wait the server asked for, in ms, or -1 if it
+     *                   did not say.
+     */
+    public UnavailableException(String message, long retryAfter) {
         super(message);
+        this.retryAfter = retryAfter;
     }
 
     /**
@@ -26,5 +41,16 @@ public class UnavailableException
      */
     public UnavailableException(String message, Throwable cause) {
         super(message, cause);
+        this.retryAfter = -1;
+    }
+
+    /**
+     * Gets how long the server asked clients to wait before trying again,
+     * from its Retry-After header.
+     *
+     * @return The wait, in ms, or -1 if the server did not say.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
     }
 }
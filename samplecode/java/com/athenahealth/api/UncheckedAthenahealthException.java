@@ -0,0 +1,48 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+package com.athenahealth.api;
+
+/**
+ * Wraps an {@link AthenahealthException} where a checked exception cannot be
+ * thrown, such as from an {@link java.util.Iterator} or a
+ * {@link java.util.stream.Stream}.
+ */
+public class UncheckedAthenahealthException
+    extends RuntimeException
+{
+    private static final long serialVersionUID = 4630417315052279184L;
+
+    /**
+     * Creates a new UncheckedAthenahealthException wrapping the specified cause.
+     *
+     * @param cause The error which could not be thrown directly.
+     */
+    public UncheckedAthenahealthException(AthenahealthException cause)
+    {
+        super(cause.getMessage(), cause);
+    }
+
+    /**
+     * Returns the wrapped AthenahealthException.
+     *
+     * @return The error which could not be thrown directly.
+     */
+    @Override
+    public synchronized AthenahealthException getCause()
+    {
+        return (AthenahealthException)super.getCause();
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.athenahealth.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An application/x-www-form-urlencoded form or query string whose names may
+ * repeat, such as <code>appointmenttypeid=2&amp;appointmenttypeid=7</code>,
+ * which a <code>Map</code> of parameters cannot express.
+ *
+ * <pre>
+ * UrlEncodedForm form = new UrlEncodedForm()
+ *     .add("departmentid", "82")
+ *     .add("appointmenttypeid", "2", "7");
+ * Object slots = api.request("GET", "/appointments/open", form, null);
+ * </pre>
+ *
+ * Names and values are encoded exactly as by {@link java.net.URLEncoder} with
+ * UTF-8, but straight into bytes: characters which need no escaping are
+ * copied as they are, and the length is worked out first, so the body is sent
+ * with a Content-Length header from a single array of the right size.
+ * APIConnection encodes its <code>Map</code> parameters the same way.
+ *
+ * Forms are not thread safe while they are being built, but once complete may
+ * be sent any number of times.
+ */
+public final class UrlEncodedForm implements RequestBody {
+    static final String CONTENT_TYPE = "application/x-www-form-urlencoded; charset=UTF-8";
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    // Names and values, alternately
+    private final List<String> pairs = new ArrayList<String>();
+
+    // Encoded on first use, and again after a change
+    private byte[] encoded;
+
+    /**
+     * Creates an empty form.
+     */
+    public UrlEncodedForm() {
+    }
+
+    /**
+     * Creates a form holding the given parameters.
+     *
+     * @param parameters names and values to add
+     */
+    public UrlEncodedForm(Map<String, String> parameters) {
+        addAll(parameters);
+    }
+
+    /**
+     * Adds a name with one or more values.  Each value is sent as a separate
+     * pair with the same name.
+     *
+     * @param name   the name
+     * @param values the values
+     * @return this form
+     */
+    public UrlEncodedForm add(String name, String ... values) {
+        for(String value : values)
+            addPair(name, value);
+        return this;
+    }
+
+    /**
+     * Adds a name with each of a list of values.
+     *
+     * @param name   the name
+     * @param values the values
+     * @return this form
+     */
+    public UrlEncodedForm add(String name, Iterable<String> values) {
+        for(String value : values)
+            addPair(name, value);
+        return this;
+    }
+
+    /**
+     * Adds every name and value in a map.
+     *
+     * @param parameters names and values to add
+     * @return this form
+     */
+    public UrlEncodedForm addAll(Map<String, String> parameters) {
+        for(Map.Entry<String, String> pair : parameters.entrySet())
+            addPair(pair.getKey(), pair.getValue());
+        return this;
+    }
+
+    /**
+     * Appends the form to a path as its query string.
+     *
+     * @param path the path
+     * @return the path, followed by "?" and the form if it is not empty
+     */
+    public String appendTo(String path) {
+        return pairs.isEmpty() ? path : path + "?" + toString();
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public long getContentLength() {
+        return bytes().length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes());
+    }
+
+    /**
+     * Returns the encoded form.
+     *
+     * @return the form, as name=value pairs joined by "&amp;"
+     */
+    @Override
+    public String toString() {
+        byte[] bytes = bytes();
+        return new String(bytes, 0, bytes.length, StandardCharsets.ISO_8859_1);
+    }
+
+    private void addPair(String name, String value) {
+        if(name == null)
+            throw new IllegalArgumentException("Form names must not be null");
+        pairs.add(name);
+        pairs.add(String.valueOf(value));
+        encoded = null;
+    }
+
+    private byte[] bytes() {
+        byte[] bytes = encoded;
+        if(bytes == null) {
+            int length = 0;
+            for(int i = 0; i < pairs.size(); i += 2)
+                length += (i > 0 ? 1 : 0) + length(pairs.get(i)) + 1 + length(pairs.get(i + 1));
+
+            bytes = new byte[length];
+            int pos = 0;
+            for(int i = 0; i < pairs.size(); i += 2) {
+                if(i > 0)
+                    bytes[pos++] = '&';
+                pos = encode(pairs.get(i), bytes, pos);
+                bytes[pos++] = '=';
+                pos = encode(pairs.get(i + 1), bytes, pos);
+            }
+            encoded = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes parameters into an array of exactly the right length.  Keys are
+     * converted with toString and values with String.valueOf, as
+     * APIConnection always has.
+     *
+     * @param parameters keys and values to encode
+     * @return the encoded form
+     */
+    static byte[] encode(Map<?, ?> parameters) {
+        int length = -1;
+        for(Map.Entry<?, ?> pair : parameters.entrySet())
+            length += 1 + length(pair.getKey().toString()) + 1 + length(String.valueOf(pair.getValue()));
+
+        byte[] bytes = new byte[Math.max(length, 0)];
+        int pos = 0;
+        for(Map.Entry<?, ?> pair : parameters.entrySet()) {
+            if(pos > 0)
+                bytes[pos++] = '&';
+            pos = encode(pair.getKey().toString(), bytes, pos);
+            bytes[pos++] = '=';
+            pos = encode(String.valueOf(pair.getValue()), bytes, pos);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns whether URLEncoder leaves a character as it is.
+     */
+    private static boolean safe(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+            || c == '-' || c == '.' || c == '_' || c == '*';
+    }
+
+    /**
+     * Returns the number of bytes a string encodes to.
+     */
+    static int length(String s) {
+        int n = s.length();
+
+        // Most names and values need no escaping
+        int i = 0;
+        while(i < n && safe(s.charAt(i)))
+            i++;
+
+        int length = i;
+        for(; i < n; i++) {
+            char c = s.charAt(i);
+            if(safe(c) || c == ' ')
+                length += 1;
+            else if(c < 0x80)
+                length += 3;
+            else if(c < 0x800)
+                length += 6;
+            else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 12;
+                i++;
+            }
+            else if(Character.isSurrogate(c))
+                length += 3;
+            else
+                length += 9;
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a string into an array with room for it.
+     *
+     * @return the position after the encoded string
+     */
+    static int encode(String s, byte[] bytes, int pos) {
+        int n = s.length();
+        for(int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if(safe(c)) {
+                bytes[pos++] = (byte)c;
+            }
+            else if(c == ' ') {
+                bytes[pos++] = '+';
+            }
+            else if(c < 0x80) {
+                pos = escape(bytes, pos, c);
+            }
+            else if(c < 0x800) {
+                pos = escape(bytes, pos, 0xC0 | (c >> 6));
+                pos = escape(bytes, pos, 0x80 | (c & 0x3F));
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                pos = escape(bytes, pos, 0xF0 | (cp >> 18));
+                pos = escape(bytes, pos, 0x80 | ((cp >> 12) & 0x3F));
+                pos = escape(bytes, pos, 0x80 | ((cp >> 6) & 0x3F));
+                pos = escape(bytes, pos, 0x80 | (cp & 0x3F));
+            }
+            else if(Character.isSurrogate(c)) {
+                // Unpaired, so sent as '?', as URLEncoder does
+                pos = escape(bytes, pos, '?');
+            }
+            else {
+                pos = escape(bytes, pos, 0xE0 | (c >> 12));
+                pos = escape(bytes, pos, 0x80 | ((c >> 6) & 0x3F));
+                pos = escape(bytes, pos, 0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    private static int escape(byte[] bytes, int pos, int b) {
+        bytes[pos] = '%';
+        bytes[pos + 1] = HEX[(b >> 4) & 0xF];
+        bytes[pos + 2] = HEX[b & 0xF];
+        return pos + 3;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package test;
+
+import com.athenahealth.api.APIConnection;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+/**
+ * Compares the memory allocated per call when decoding JSON responses by
+ * buffering the whole body into a String (as call() used to) against
+ * APIConnection's streaming decode.
+ *
+ * Responses are served from an in-process HTTP server, so no credentials or
+ * network access are needed.  The Makefile runs this with the same small
+ * heap as the other targets, which is where the extra copies of large
+ * responses hurt the most.
+ */
+class DecodeBenchmark {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static void main(String[] args) throws Exception {
+		final int[] sizes = { 10, 1000, 10000 };
+		final int iterations = 20;
+
+		final byte[][] bodies = new byte[sizes.length][];
+		for (int i = 0; i < sizes.length; i++) {
+			bodies[i] = appointments(sizes[i]).getBytes(UTF8);
+		}
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String path = exchange.getRequestURI().getPath();
+				byte[] body;
+				if (path.endsWith("/token")) {
+					body = "{\"access_token\":\"benchmark\",\"expires_in\":\"3600\"}".getBytes(UTF8);
+				} else {
+					body = bodies[Integer.parseInt(path.substring(path.lastIndexOf('/') + 1))];
+				}
+				exchange.getRequestBody().close();
+				exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+
+		try {
+			String base = "http://127.0.0.1:" + server.getAddress().getPort();
+			APIConnection api = new APIConnection("preview1", "key", "secret", "1");
+			api.setBaseURL(base);
+			api.authenticate();
+
+			System.out.println(String.format("%-10s %12s %20s %20s %12s", "records", "body bytes", "buffered bytes/op", "streaming bytes/op", "reduction"));
+			for (int i = 0; i < sizes.length; i++) {
+				final String path = "/appointments/" + i;
+				final URL url = new URL(base + "/preview1/1" + path);
+
+				long buffered = measure(iterations, new Call() {
+					public Object run() throws Exception {
+						return bufferedGet(url);
+					}
+				});
+				long streaming = measure(iterations, new Call() {
+					public Object run() throws Exception {
+						return api.GET(path);
+					}
+				});
+
+				System.out.println(String.format("%-10d %12d %20s %20s %12s", sizes[i], bodies[i].length,
+						format(buffered), format(streaming),
+						buffered < 0 || streaming < 0 ? "-" : String.format("%.1f%%", 100.0 * (buffered - streaming) / buffered)));
+			}
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	interface Call {
+		Object run() throws Exception;
+	}
+
+	/**
+	 * Returns the mean number of bytes allocated by the calling thread per call,
+	 * or -1 if the heap was exhausted.
+	 */
+	private static long measure(int iterations, Call call) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		try {
+			// Warm up
+			for (int i = 0; i < iterations; i++) {
+				call.run();
+			}
+
+			long before = threads.getThreadAllocatedBytes(id);
+			for (int i = 0; i < iterations; i++) {
+				call.run();
+			}
+			return (threads.getThreadAllocatedBytes(id) - before) / iterations;
+		} catch (OutOfMemoryError oome) {
+			return -1;
+		}
+	}
+
+	private static String format(long bytes) {
+		return bytes < 0 ? "out of memory" : String.valueOf(bytes);
+	}
+
+	/**
+	 * The decode path call() used before responses were streamed.
+	 */
+	private static Object bufferedGet(URL url) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestProperty("Authorization", "Bearer benchmark");
+		BufferedReader rd = new BufferedReader(new InputStreamReader(conn.getInputStream(), UTF8));
+		StringBuilder sb = new StringBuilder();
+		String line;
+		while ((line = rd.readLine()) != null) {
+			sb.append(line);
+		}
+		rd.close();
+
+		String rawResponse = sb.toString();
+		try {
+			return new JSONObject(rawResponse);
+		} catch (JSONException e) {
+			return new JSONArray(rawResponse);
+		}
+	}
+
+	/**
+	 * Builds a response shaped like GET /appointments/open.
+	 */
+	private static String appointments(int count) {
+		JSONArray appointments = new JSONArray();
+		for (int i = 0; i < count; i++) {
+			appointments.put(new JSONObject()
+				.put("appointmentid", String.valueOf(1000000 + i))
+				.put("appointmenttypeid", "2")
+				.put("appointmenttype", "Office Visit")
+				.put("date", "06/18/2019")
+				.put("starttime", String.format("%02d:%02d", 8 + (i / 4) % 10, (i % 4) * 15))
+				.put("duration", "15")
+				.put("departmentid", "82")
+				.put("providerid", String.valueOf(70 + i % 12))
+				.put("patientappointmenttypename", "New Patient")
+				.put("frozenyn", "false"));
+		}
+		return new JSONObject()
+			.put("totalcount", count)
+			.put("appointments", appointments)
+			.toString();
+	}
+}
@@ -0,0 +1,434 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package test;
+
+import com.athenahealth.api.APIConnection;
+import org.json.JSONObject;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A closed-loop load generator for one APIConnection shared by many callers,
+ * to see where the blocking calls, the shared token and the JDK's keep-alive
+ * cache stop keeping up.
+ *
+ *   LoadTest workload-file [options]
+ *
+ *   --url URL             the API to call; without it StubServer is started
+ *   --version, --key, --secret, --practice
+ *                         as for APIConnection's constructor
+ *   --concurrency N,...   callers, run as one level after another (10,100,1000)
+ *   --rps R               the target rate over all callers; without it each
+ *                         caller makes its next call as soon as the last returns
+ *   --duration S          seconds measured at each level (30)
+ *   --warmup S            seconds run first and not measured (5)
+ *   --latency MS, --jitter MS
+ *                         the stub's response delay
+ *
+ * The workload file lists calls with weights; see test/workload.txt.  Each
+ * level reports the throughput, the 50th, 99th and 99.9th percentile
+ * latencies, and the errors by exception type.
+ *
+ * A closed-loop caller which stalls on a slow response makes no calls in the
+ * meantime, so the calls which would have been slowed by the stall are never
+ * measured.  The latencies are reported twice to correct for this.  "service"
+ * is the time each call took.  "response" is measured from when the call
+ * should have started: with --rps each caller keeps a schedule, and a call
+ * which starts late counts the wait; without it, calls which took longer than
+ * the mean are counted again as the calls the stall held back would have
+ * been, as HdrHistogram does.
+ *
+ * The JDK keeps at most five idle connections to a host unless it is run with
+ * -Dhttp.maxConnections, so set that when comparing levels above five.
+ */
+class LoadTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: LoadTest workload-file [--url URL] [--concurrency N,...] [--rps R] [--duration S] [--warmup S]");
+			System.exit(2);
+		}
+
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 1; i < args.length; i += 2) {
+			if (!args[i].startsWith("--") || i + 1 == args.length)
+				throw new IllegalArgumentException("Expected --option value at " + args[i]);
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+
+		List<Call> workload = workload(args[0]);
+		double rps = Double.parseDouble(option(options, "rps", "0"));
+		long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "duration", "30")));
+		long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "warmup", "5")));
+
+		StubServer stub = null;
+		String url = options.get("url");
+		if (url == null) {
+			stub = new StubServer();
+			stub.setLatency(Long.parseLong(option(options, "latency", "0")), Long.parseLong(option(options, "jitter", "0")));
+			url = stub.getBaseURL();
+		}
+
+		try {
+			APIConnection api = new APIConnection(option(options, "version", "preview1"),
+					option(options, "key", "stub-key"), option(options, "secret", "stub-secret"),
+					option(options, "practice", "195900"));
+			api.setBaseURL(url);
+			api.authenticate();
+
+			System.out.println(String.format("%d calls in the workload, against %s%s", workload.size(), url,
+					rps > 0 ? String.format(", at %.0f calls/s", rps) : ""));
+			for (String level : option(options, "concurrency", "10,100,1000").split(",")) {
+				int concurrency = Integer.parseInt(level.trim());
+				// Let every caller have a connection, so the level measures the client and not the pool's cap
+				api.getConnectionPool().setMaxConnectionsPerHost(concurrency);
+				Result result = run(api, workload, concurrency, rps, warmup, duration);
+				result.print();
+			}
+		} finally {
+			if (stub != null)
+				stub.stop();
+		}
+	}
+
+	private static String option(Map<String, String> options, String name, String value) {
+		String given = options.get(name);
+		return given == null ? value : given;
+	}
+
+	/**
+	 * One line of the workload file.
+	 */
+	private static final class Call {
+		final int weight;
+		final String method;
+		final String path;
+		final Map<String, String> parameters;
+
+		Call(int weight, String method, String path, Map<String, String> parameters) {
+			this.weight = weight;
+			this.method = method;
+			this.path = path;
+			this.parameters = parameters;
+		}
+
+		Object run(APIConnection api) throws Exception {
+			switch (method) {
+				case "GET":
+					return api.GET(path, parameters);
+				case "POST":
+					return api.POST(path, parameters);
+				case "PUT":
+					return api.PUT(path, parameters);
+				default:
+					return api.DELETE(path, parameters);
+			}
+		}
+	}
+
+	private static List<Call> workload(String file) throws IOException {
+		List<Call> calls = new ArrayList<Call>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8))) {
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+
+				String[] fields = line.split("\\s+");
+				if (fields.length < 3 || fields.length > 4 || !fields[1].matches("GET|POST|PUT|DELETE"))
+					throw new IllegalArgumentException(file + ":" + number + ": expected weight, method, path and parameters");
+
+				Map<String, String> parameters = new HashMap<String, String>();
+				if (fields.length == 4) {
+					for (String pair : fields[3].split("&")) {
+						int eq = pair.indexOf('=');
+						parameters.put(URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8"),
+								eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+					}
+				}
+				calls.add(new Call(Integer.parseInt(fields[0]), fields[1], fields[2], parameters));
+			}
+		}
+		if (calls.isEmpty())
+			throw new IllegalArgumentException(file + " has no calls");
+		return calls;
+	}
+
+	/**
+	 * Runs one level of concurrency, and waits for it to finish.
+	 */
+	private static Result run(final APIConnection api, final List<Call> workload, int concurrency, double rps,
+			long warmup, long duration) throws InterruptedException {
+		int total = 0;
+		for (Call call : workload)
+			total += call.weight;
+		final int totalWeight = total;
+
+		// Each caller's share of the rate, or 0 to call back to back
+		final long interval = rps > 0 ? (long) (concurrency * 1e9 / rps) : 0;
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		final long measured = start + warmup;
+		final long end = measured + duration;
+
+		final Result result = new Result(concurrency);
+		final Worker[] workers = new Worker[concurrency];
+		final CountDownLatch done = new CountDownLatch(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			final Worker worker = workers[i] = new Worker();
+			final long first = start + interval * i / concurrency;
+			Thread thread = new Thread(() -> {
+				try {
+					worker.run(api, workload, totalWeight, first, interval, measured, end, result);
+				} finally {
+					done.countDown();
+				}
+			}, "load-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+
+		// Calls which fell behind a --rps schedule finish after the end
+		long finished = end;
+		for (Worker worker : workers)
+			finished = Math.max(finished, worker.finished);
+
+		result.elapsed = finished - measured;
+		if (interval == 0)
+			result.response = result.service.corrected((long) result.service.mean());
+		return result;
+	}
+
+	/**
+	 * One caller.  The callers record into their level's shared histograms,
+	 * since a full histogram for each of a thousand callers would not fit in
+	 * the heap the stub server shares.
+	 */
+	private static final class Worker {
+		long finished;
+
+		void run(APIConnection api, List<Call> workload, int totalWeight, long first, long interval, long measured, long end,
+				Result result) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long intended = first;
+			while (true) {
+				long now = System.nanoTime();
+				if (interval > 0) {
+					if (intended - end >= 0)
+						return;
+					if (intended - now > 0) {
+						LockSupport.parkNanos(intended - now);
+						now = System.nanoTime();
+					}
+				} else {
+					if (now - end >= 0)
+						return;
+					intended = now;
+				}
+
+				int pick = random.nextInt(totalWeight);
+				Call call = workload.get(0);
+				for (Call c : workload) {
+					call = c;
+					if ((pick -= c.weight) < 0)
+						break;
+				}
+
+				String error = null;
+				try {
+					Object answer = call.run(api);
+					if (answer instanceof JSONObject && ((JSONObject) answer).has("error"))
+						error = "error response";
+				} catch (Exception e) {
+					error = e.getClass().getSimpleName();
+					if (e.getCause() != null)
+						error += ": " + e.getCause().getClass().getSimpleName();
+				}
+
+				finished = System.nanoTime();
+				if (intended - measured >= 0) {
+					result.calls.increment();
+					result.service.record(finished - now);
+					result.response.record(finished - intended);
+					if (error != null)
+						result.errors.computeIfAbsent(error, e -> new LongAdder()).increment();
+				}
+				intended += interval;
+			}
+		}
+	}
+
+	/**
+	 * The results of one level, recorded by all of its callers.
+	 */
+	private static final class Result {
+		final int concurrency;
+		long elapsed;
+		final Histogram service = new Histogram();
+		Histogram response = new Histogram();
+		final Map<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+		final LongAdder calls = new LongAdder();
+
+		Result(int concurrency) {
+			this.concurrency = concurrency;
+		}
+
+		void print() {
+			long calls = this.calls.sum();
+			Map<String, Long> errors = new TreeMap<String, Long>();
+			long failed = 0;
+			for (Map.Entry<String, LongAdder> error : this.errors.entrySet()) {
+				errors.put(error.getKey(), error.getValue().sum());
+				failed += error.getValue().sum();
+			}
+
+			System.out.println();
+			System.out.println(String.format("%d callers: %d calls, %.1f calls/s, %d errors (%.2f%%)", concurrency, calls,
+					calls * 1e9 / elapsed, failed, calls == 0 ? 0 : 100.0 * failed / calls));
+			System.out.println(String.format("  %-10s %10s %10s %10s %10s %10s", "ms", "mean", "p50", "p99", "p999", "max"));
+			print("service", service);
+			print("response", response);
+			for (Map.Entry<String, Long> error : errors.entrySet())
+				System.out.println(String.format("  %8d  %s", error.getValue(), error.getKey()));
+		}
+
+		private static void print(String name, Histogram histogram) {
+			System.out.println(String.format("  %-10s %10.2f %10.2f %10.2f %10.2f %10.2f", name, histogram.mean() / 1e3,
+					histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3,
+					histogram.max() / 1e3));
+		}
+	}
+
+	/**
+	 * A histogram of times in microseconds, with 32 buckets for each power of
+	 * two, so percentiles are accurate to within about 3%.  It is thread safe,
+	 * so that every caller of a level can record into the same one.
+	 */
+	static final class Histogram {
+		private static final int SUB_BITS = 5;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int BUCKETS = (65 - SUB_BITS) * SUB_BUCKETS;
+
+		final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		final LongAdder count = new LongAdder();
+		final LongAdder sum = new LongAdder();
+		final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		void record(long nanos) {
+			record(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)), 1);
+		}
+
+		void record(long micros, long times) {
+			counts.addAndGet(index(micros), times);
+			count.add(times);
+			sum.add(micros * times);
+			max.accumulate(micros);
+		}
+
+		void add(Histogram other) {
+			for (int i = 0; i < BUCKETS; i++)
+				counts.addAndGet(i, other.counts.get(i));
+			count.add(other.count.sum());
+			sum.add(other.sum.sum());
+			max.accumulate(other.max());
+		}
+
+		long max() {
+			return max.get();
+		}
+
+		double mean() {
+			long count = this.count.sum();
+			return count == 0 ? 0 : (double) sum.sum() / count;
+		}
+
+		/**
+		 * @return the time within which the given percentage of calls
+		 *         completed, in microseconds
+		 */
+		long percentile(double percentile) {
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count.sum()));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts.get(i);
+				if (seen >= rank)
+					return Math.min(highest(i), max());
+			}
+			return max();
+		}
+
+		/**
+		 * Returns a copy in which every time longer than <code>interval</code>
+		 * is followed by the times the calls held back behind it would have
+		 * seen: the same time less one interval, less two, and so on.
+		 */
+		Histogram corrected(long interval) {
+			Histogram corrected = new Histogram();
+			corrected.add(this);
+			if (interval <= 0)
+				return corrected;
+
+			for (int i = 0; i < BUCKETS; i++) {
+				long times = counts.get(i);
+				if (times == 0)
+					continue;
+				for (long missed = Math.min(highest(i), max()) - interval; missed >= interval; missed -= interval)
+					corrected.record(missed, times);
+			}
+			return corrected;
+		}
+
+		static int index(long micros) {
+			if (micros < SUB_BUCKETS)
+				return (int) micros;
+
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			int shift = exponent - SUB_BITS;
+			return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+		}
+
+		static long highest(int index) {
+			if (index < SUB_BUCKETS)
+				return index;
+
+			int shift = index / SUB_BUCKETS - 1;
+			long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+			return lowest + (1L << shift) - 1;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package test;
+
+import com.athenahealth.api.APIConnection;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Compares the original way of decoding a response, which tried JSONObject
+ * and fell back to JSONArray when that threw, with the single-pass decode in
+ * APIConnection, which looks at the first character and parses exactly
+ * once.  The single-pass decode is APIConnection's own parseJSON, reached
+ * through a method handle, so the benchmark cannot drift from it.
+ *
+ * The corpus in test/corpus holds responses from list and object
+ * endpoints; pass a different directory as the first argument to use
+ * another one.
+ */
+class RootDetectionBenchmark {
+	private static final long WARMUP_NANOS = 500L * 1000 * 1000;
+	private static final long MEASURE_NANOS = 1000L * 1000 * 1000;
+
+	// APIConnection.parseJSON(JSONTokener), which is private
+	private static final MethodHandle PARSE_JSON;
+	static {
+		try {
+			Method parseJSON = APIConnection.class.getDeclaredMethod("parseJSON", JSONTokener.class);
+			parseJSON.setAccessible(true);
+			PARSE_JSON = MethodHandles.lookup().unreflect(parseJSON);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File corpus = new File(args.length > 0 ? args[0] : "test/corpus");
+		File[] files = corpus.listFiles();
+		if (files == null || files.length == 0) {
+			System.err.println("No responses found in " + corpus);
+			System.exit(1);
+		}
+		Arrays.sort(files);
+
+		System.out.println(String.format("%-24s %-6s %14s %14s %14s %14s", "response", "root", "fallback ns", "single ns", "fallback B", "single B"));
+		for (File file : files) {
+			final String body = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+
+			Result fallback = measure(new Decoder() {
+				public Object decode() {
+					return fallback(body);
+				}
+			});
+			Result single = measure(new Decoder() {
+				public Object decode() {
+					return singlePass(body);
+				}
+			});
+
+			System.out.println(String.format("%-24s %-6s %14d %14d %14d %14d", file.getName(),
+					single.value instanceof JSONArray ? "array" : "object",
+					fallback.nanos, single.nanos, fallback.bytes, single.bytes));
+		}
+	}
+
+	interface Decoder {
+		Object decode();
+	}
+
+	static class Result {
+		long nanos;
+		long bytes;
+		Object value;
+	}
+
+	/**
+	 * Runs a decoder repeatedly and reports the mean time and the mean
+	 * number of bytes allocated per decode.
+	 */
+	private static Result measure(Decoder decoder) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		Result result = new Result();
+
+		long end = System.nanoTime() + WARMUP_NANOS;
+		while (System.nanoTime() < end) {
+			result.value = decoder.decode();
+		}
+
+		long count = 0;
+		long bytes = threads.getThreadAllocatedBytes(id);
+		long start = System.nanoTime();
+		end = start + MEASURE_NANOS;
+		long now;
+		do {
+			for (int i = 0; i < 100; i++) {
+				result.value = decoder.decode();
+			}
+			count += 100;
+			now = System.nanoTime();
+		} while (now < end);
+
+		result.nanos = (now - start) / count;
+		result.bytes = (threads.getThreadAllocatedBytes(id) - bytes) / count;
+		return result;
+	}
+
+	/**
+	 * The decode APIConnection originally did: parse as an object, and if
+	 * that throws, parse again as an array.
+	 */
+	private static Object fallback(String rawResponse) {
+		try {
+			return new JSONObject(rawResponse);
+		} catch (JSONException e) {
+			return new JSONArray(rawResponse);
+		}
+	}
+
+	/**
+	 * The decode APIConnection does now: choose by the first non-whitespace
+	 * character and parse once.
+	 */
+	private static Object singlePass(String rawResponse) {
+		try {
+			return (Object) PARSE_JSON.invokeExact(new JSONTokener(rawResponse));
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+}
@@ -0,0 +1,607 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for the athenahealth API on the loopback interface, so that the
+ * client can be exercised and load-tested with no credentials or network.
+ * Point a connection at it with {@link com.athenahealth.api.APIConnection#setBaseURL}.
+ *
+ * Any key and secret are accepted at /oauth/token, /oauthpreview/token and
+ * /oauthopenpreview/token.  Tokens expire after {@link #setTokenLifetime},
+ * or at once with {@link #expireTokens}, after which calls made with them
+ * are answered 401.  Calls are made to /{version}/{practiceid}/..., and
+ * these paths are served from memory:
+ *
+ *   GET    /customfields                   an array of custom fields
+ *   GET    /departments, /providers        paginated lists, by limit and offset
+ *                                          /providers answers 400 for the page at failoffset
+ *   GET    /appointments/open              a paginated list of open slots; departmentid
+ *                                          and appointmenttypeid are required
+ *   PUT    /appointments/{id}              books a slot for a patientid
+ *   POST   /appointments/{id}/checkin      checks in a booked appointment
+ *   POST   /patients                       creates a patient
+ *   GET    /patients                       a paginated list of the patients created
+ *   GET    /patients/{id}
+ *   GET    /patients/{id}/photo            image/jpeg with jpegoutput=true, else base64 JSON
+ *   DELETE /patients/{id}/photo
+ *   DELETE /patients/{id}/chartalert       departmentid is required
+ *   ANY    /unavailable                    503 with Retry-After
+ *   ANY    /gatewaytimeout                 504 with the HTML the API's gateway sends
+ *
+ * Anything else is answered 404.  Responses other than images are compressed
+ * with gzip or deflate when the request's Accept-Encoding allows it.  Every call can also be delayed by a fixed
+ * latency and a random jitter, and a fraction of them failed with 503s or
+ * gateway timeouts, to see how the client behaves under load.
+ */
+class StubServer {
+	static {
+		// Otherwise Nagle's algorithm delays small responses by up to 40 ms
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String GATEWAY_TIMEOUT = "<h1>Gateway Timeout</h1>";
+	private static final int DEFAULT_LIMIT = 1500;
+	private static final int DEPARTMENTS = 45;
+	private static final int PROVIDERS = 120;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private volatile long tokenLifetime = 3600;
+	private volatile long latency;
+	private volatile long jitter;
+	private volatile double unavailableRate;
+	private volatile double gatewayTimeoutRate;
+
+	// Token -> expiry, by System.nanoTime
+	private final Map<String, Long> tokens = new ConcurrentHashMap<String, Long>();
+	private final Map<String, JSONObject> patients = new ConcurrentSkipListMap<String, JSONObject>();
+	private final Map<String, JSONObject> openSlots = new ConcurrentSkipListMap<String, JSONObject>();
+	private final Map<String, JSONObject> booked = new ConcurrentHashMap<String, JSONObject>();
+	private final AtomicInteger nextPatient = new AtomicInteger(1000);
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong tokenRequests = new AtomicLong();
+	private final AtomicLong unauthorized = new AtomicLong();
+
+	/**
+	 * Starts a server on an ephemeral port.
+	 */
+	StubServer() throws IOException {
+		openSlots();
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this::handle);
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "stub-server");
+			t.setDaemon(true);
+			return t;
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return the URL to give APIConnection.setBaseURL
+	 */
+	String getBaseURL() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Sets how long new tokens last.  The default is an hour, as on the real
+	 * service.
+	 */
+	void setTokenLifetime(long seconds) {
+		tokenLifetime = seconds;
+	}
+
+	/**
+	 * Makes every token issued so far stop working, as if it had expired.
+	 */
+	void expireTokens() {
+		tokens.clear();
+	}
+
+	/**
+	 * Delays every response by <code>latency</code> plus a random amount up to
+	 * <code>jitter</code>, in ms.
+	 */
+	void setLatency(long latency, long jitter) {
+		this.latency = latency;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Sets the fraction of calls answered 503 Service Unavailable.
+	 */
+	void setUnavailableRate(double rate) {
+		unavailableRate = rate;
+	}
+
+	/**
+	 * Sets the fraction of calls answered with a gateway timeout.
+	 */
+	void setGatewayTimeoutRate(double rate) {
+		gatewayTimeoutRate = rate;
+	}
+
+	/**
+	 * @return the number of requests received, including token requests
+	 */
+	long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of tokens issued
+	 */
+	long getTokenRequestCount() {
+		return tokenRequests.get();
+	}
+
+	/**
+	 * @return the number of calls answered 401 for a missing, unknown or
+	 *         expired token
+	 */
+	long getUnauthorizedCount() {
+		return unauthorized.get();
+	}
+
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			String method = exchange.getRequestMethod();
+			String path = exchange.getRequestURI().getPath();
+			Map<String, String> params = parameters(exchange);
+
+			delay();
+
+			if (path.matches("/oauth(preview|openpreview)?/token")) {
+				token(exchange, params);
+				return;
+			}
+
+			String auth = exchange.getRequestHeaders().getFirst("Authorization");
+			Long expiry = auth != null && auth.startsWith("Bearer ") ? tokens.get(auth.substring(7)) : null;
+			if (expiry == null || expiry - System.nanoTime() < 0) {
+				unauthorized.incrementAndGet();
+				send(exchange, 401, new JSONObject().put("error", "Invalid or expired access token."));
+				return;
+			}
+
+			// /{version}/{practiceid}/rest
+			String[] parts = path.split("/", 4);
+			if (parts.length < 4 || !parts[1].matches("v1|preview1|openpreview1") || !parts[2].matches("\\d+")) {
+				send(exchange, 404, new JSONObject().put("error", "Invalid path."));
+				return;
+			}
+			String rest = "/" + parts[3];
+			String prefix = "/" + parts[1] + "/" + parts[2];
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (rest.equals("/unavailable") || random.nextDouble() < unavailableRate) {
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				sendText(exchange, 503, "text/plain", "Service Temporarily Unavailable");
+			}
+			else if (rest.equals("/gatewaytimeout") || random.nextDouble() < gatewayTimeoutRate) {
+				sendText(exchange, 504, "text/xml", GATEWAY_TIMEOUT);
+			}
+			else {
+				route(exchange, method, prefix, rest, params);
+			}
+		}
+		catch (RuntimeException e) {
+			send(exchange, 500, new JSONObject().put("error", "Stub server error: " + e));
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private void route(HttpExchange exchange, String method, String prefix, String path, Map<String, String> params) throws IOException {
+		String[] segments = path.substring(1).split("/");
+
+		if ("GET".equals(method) && path.equals("/customfields")) {
+			send(exchange, 200, customFields());
+		}
+		else if ("GET".equals(method) && path.equals("/departments")) {
+			send(exchange, 200, page(prefix + path, "departments", departments(), params));
+		}
+		else if ("GET".equals(method) && path.equals("/providers")) {
+			if (params.containsKey("failoffset") && params.get("failoffset").equals(params.get("offset"))) {
+				send(exchange, 400, new JSONObject().put("error", "The page at offset " + params.get("offset") + " failed."));
+				return;
+			}
+			send(exchange, 200, page(prefix + path, "providers", providers(), params));
+		}
+		else if ("GET".equals(method) && path.equals("/appointments/open")) {
+			JSONArray missing = missing(params, "departmentid", "appointmenttypeid");
+			if (missing.length() > 0) {
+				send(exchange, 400, new JSONObject().put("error", "Additional fields are required.").put("missingfields", missing));
+				return;
+			}
+			JSONArray slots = new JSONArray();
+			for (JSONObject slot : openSlots.values()) {
+				if (slot.getString("departmentid").equals(params.get("departmentid")))
+					slots.put(slot);
+			}
+			send(exchange, 200, page(prefix + path, "appointments", slots, params));
+		}
+		else if ("PUT".equals(method) && segments.length == 2 && segments[0].equals("appointments")) {
+			book(exchange, segments[1], params);
+		}
+		else if ("POST".equals(method) && segments.length == 3 && segments[0].equals("appointments") && segments[2].equals("checkin")) {
+			JSONObject appointment = booked.get(segments[1]);
+			if (appointment == null) {
+				send(exchange, 404, new JSONObject().put("error", "The appointment is not booked."));
+			} else {
+				appointment.put("appointmentstatus", "2");
+				send(exchange, 200, new JSONObject().put("success", "true"));
+			}
+		}
+		else if ("POST".equals(method) && path.equals("/patients")) {
+			JSONArray missing = missing(params, "lastname", "firstname", "dob", "departmentid");
+			if (missing.length() > 0) {
+				send(exchange, 400, new JSONObject().put("error", "Additional fields are required.").put("missingfields", missing));
+				return;
+			}
+			String id = String.valueOf(nextPatient.incrementAndGet());
+			JSONObject patient = new JSONObject(params).put("patientid", id);
+			patients.put(id, patient);
+			send(exchange, 200, new JSONArray().put(new JSONObject().put("patientid", id)));
+		}
+		else if ("GET".equals(method) && path.equals("/patients")) {
+			send(exchange, 200, page(prefix + path, "patients", new JSONArray(patients.values()), params));
+		}
+		else if (segments.length >= 2 && segments[0].equals("patients")) {
+			JSONObject patient = patients.get(segments[1]);
+			if (patient == null) {
+				send(exchange, 404, new JSONObject().put("error", "The patient does not exist."));
+			}
+			else if ("GET".equals(method) && segments.length == 2) {
+				send(exchange, 200, new JSONArray().put(patient));
+			}
+			else if ("GET".equals(method) && segments.length == 3 && segments[2].equals("photo")) {
+				if ("true".equals(params.get("jpegoutput")))
+					sendBytes(exchange, 200, "image/jpeg", photo());
+				else
+					send(exchange, 200, new JSONObject().put("image", Base64.getEncoder().encodeToString(photo())));
+			}
+			else if ("DELETE".equals(method) && segments.length == 3 && segments[2].equals("photo")) {
+				send(exchange, 200, new JSONObject().put("success", "true"));
+			}
+			else if ("DELETE".equals(method) && segments.length == 3 && segments[2].equals("chartalert")) {
+				JSONArray missing = missing(params, "departmentid");
+				if (missing.length() > 0)
+					send(exchange, 400, new JSONObject().put("error", "Additional fields are required.").put("missingfields", missing));
+				else
+					send(exchange, 200, new JSONObject().put("success", "true"));
+			}
+			else {
+				send(exchange, 404, new JSONObject().put("error", "Invalid path."));
+			}
+		}
+		else {
+			send(exchange, 404, new JSONObject().put("error", "Invalid path."));
+		}
+	}
+
+	private void token(HttpExchange exchange, Map<String, String> params) throws IOException {
+		String auth = exchange.getRequestHeaders().getFirst("Authorization");
+		if (auth == null || !auth.startsWith("Basic ")) {
+			send(exchange, 401, new JSONObject().put("error", "invalid_client"));
+			return;
+		}
+		if (!"client_credentials".equals(params.get("grant_type"))) {
+			send(exchange, 400, new JSONObject().put("error", "unsupported_grant_type"));
+			return;
+		}
+
+		long lifetime = tokenLifetime;
+		String token = "stub-" + tokenRequests.incrementAndGet() + "-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+		tokens.put(token, System.nanoTime() + lifetime * 1000000000L);
+		send(exchange, 200, new JSONObject()
+				.put("access_token", token)
+				.put("token_type", "bearer")
+				.put("expires_in", String.valueOf(lifetime)));
+	}
+
+	private void book(HttpExchange exchange, String id, Map<String, String> params) throws IOException {
+		JSONArray missing = missing(params, "patientid", "appointmenttypeid");
+		if (missing.length() > 0) {
+			send(exchange, 400, new JSONObject().put("error", "Additional fields are required.").put("missingfields", missing));
+			return;
+		}
+		if (!patients.containsKey(params.get("patientid"))) {
+			send(exchange, 400, new JSONObject().put("error", "The patient does not exist."));
+			return;
+		}
+
+		JSONObject slot = openSlots.remove(id);
+		if (slot == null) {
+			send(exchange, 409, new JSONObject().put("error", "The appointment is not available."));
+			return;
+		}
+
+		slot.put("patientid", params.get("patientid"))
+			.put("appointmenttypeid", params.get("appointmenttypeid"))
+			.put("appointmentstatus", "f");
+		booked.put(id, slot);
+		send(exchange, 200, new JSONArray().put(slot));
+	}
+
+	/**
+	 * Answers a list call with the page of records given by the limit and
+	 * offset parameters, and a link to the next page if there is one.
+	 */
+	private static JSONObject page(String path, String key, JSONArray records, Map<String, String> params) {
+		int limit = Math.max(1, parseInt(params.get("limit"), DEFAULT_LIMIT));
+		int offset = Math.max(0, parseInt(params.get("offset"), 0));
+
+		JSONArray page = new JSONArray();
+		for (int i = offset; i < Math.min(records.length(), offset + limit); i++)
+			page.put(records.get(i));
+
+		JSONObject response = new JSONObject()
+				.put(key, page)
+				.put("totalcount", records.length());
+		if (offset + limit < records.length()) {
+			Map<String, String> next = new HashMap<String, String>(params);
+			next.put("offset", String.valueOf(offset + limit));
+			next.put("limit", String.valueOf(limit));
+			StringBuilder link = new StringBuilder(path);
+			char separator = '?';
+			for (Map.Entry<String, String> param : next.entrySet()) {
+				link.append(separator).append(encode(param.getKey())).append('=').append(encode(param.getValue()));
+				separator = '&';
+			}
+			response.put("next", link.toString());
+		}
+		return response;
+	}
+
+	private static JSONArray customFields() {
+		String[] names = { "Preferred Pharmacy", "Referral Source", "Interpreter Needed", "Emergency Contact", "Employer" };
+		JSONArray fields = new JSONArray();
+		for (int i = 0; i < names.length; i++) {
+			fields.put(new JSONObject()
+					.put("customfieldid", String.valueOf(i + 1))
+					.put("name", names[i])
+					.put("type", i == 2 ? "SELECT" : "FREETEXT")
+					.put("disallowupdateyn", "false"));
+		}
+		return fields;
+	}
+
+	private static JSONArray departments() {
+		JSONArray departments = new JSONArray();
+		for (int i = 1; i <= DEPARTMENTS; i++) {
+			departments.put(new JSONObject()
+					.put("departmentid", String.valueOf(i == DEPARTMENTS ? 82 : i))
+					.put("name", "Department " + i)
+					.put("state", "MA")
+					.put("zip", "02139")
+					.put("timezone", "-5"));
+		}
+		return departments;
+	}
+
+	private static JSONArray providers() {
+		JSONArray providers = new JSONArray();
+		for (int i = 1; i <= PROVIDERS; i++) {
+			providers.put(new JSONObject()
+					.put("providerid", String.valueOf(i))
+					.put("firstname", "Provider")
+					.put("lastname", "Number " + i)
+					.put("specialty", i % 3 == 0 ? "Pediatrics" : "Family Medicine"));
+		}
+		return providers;
+	}
+
+	/**
+	 * Opens a slot every half hour during the working day, for the next
+	 * thirty days, in departments 1 and 82.
+	 */
+	private void openSlots() {
+		SimpleDateFormat format = new SimpleDateFormat("MM/dd/yyyy");
+		Calendar day = Calendar.getInstance();
+		int id = 100000;
+		for (int d = 1; d <= 30; d++) {
+			day.add(Calendar.DAY_OF_MONTH, 1);
+			String date = format.format(day.getTime());
+			for (String department : new String[] { "1", "82" }) {
+				for (int slot = 0; slot < 16; slot++) {
+					String appointmentid = String.valueOf(id++);
+					openSlots.put(appointmentid, new JSONObject()
+							.put("appointmentid", appointmentid)
+							.put("date", date)
+							.put("starttime", String.format("%02d:%02d", 9 + slot / 2, slot % 2 * 30))
+							.put("duration", 30)
+							.put("departmentid", department)
+							.put("providerid", String.valueOf(1 + slot % 4))
+							.put("appointmenttypeid", "2")
+							.put("appointmenttype", "Office Visit"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a small, well-formed JPEG
+	 */
+	private static byte[] photo() {
+		byte[] jpeg = new byte[1024];
+		ThreadLocalRandom.current().nextBytes(jpeg);
+		jpeg[0] = (byte) 0xFF;
+		jpeg[1] = (byte) 0xD8;
+		jpeg[jpeg.length - 2] = (byte) 0xFF;
+		jpeg[jpeg.length - 1] = (byte) 0xD9;
+		return jpeg;
+	}
+
+	private static JSONArray missing(Map<String, String> params, String... names) {
+		JSONArray missing = new JSONArray();
+		for (String name : names) {
+			if (params.get(name) == null || params.get(name).isEmpty())
+				missing.put(name);
+		}
+		return missing;
+	}
+
+	private void delay() {
+		long delay = latency;
+		long spread = jitter;
+		if (spread > 0)
+			delay += ThreadLocalRandom.current().nextLong(spread + 1);
+		if (delay <= 0)
+			return;
+
+		try {
+			Thread.sleep(delay);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Reads the query string and form-encoded body into one map.
+	 */
+	private static Map<String, String> parameters(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		parse(exchange.getRequestURI().getRawQuery(), params);
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (InputStream in = exchange.getRequestBody()) {
+			byte[] buffer = new byte[4096];
+			int c;
+			while ((c = in.read(buffer)) != -1)
+				body.write(buffer, 0, c);
+		}
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		if (contentType == null || contentType.startsWith("application/x-www-form-urlencoded"))
+			parse(new String(body.toByteArray(), UTF8), params);
+
+		return params;
+	}
+
+	private static void parse(String encoded, Map<String, String> params) throws UnsupportedEncodingException {
+		if (encoded == null || encoded.isEmpty())
+			return;
+
+		// Repeated names have their values joined with commas
+		for (String pair : encoded.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0)
+				params.merge(URLDecoder.decode(pair, "UTF-8"), "", (a, b) -> a + "," + b);
+			else
+				params.merge(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"),
+						(a, b) -> a + "," + b);
+		}
+	}
+
+	private static String encode(String s) {
+		try {
+			return URLEncoder.encode(s, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	private static int parseInt(String s, int otherwise) {
+		try {
+			return s == null ? otherwise : Integer.parseInt(s);
+		}
+		catch (NumberFormatException e) {
+			return otherwise;
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, Object json) throws IOException {
+		sendBytes(exchange, status, "application/json;charset=UTF-8", json.toString().getBytes(UTF8));
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+		sendBytes(exchange, status, contentType + ";charset=UTF-8", text.getBytes(UTF8));
+	}
+
+	private static void sendBytes(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+
+		// Compress text as the client asks, preferring gzip
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (accept != null && !contentType.startsWith("image/")) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			DeflaterOutputStream out = null;
+			if (accept.contains("gzip")) {
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				out = new GZIPOutputStream(compressed);
+			}
+			else if (accept.contains("deflate")) {
+				exchange.getResponseHeaders().set("Content-Encoding", "deflate");
+				out = new DeflaterOutputStream(compressed);
+			}
+			if (out != null) {
+				out.write(body);
+				out.close();
+				body = compressed.toByteArray();
+			}
+		}
+
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+}
@@ -0,0 +1,417 @@
+/*
+ *    Copyright 2014 athenahealth, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License"); you
+ *   may not use this file except in compliance with the License.  You
+ *   may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *   implied.  See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package test;
+
+import com.athenahealth.api.APIConnection;
+import com.athenahealth.api.AthenahealthException;
+import com.athenahealth.api.CircuitBreaker;
+import com.athenahealth.api.CircuitOpenException;
+import com.athenahealth.api.CommunicationException;
+import com.athenahealth.api.Metrics;
+import com.athenahealth.api.PathTemplate;
+import com.athenahealth.api.ResponseCache;
+import com.athenahealth.api.RetryPolicy;
+import com.athenahealth.api.TypeRef;
+import com.athenahealth.api.UnavailableException;
+import com.athenahealth.api.UncheckedAthenahealthException;
+import com.athenahealth.api.UrlEncodedForm;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs Testing's examples against StubServer, then the cases which cannot be
+ * made to happen on demand against the real service: expired tokens, long
+ * lists, images, outages and slow responses.  It needs no credentials or
+ * network, and exits with an exception at the first thing that is wrong.
+ */
+class StubTesting {
+	public static void main(String[] args) throws Exception {
+		StubServer stub = new StubServer();
+		try {
+			APIConnection api = new APIConnection("preview1", "stub-key", "stub-secret", "195900");
+			api.setBaseURL(stub.getBaseURL());
+			api.authenticate();
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// Testing's examples
+			////////////////////////////////////////////////////////////////////////////////////////////
+			Testing.scenarios(api);
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// Token refresh after 401
+			////////////////////////////////////////////////////////////////////////////////////////////
+			String old_token = api.getToken();
+			long tokens = stub.getTokenRequestCount();
+			stub.expireTokens();
+
+			JSONObject departments = (JSONObject) api.GET("/departments");
+			check(departments.getInt("totalcount") == 45, "departments after the token expired");
+			check(stub.getUnauthorizedCount() == 1, "one 401 for the expired token");
+			check(stub.getTokenRequestCount() == tokens + 1, "one new token");
+			check(!old_token.equals(api.getToken()), "the token was replaced");
+			System.out.println("Token refreshed after 401: " + api.getToken());
+
+			// Tokens which run out while in use
+			stub.setTokenLifetime(1);
+			stub.expireTokens();
+			api.GET("/customfields");
+			Thread.sleep(1500);
+			api.GET("/customfields");
+
+			// A closed connection stops refreshing its token
+			APIConnection closing = new APIConnection("preview1", "stub-key", "stub-secret", "195900");
+			try (APIConnection closed = closing) {
+				closed.setBaseURL(stub.getBaseURL());
+				closed.authenticate();
+			}
+			String closed_token = closing.getToken();
+			Thread.sleep(1500);
+			check(closed_token.equals(closing.getToken()), "no background refresh after close");
+
+			// A form rejected twice returns the error, as an unstreamed form always has
+			stub.setTokenLifetime(0);
+			stub.expireTokens();
+			Map<String, String> rejected = new HashMap<String, String>();
+			rejected.put("lastname", "Rejected");
+			JSONObject denied = (JSONObject) api.POST("/patients", rejected);
+			check("Invalid or expired access token.".equals(denied.optString("error")), "the second 401's error, got " + denied);
+			stub.setTokenLifetime(3600);
+			System.out.println("Short-lived tokens: " + stub.getTokenRequestCount() + " tokens issued");
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// Paginated lists
+			////////////////////////////////////////////////////////////////////////////////////////////
+			Map<String, String> page = new HashMap<String, String>();
+			page.put("limit", "10");
+
+			int count = 0;
+			for (JSONObject department : api.GETAll("/departments", page, "departments")) {
+				check(department.has("departmentid"), "a department record");
+				count++;
+			}
+			check(count == 45, "45 departments by following next links, got " + count);
+
+			Map<String, String> failing = new HashMap<String, String>();
+			failing.put("limit", "25");
+			failing.put("failoffset", "50");
+			int before_error = 0;
+			try {
+				for (JSONObject provider : api.GETAll("/providers", failing, "providers"))
+					before_error++;
+				check(false, "an error page to throw UncheckedAthenahealthException");
+			}
+			catch (UncheckedAthenahealthException e) {
+				check(before_error == 50 && e.getMessage().contains("offset 50 failed"), "the error page thrown after 50 records, got "
+						+ before_error + ": " + e.getMessage());
+			}
+
+			page.put("limit", "25");
+			List<JSONObject> providers = api.GETAll("/providers", page, "providers").fetchParallel(4, "providerid");
+			check(providers.size() == 120, "120 providers fetched in parallel, got " + providers.size());
+			check("1".equals(providers.get(0).getString("providerid")), "providers in page order");
+
+			try {
+				api.GETAll("/providers", failing, "providers").fetchParallel(4, "providerid");
+				check(false, "an error page to fail the parallel fetch");
+			}
+			catch (AthenahealthException e) {
+				check(e.getMessage().contains("offset 50 failed"), "the error page's message, got " + e.getMessage());
+			}
+			System.out.println("Pages: " + count + " departments, " + providers.size() + " providers");
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// Images
+			////////////////////////////////////////////////////////////////////////////////////////////
+			Map<String, String> patient_info = new HashMap<String, String>();
+			patient_info.put("lastname", "Foo");
+			patient_info.put("firstname", "Jason");
+			patient_info.put("dob", "6/18/1987");
+			patient_info.put("departmentid", "1");
+			String patientid = ((JSONArray) api.POST("/patients", patient_info)).getJSONObject(0).getString("patientid");
+
+			JSONObject photo = (JSONObject) api.GET("/patients/" + patientid + "/photo",
+					Collections.singletonMap("jpegoutput", "true"));
+			byte[] jpeg = (byte[]) photo.get("contents");
+			check("image/jpeg".equals(photo.getString("contentType")), "an image/jpeg response");
+			check(jpeg.length == 1024 && (jpeg[0] & 0xFF) == 0xFF && (jpeg[1] & 0xFF) == 0xD8, "the JPEG's bytes");
+			System.out.println("Photo: " + jpeg.length + " bytes of " + photo.getString("contentType"));
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// Path templates
+			////////////////////////////////////////////////////////////////////////////////////////////
+			PathTemplate patient_path = PathTemplate.compile("/patients/{patientid}/");
+			check(patient_path.expand(patientid).equals("/patients/" + patientid), "a plain value expanded as it is");
+			check(patient_path.expand("a b/\u00fc").equals("/patients/a%20b%2F%C3%BC"), "values percent-encoded as UTF-8");
+			check(PathTemplate.compile("chart/{patientid}/{section}").expand("1", "x").equals("/chart/1/x"), "a leading slash added");
+
+			JSONArray by_template = (JSONArray) api.GET(patient_path.expand(Collections.singletonMap("patientid", patientid)));
+			check(patientid.equals(by_template.getJSONObject(0).getString("patientid")), "the patient by path template");
+			System.out.println("Path template: " + patient_path + " -> " + patient_path.expand(patientid));
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// Forms with repeated names
+			////////////////////////////////////////////////////////////////////////////////////////////
+			String text = "Zo\u00eb O'Brien & 100% \ud83d\ude00 ~*";
+			check(new UrlEncodedForm().add("note", text).toString().equals("note=" + URLEncoder.encode(text, "UTF-8")),
+					"the form encoded as URLEncoder does");
+
+			UrlEncodedForm types = new UrlEncodedForm()
+				.add("departmentid", "82")
+				.add("appointmenttypeid", "2", "7");
+			check(types.toString().equals("departmentid=82&appointmenttypeid=2&appointmenttypeid=7"), "a repeated name");
+			JSONObject typed_slots = (JSONObject) api.request("GET", "/appointments/open", types, null);
+			check(typed_slots.getInt("totalcount") > 0, "open slots for two appointment types");
+
+			patient_info.put("firstname", text);
+			JSONArray form_patient = (JSONArray) api.request("POST", "/patients", new UrlEncodedForm(patient_info), null);
+			JSONObject posted = ((JSONArray) api.GET("/patients/" + form_patient.getJSONObject(0).getString("patientid"))).getJSONObject(0);
+			check(text.equals(posted.getString("firstname")), "the first name sent intact, got " + posted.getString("firstname"));
+			System.out.println("Repeated names: " + types);
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// Compressed responses
+			////////////////////////////////////////////////////////////////////////////////////////////
+			Metrics metrics = new Metrics();
+			api.setMetrics(metrics);
+			Map<String, String> all_providers = Collections.singletonMap("limit", "120");
+
+			JSONObject gzipped = (JSONObject) api.GET("/providers", all_providers);
+			Metrics.Endpoint endpoint = metrics.getEndpoint("GET", "/providers");
+			check(gzipped.getJSONArray("providers").length() == 120, "120 providers, gzipped");
+			check(endpoint.getBytesReceived() * 2 < endpoint.getBytesDecoded(),
+					"a compressed response, got " + endpoint.getBytesReceived() + " of " + endpoint.getBytesDecoded() + " bytes");
+			long compressed = endpoint.getBytesReceived();
+
+			JSONObject deflated = (JSONObject) api.GET("/providers", all_providers, Collections.singletonMap("Accept-Encoding", "deflate"));
+			check(deflated.similar(gzipped), "the same providers, deflated");
+
+			JSONObject async_gzipped = (JSONObject) api.GETAsync("/providers", all_providers).get();
+			check(async_gzipped.similar(gzipped), "the same providers, gzipped without blocking");
+
+			JSONObject error = (JSONObject) api.GET("/appointments/open");
+			check(error.has("missingfields"), "a compressed error response");
+
+			api.setCompression(false);
+			metrics.reset();
+			api.GET("/providers", all_providers);
+			endpoint = metrics.getEndpoint("GET", "/providers");
+			check(endpoint.getBytesReceived() == endpoint.getBytesDecoded(), "an uncompressed response with compression off");
+			System.out.println("Compression: " + compressed + " bytes instead of " + endpoint.getBytesReceived());
+			api.setCompression(true);
+			api.setMetrics(null);
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// Typed responses
+			////////////////////////////////////////////////////////////////////////////////////////////
+			ProviderPage provider_page = api.GETAs("/providers", all_providers, ProviderPage.class);
+			check(provider_page.totalCount == 120 && provider_page.providers.size() == 120, "120 providers bound");
+			check(provider_page.providers.get(6).providerId == 7, "a quoted number bound to an int");
+			check("Number 7".equals(provider_page.providers.get(6).lastName), "a name bound ignoring case");
+			check(provider_page.next == null, "no next link");
+
+			List<CustomField> fields = api.GETAs("/customfields", new TypeRef<List<CustomField>>() {});
+			check(fields.size() == 5 && fields.get(2).type == CustomField.Type.SELECT, "custom fields bound to a list");
+			check(!fields.get(0).disallowUpdateYN, "a quoted boolean bound");
+
+			Map<String, Object> any = api.GETAs("/departments", new TypeRef<Map<String, Object>>() {});
+			check(any.get("departments") instanceof JSONArray && ((Number) any.get("totalcount")).intValue() == 45,
+					"untyped members decoded as JSON");
+
+			Listing<Provider> listing = api.GETAs("/providers", all_providers, new TypeRef<Listing<Provider>>() {});
+			check(listing.providers.get(6).providerId == 7 && listing.totalCount == 120f, "a generic class bound with its type argument");
+			try {
+				api.GETAs("/providers", all_providers, Listing.class);
+				check(false, "a type variable with no argument to throw IllegalArgumentException");
+			}
+			catch (IllegalArgumentException e) {
+				check(e.getMessage().contains("type variable T"), "the unbound type variable named, got " + e.getMessage());
+			}
+
+			try {
+				api.GETAs("/appointments/open", ProviderPage.class);
+				check(false, "an error response to throw AthenahealthException");
+			}
+			catch (AthenahealthException e) {
+				check(e.getMessage().contains("Additional fields are required."), "the API's error, got " + e.getMessage());
+			}
+			System.out.println("Typed responses: " + fields.size() + " custom fields, " + provider_page.providers.size() + " providers");
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// A response cache shared between connections
+			////////////////////////////////////////////////////////////////////////////////////////////
+			ResponseCache cache = new ResponseCache(1024 * 1024);
+			cache.setTimeToLive("/customfields", 60 * 1000);
+			try (APIConnection other = new APIConnection("preview1", "other-key", "other-secret", "195900")) {
+				other.setBaseURL(stub.getBaseURL());
+				api.setResponseCache(cache);
+				other.setResponseCache(cache);
+
+				api.GET("/customfields");
+				api.GET("/customfields");
+				check(cache.getHitCount() == 1, "a hit for the same connection, got " + cache.getHitCount());
+				other.GET("/customfields");
+				check(cache.getHitCount() == 1, "no hit for a connection with other credentials");
+				other.GET("/customfields");
+				check(cache.getHitCount() == 2, "a hit for the other connection's own entry");
+				System.out.println("Shared cache: " + cache);
+
+				// Entries kept in a store of the caller's own
+				final Map<String, ResponseCache.Entry> kept = new ConcurrentHashMap<String, ResponseCache.Entry>();
+				ResponseCache stored = new ResponseCache(new ResponseCache.Store() {
+					@Override
+					public ResponseCache.Entry get(String key) { return kept.get(key); }
+					@Override
+					public void put(String key, ResponseCache.Entry entry) { kept.put(key, entry); }
+					@Override
+					public void clear() { kept.clear(); }
+				});
+				stored.setTimeToLive("/customfields", 60 * 1000);
+				api.setResponseCache(stored);
+				api.GET("/customfields");
+				JSONArray from_store = (JSONArray) api.GET("/customfields");
+				check(kept.size() == 1 && stored.getHitCount() == 1 && from_store.length() == 5, "a hit from a pluggable store");
+			}
+			finally {
+				api.setResponseCache(null);
+			}
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// Outages
+			////////////////////////////////////////////////////////////////////////////////////////////
+			try {
+				api.GET("/unavailable");
+				check(false, "503 to throw UnavailableException");
+			}
+			catch (UnavailableException e) {
+				check(e.getRetryAfter() == 1000, "Retry-After of 1 s, got " + e.getRetryAfter());
+				System.out.println("503: " + e.getMessage());
+			}
+
+			// An open circuit fails fast, even with a retry policy which would wait out a 503
+			CircuitBreaker breaker = new CircuitBreaker();
+			breaker.setWindowSize(1);
+			breaker.setMinimumCalls(1);
+			api.setCircuitBreaker(breaker);
+			try {
+				api.GET("/unavailable");
+				check(false, "503 to throw UnavailableException");
+			}
+			catch (UnavailableException e) {
+				check(breaker.getState("/unavailable") == CircuitBreaker.State.OPEN, "the circuit opened");
+			}
+			api.setRetryPolicy(new RetryPolicy());
+			long requests = stub.getRequestCount();
+			long refused = System.nanoTime();
+			try {
+				api.GET("/unavailable");
+				check(false, "an open circuit to throw CircuitOpenException");
+			}
+			catch (UnavailableException e) {
+				// Outage handlers see it, but it is not retried
+				long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - refused);
+				check(e instanceof CircuitOpenException, "an open circuit to throw CircuitOpenException, got " + e);
+				check(waited < 500 && stub.getRequestCount() == requests, "no retry of an open circuit, waited " + waited + " ms");
+				System.out.println("Open circuit: " + e.getMessage());
+			}
+			api.setRetryPolicy(null);
+			api.setCircuitBreaker(null);
+
+			try {
+				api.GET("/gatewaytimeout");
+				check(false, "gateway timeout to throw CommunicationException");
+			}
+			catch (UnavailableException e) {
+				check(false, "gateway timeout not to be reported as 503");
+			}
+			catch (CommunicationException e) {
+				System.out.println("Gateway timeout: " + e.getMessage());
+			}
+
+
+			////////////////////////////////////////////////////////////////////////////////////////////
+			// Latency
+			////////////////////////////////////////////////////////////////////////////////////////////
+			stub.setLatency(100, 50);
+			long start = System.nanoTime();
+			api.GET("/customfields");
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			check(elapsed >= 100, "a response delayed by at least 100 ms, got " + elapsed);
+
+			Object async = api.GETAsync("/customfields").get();
+			check(async instanceof JSONArray, "custom fields without blocking");
+			stub.setLatency(0, 0);
+			System.out.println("Delayed response: " + elapsed + " ms");
+
+
+			System.out.println("All stub scenarios passed (" + stub.getRequestCount() + " requests)");
+		}
+		finally {
+			stub.stop();
+		}
+
+		// The asynchronous client's threads would keep the JVM running
+		System.exit(0);
+	}
+
+	static class ProviderPage {
+		List<Provider> providers;
+		int totalCount;
+		String next;
+	}
+
+	static class Listing<T> {
+		List<T> providers;
+		float totalCount;
+	}
+
+	static class Provider {
+		int providerId;
+		String firstName;
+		String lastName;
+	}
+
+	static class CustomField {
+		enum Type { FREETEXT, SELECT }
+
+		long customFieldId;
+		String name;
+		Type type;
+		boolean disallowUpdateYN;
+	}
+
+	private static void check(boolean condition, String expected) {
+		if (!condition)
+			throw new AssertionError("Expected " + expected);
+	}
+}
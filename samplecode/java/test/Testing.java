@@ -40,7 +40,43 @@ class Testing {
 		// If you want to set the practice ID after construction, this is how.
 		// api.setPracticeID("000000");
 		
+		// To work with several practices at once over the same connection and token, use a
+		// practice view instead.
+		// PracticeConnection other = api.forPractice("000001");
 		
+		scenarios(api);
+		
+		
+		////////////////////////////////////////////////////////////////////////////////////////////
+		// Testing token refresh
+		//
+		// NOTE: this test takes an hour, so it's disabled by default. Change false to true to run.
+		////////////////////////////////////////////////////////////////////////////////////////////
+		if (false) {
+			String old_token = api.getToken();
+			System.out.println("Old token: " + old_token);
+			
+			JSONObject before_refresh = (JSONObject) api.GET("/departments");
+			
+			// Wait 3600 seconds = 1 hour for token to expire.
+			try {
+				Thread.sleep(3600 * 1000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			
+			JSONObject after_refresh = (JSONObject) api.GET("/departments");
+			
+			System.out.println("New token: " + api.getToken());
+		}
+	}
+	
+	/**
+	 * Runs the examples against a connection which has been authenticated.  StubTesting runs
+	 * them against StubServer, so they need no credentials or network.
+	 */
+	static void scenarios(APIConnection api) throws Exception {
 		////////////////////////////////////////////////////////////////////////////////////////////
 		// GET without parameters
 		////////////////////////////////////////////////////////////////////////////////////////////
@@ -155,30 +191,5 @@ class Testing {
 		JSONObject missing_parameters = (JSONObject) api.GET("/appointments/open");
 		System.out.println("Missing parameters:");
 		System.out.println(missing_parameters.toString());
-		
-		
-		////////////////////////////////////////////////////////////////////////////////////////////
-		// Testing token refresh
-		//
-		// NOTE: this test takes an hour, so it's disabled by default. Change false to true to run.
-		////////////////////////////////////////////////////////////////////////////////////////////
-		if (false) {
-			String old_token = api.getToken();
-			System.out.println("Old token: " + old_token);
-			
-			JSONObject before_refresh = (JSONObject) api.GET("/departments");
-			
-			// Wait 3600 seconds = 1 hour for token to expire.
-			try {
-				Thread.sleep(3600 * 1000);
-			}
-			catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-			}
-			
-			JSONObject after_refresh = (JSONObject) api.GET("/departments");
-			
-			System.out.println("New token: " + api.getToken());
-		}
 	}
 }